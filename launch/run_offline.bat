@@ -0,0 +1 @@
+java -Xms256m -Xmx640m -Djava.awt.headless=true -Djava.util.logging.config.file=config/logging.properties -cp odzgen.jar onedotzero.OfflineRenderer %*
@@ -0,0 +1,186 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import javax.imageio.ImageIO;
+
+import onedotzero.export.ImageEncoder;
+import onedotzero.export.ImageEncoders;
+import onedotzero.export.PImageEncoder;
+import onedotzero.export.PNGEncoder;
+
+/**
+ * Command line benchmark for the export encoders. Encodes a synthetic frame
+ * (dark background with smooth gradients & noise, similar to exported ribbon
+ * frames) in all supported formats and reports the throughput in MB/s of
+ * uncompressed RGB input along with the resulting file sizes. Processing's
+ * built-in export is included for comparison. PNG output is decoded again and
+ * compared pixel by pixel, uncompressed TGA & RAW output byte by byte. Usage:
+ * 
+ * <pre>
+ * java onedotzero.tools.EncoderBenchmark [width] [height] [numThreads]
+ * </pre>
+ */
+public class EncoderBenchmark {
+
+    private static final int NUM_ROUNDS = 5;
+
+    private static int[] createFrame(int width, int height) {
+        Random rnd = new Random(23);
+        int[] pixels = new int[width * height];
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (int) (40 + 30 * Math.sin(x * 0.01 + y * 0.003));
+                int g = (x * 255 / width + (y >> 2)) & 0x7f;
+                int b = (y * 255 / height) >> 1;
+                if (rnd.nextInt(16) == 0) {
+                    r = Math.min(r + rnd.nextInt(64), 255);
+                }
+                pixels[i++] = 0xff000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int pos = 0;
+            while (pos < data.length) {
+                pos += in.read(data, pos, data.length - pos);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static int verify(String format, boolean isProcessing,
+            int[] pixels, int width, int height, File file)
+            throws IOException {
+        int numErrors = 0;
+        if (format.equals("png")) {
+            BufferedImage img = ImageIO.read(file);
+            if (img.getWidth() != width || img.getHeight() != height) {
+                return 1;
+            }
+            int[] decoded = img.getRGB(0, 0, width, height, null, 0, width);
+            for (int i = 0; i < pixels.length; i++) {
+                if ((decoded[i] & 0xffffff) != (pixels[i] & 0xffffff)) {
+                    numErrors++;
+                }
+            }
+        } else if (!isProcessing
+                && (format.equals("tga") || format.equals("raw"))) {
+            byte[] data = readFile(file);
+            boolean isTGA = format.equals("tga");
+            int offset = isTGA ? 18 : 0;
+            if (data.length != offset + pixels.length * 3) {
+                return 1;
+            }
+            for (int i = 0; i < pixels.length; i++, offset += 3) {
+                int c = pixels[i];
+                int r = data[offset + (isTGA ? 2 : 0)] & 0xff;
+                int g = data[offset + 1] & 0xff;
+                int b = data[offset + (isTGA ? 0 : 2)] & 0xff;
+                if (((r << 16) | (g << 8) | b) != (c & 0xffffff)) {
+                    numErrors++;
+                }
+            }
+        }
+        return numErrors;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 1920;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 1080;
+        int numThreads =
+                args.length > 2 ? Integer.parseInt(args[2]) : Runtime
+                        .getRuntime().availableProcessors();
+        int[] pixels = createFrame(width, height);
+        double mb = width * height * 3 / (1024.0 * 1024.0);
+        File dir = File.createTempFile("encoderbench", "");
+        dir.delete();
+        dir.mkdirs();
+        ExecutorService executor =
+                ImageEncoders.newExecutor(numThreads, "encoderbench");
+
+        List<String> names = new ArrayList<String>();
+        List<String> formats = new ArrayList<String>();
+        List<ImageEncoder> encoders = new ArrayList<ImageEncoder>();
+        for (String f : new String[] { "tga", "raw", "png" }) {
+            names.add(f);
+            formats.add(f);
+            encoders.add(ImageEncoders.create(f, null));
+        }
+        if (executor != null) {
+            names.add("png x" + numThreads);
+            formats.add("png");
+            encoders.add(new PNGEncoder(executor, numThreads * 2,
+                    ImageEncoders.PNG_LEVEL));
+        }
+        for (String f : new String[] { "tga", "png", "jpg", "tiff" }) {
+            names.add("processing " + f);
+            formats.add(f);
+            encoders.add(new PImageEncoder());
+        }
+
+        System.out.printf("frame: %dx%d (%.2f MB), threads: %d\n", width,
+                height, mb, numThreads);
+        int numErrors = 0;
+        for (int i = 0; i < encoders.size(); i++) {
+            String format = formats.get(i);
+            ImageEncoder enc = encoders.get(i);
+            File file = new File(dir, "frame-" + i + "." + format);
+            double best = Double.MAX_VALUE;
+            for (int k = 0; k < NUM_ROUNDS; k++) {
+                long t0 = System.nanoTime();
+                enc.encode(pixels, width, height, file);
+                best = Math.min(best, (System.nanoTime() - t0) * 1e-9);
+            }
+            boolean isProcessing = enc instanceof PImageEncoder;
+            int errors =
+                    verify(format, isProcessing, pixels, width, height, file);
+            numErrors += errors;
+            System.out.printf("%-16s %8.1f MB/s %8.1f ms %10d bytes%s\n",
+                    names.get(i), mb / best, best * 1000, file.length(),
+                    errors > 0 ? " MISMATCH" : "");
+            file.delete();
+        }
+        dir.delete();
+        if (executor != null) {
+            executor.shutdown();
+        }
+        System.out.println("mismatches: " + numErrors);
+        if (numErrors > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import onedotzero.poles.ParticlePole3D;
+import onedotzero.poles.PoleManager;
+import onedotzero.poles.PoleOctree;
+import toxi.geom.AABB;
+import toxi.geom.Vec3D;
+import toxi.math.MathUtils;
+
+/**
+ * Command line benchmark comparing field line tracing via the brute force pole
+ * loop against the {@link PoleOctree} index (exact and approximated). Traced
+ * paths are compared vertex by vertex and the max. deviation is reported
+ * alongside the best timings of several rounds. Usage:
+ * 
+ * <pre>
+ * java onedotzero.tools.FieldLineBenchmark [numExternalPoles] [numTraces]
+ * </pre>
+ */
+public class FieldLineBenchmark {
+
+    private static final float[] ACCURACIES =
+            new float[] { 0, 0.25f, 0.5f, 1f };
+
+    private static final int NUM_ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int numExternal = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        int numTraces = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        AABB bounds = new AABB(new Vec3D(), new Vec3D(1000, 400, 500));
+        Random rnd = new Random(23);
+        List<ParticlePole3D> external = new ArrayList<ParticlePole3D>();
+        for (int i = 0; i < numExternal; i++) {
+            Vec3D pos =
+                    new Vec3D(MathUtils.random(rnd, -1f, 1f), MathUtils.random(
+                            rnd, -1f, 1f), MathUtils.random(rnd, -1f, 1f))
+                            .scaleSelf(bounds.getExtent());
+            external.add(new ParticlePole3D(pos, -PoleManager.MAX_CHARGE
+                    * pos.magnitude() / 200));
+        }
+        List<ParticlePole3D> letters = new ArrayList<ParticlePole3D>();
+        List<Vec3D> dirs = new ArrayList<Vec3D>();
+        for (int i = 0; i < numTraces; i++) {
+            Vec3D pos =
+                    new Vec3D(MathUtils.random(rnd, -500f, 500f), 0, MathUtils
+                            .random(rnd, -150f, 150f));
+            letters.add(new ParticlePole3D(pos, PoleManager.MAX_CHARGE));
+            dirs.add(new Vec3D(MathUtils.random(rnd, -1f, 1f), -1, MathUtils
+                    .random(rnd, -1f, 1f)).normalize());
+        }
+        System.out.println("external poles: " + numExternal + ", traces: "
+                + numTraces);
+        List<List<Vec3D>> reference = new ArrayList<List<Vec3D>>();
+        // warm up JIT for both code paths
+        PoleOctree warmup = new PoleOctree(external, 0.5f);
+        for (int i = 0; i < numTraces; i++) {
+            letters.get(i).computeFieldLine(external, dirs.get(i).copy(), 10,
+                    bounds, Integer.MAX_VALUE);
+            letters.get(i).computeFieldLine(warmup, dirs.get(i).copy(), 10,
+                    bounds, Integer.MAX_VALUE);
+        }
+        for (int i = 0; i < numTraces; i++) {
+            ParticlePole3D p = letters.get(i);
+            p.computeFieldLine(external, dirs.get(i).copy(), 10, bounds,
+                    Integer.MAX_VALUE);
+            reference.add(new ArrayList<Vec3D>(p.vertices));
+        }
+        double bruteTime = Double.MAX_VALUE;
+        for (int k = 0; k < NUM_ROUNDS; k++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < numTraces; i++) {
+                letters.get(i).computeFieldLine(external, dirs.get(i).copy(),
+                        10, bounds, Integer.MAX_VALUE);
+            }
+            bruteTime = Math.min(bruteTime, (System.nanoTime() - t0) * 1e-6);
+        }
+        System.out.printf("brute force: %.2f ms\n", bruteTime);
+        for (float accuracy : ACCURACIES) {
+            PoleOctree index = new PoleOctree(external, accuracy);
+            float maxDev = 0;
+            int numDiffLength = 0;
+            double time = Double.MAX_VALUE;
+            for (int k = 0; k < NUM_ROUNDS; k++) {
+                long t0 = System.nanoTime();
+                for (int i = 0; i < numTraces; i++) {
+                    letters.get(i).computeFieldLine(index, dirs.get(i).copy(),
+                            10, bounds, Integer.MAX_VALUE);
+                }
+                time = Math.min(time, (System.nanoTime() - t0) * 1e-6);
+            }
+            // compare paths (separate pass to not distort timing)
+            for (int i = 0; i < numTraces; i++) {
+                ParticlePole3D p = letters.get(i);
+                p.computeFieldLine(index, dirs.get(i).copy(), 10, bounds,
+                        Integer.MAX_VALUE);
+                List<Vec3D> ref = reference.get(i);
+                if (ref.size() != p.vertices.size()) {
+                    numDiffLength++;
+                }
+                int num = Math.min(ref.size(), p.vertices.size());
+                for (int j = 0; j < num; j++) {
+                    maxDev =
+                            Math.max(maxDev, ref.get(j).distanceTo(
+                                    p.vertices.get(j)));
+                }
+            }
+            System.out.printf(
+                    "octree (accuracy %.2f, %d nodes): %.2f ms (x%.1f), "
+                            + "max deviation: %.4f, paths w/ "
+                            + "different length: %d\n", accuracy, index
+                            .getNumNodes(), time, bruteTime / time, maxDev,
+                    numDiffLength);
+        }
+    }
+}
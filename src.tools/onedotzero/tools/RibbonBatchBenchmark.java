@@ -0,0 +1,213 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.bind.JAXBContext;
+
+import onedotzero.ImageTexture;
+import onedotzero.Ribbon;
+import onedotzero.RibbonBatch;
+import onedotzero.RibbonStripSink;
+import onedotzero.Texture;
+import onedotzero.data.FeedPool.FeedConfiguration;
+import onedotzero.poles.PoleManager;
+import onedotzero.poles.PoleUsageIndex;
+import onedotzero.type.Alphabet;
+import onedotzero.type.LetterPoleGroup;
+import processing.core.PImage;
+import toxi.color.TColor;
+import toxi.geom.AABB;
+import toxi.geom.Vec3D;
+import toxi.math.MathUtils;
+
+/**
+ * Command line tool to verify and benchmark the CPU packing stage of the
+ * batched ribbon renderer. Builds a set of ribbons for a sample message,
+ * records their strips in immediate mode order and compares them float by
+ * float with the vertex data collected by {@link RibbonBatch}. Then reports
+ * the time needed to pack a complete frame. Since packing doesn't require an
+ * OpenGL context, ribbons use an {@link ImageTexture}. Must be run from the
+ * project root folder. Usage:
+ * 
+ * <pre>
+ * java onedotzero.tools.RibbonBatchBenchmark [numRibbons] [numFrames]
+ * </pre>
+ */
+public class RibbonBatchBenchmark {
+
+    /**
+     * Reference sink recording the vertices of each strip in the same order
+     * as the immediate mode renderer issues them to OpenGL.
+     */
+    private static class RecordingSink implements RibbonStripSink {
+
+        private final List<float[]> strips = new ArrayList<float[]>();
+        private List<Float> strip;
+        private int numCalls;
+
+        public void addVertexPair(float r, float g, float b, float a,
+                float u, float x, float yTop, float yBottom, float z) {
+            float[] v =
+                    new float[] { x, yTop, z, u, Ribbon.V_TOP, r, g, b, a, x,
+                            yBottom, z, u, Ribbon.V_BOTTOM, r, g, b, a };
+            for (float f : v) {
+                strip.add(f);
+            }
+            // glColor4f, 2x glTexCoord2f & glVertex3f
+            numCalls += 5;
+        }
+
+        public void beginStrip(Texture tex) {
+            strip = new ArrayList<Float>();
+            // glBindTexture, glBegin
+            numCalls += 2;
+        }
+
+        public void endStrip() {
+            if (strip.size() > 0) {
+                float[] s = new float[strip.size()];
+                for (int i = 0; i < s.length; i++) {
+                    s[i] = strip.get(i);
+                }
+                strips.add(s);
+            }
+            numCalls++;
+        }
+    }
+
+    private static final String MESSAGE = "onedotzero";
+
+    public static void main(String[] args) throws Exception {
+        int numRibbons = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int numFrames = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Random rnd = new Random(23);
+        Alphabet alphabet =
+                (Alphabet) JAXBContext.newInstance(Alphabet.class)
+                        .createUnmarshaller().unmarshal(
+                                new File("assets/alphabet/alphabet.xml"));
+        alphabet.init();
+        AABB bounds = new AABB(new Vec3D(), new Vec3D(1000, 400, 500));
+        PoleManager poles = new PoleManager(alphabet, bounds);
+        poles.setMaxExternalPoleHitcount(numRibbons);
+        poles.setMaxLetterHitcount(numRibbons);
+        poles.init(0);
+        List<Vec3D> external = new ArrayList<Vec3D>();
+        for (int i = 0; i < 60; i++) {
+            external.add(new Vec3D(MathUtils.random(rnd, -1f, 1f), MathUtils
+                    .random(rnd, -1f, 1f), MathUtils.random(rnd, -1f, 1f))
+                    .scaleSelf(bounds.getExtent()));
+        }
+        poles.addExternalPoles(external);
+        poles.addMessageAt(MESSAGE, new Vec3D(-400, 0, 0), 1.5f);
+        poles.processGroups();
+        Ribbon.configureWidth(12, 2);
+
+        FeedConfiguration feed =
+                new FeedConfiguration("test", null, TColor.newRGB(1, 0.5f,
+                        0.25f));
+        // placeholder texture, since ribbons without texture aren't drawn
+        Texture tex = new ImageTexture(new PImage(1, 1));
+        List<Ribbon> ribbons = new ArrayList<Ribbon>();
+        Vec3D dir = Vec3D.Y_AXIS.copy();
+        for (int i = 0; i < numRibbons; i++) {
+            LetterPoleGroup letter = poles.getLeastUsedLetter();
+            PoleUsageIndex poleSet =
+                    letter.hasInline() && letter.innerUsage < letter.outerUsage
+                            ? letter.innerIndex
+                            : letter.outerIndex;
+            Ribbon r =
+                    new Ribbon(poles, tex, feed, 0.005f, 0);
+            if (r.create(poleSet, dir, 0, 2)) {
+                ribbons.add(r);
+            }
+        }
+        // scroll ribbons to random positions
+        for (Ribbon r : ribbons) {
+            int num = MathUtils.random(rnd, 400);
+            for (int i = 0; i < num; i++) {
+                r.update(i + 1, true, 0.9f);
+            }
+        }
+        System.out.println("ribbons: " + ribbons.size());
+
+        // verify batch contents against reference
+        RecordingSink reference = new RecordingSink();
+        for (Ribbon r : ribbons) {
+            r.draw(reference);
+        }
+        RibbonBatch batch = new RibbonBatch();
+        for (Ribbon r : ribbons) {
+            r.draw(batch);
+        }
+        batch.groupByTexture();
+        int numErrors = 0;
+        int stripID = 0;
+        for (float[] strip : reference.strips) {
+            int first = batch.getSortedFirst()[stripID];
+            int count = batch.getSortedCount()[stripID];
+            if (count * RibbonBatch.VERTEX_SIZE != strip.length) {
+                numErrors++;
+            } else {
+                float[] vertices = batch.getVertices();
+                int offset = first * RibbonBatch.VERTEX_SIZE;
+                for (int i = 0; i < strip.length; i++) {
+                    if (Float.floatToIntBits(strip[i]) != Float
+                            .floatToIntBits(vertices[offset + i])) {
+                        numErrors++;
+                        break;
+                    }
+                }
+            }
+            stripID++;
+        }
+        if (stripID != batch.getNumStrips() || batch.getNumGroups() != 1) {
+            numErrors++;
+        }
+        System.out.println("strips: " + batch.getNumStrips() + ", vertices: "
+                + batch.getNumVertices() + ", mismatches: " + numErrors);
+        System.out.println("immediate mode GL calls per frame: "
+                + reference.numCalls + ", batched draw calls: "
+                + batch.getNumGroups());
+
+        // benchmark packing
+        for (int k = 0; k < 2; k++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < numFrames; i++) {
+                batch.clear();
+                for (Ribbon r : ribbons) {
+                    r.draw(batch);
+                }
+                batch.groupByTexture();
+            }
+            double t = (System.nanoTime() - t0) * 1e-6;
+            System.out.printf("%s: %.3f ms/frame\n", k == 0
+                    ? "warmup"
+                    : "packing", t / numFrames);
+        }
+        if (numErrors > 0) {
+            System.exit(1);
+        }
+    }
+}
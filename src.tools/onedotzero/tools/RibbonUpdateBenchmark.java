@@ -0,0 +1,207 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.bind.JAXBContext;
+
+import onedotzero.Ribbon;
+import onedotzero.RibbonPool;
+import onedotzero.RibbonStore;
+import onedotzero.RibbonUpdater;
+import onedotzero.Texture;
+import onedotzero.data.FeedPool.FeedConfiguration;
+import onedotzero.poles.PoleManager;
+import onedotzero.poles.PoleReleaseBatch;
+import onedotzero.poles.PoleUsageIndex;
+import onedotzero.type.Alphabet;
+import onedotzero.type.LetterPoleGroup;
+import toxi.color.TColor;
+import toxi.geom.AABB;
+import toxi.geom.Vec3D;
+import toxi.math.MathUtils;
+
+/**
+ * Command line tool to benchmark the simulation side of large ribbon counts:
+ * the per tick update of all ribbons (sequentially vs. in parallel using
+ * {@link RibbonUpdater}), the removal of expired ribbons (iterator based vs.
+ * {@link RibbonStore#removeExpired(List)}) and the batched release of pole
+ * hit counts via {@link PoleReleaseBatch}. Ribbons are created without
+ * textures. Must be run from the project root folder. Usage:
+ * 
+ * <pre>
+ * java onedotzero.tools.RibbonUpdateBenchmark [numThreads] [chunkSize] [numTicks] [sizes...]
+ * </pre>
+ */
+public class RibbonUpdateBenchmark {
+
+    private static final String MESSAGE = "onedotzero";
+
+    private static List<Ribbon> createRibbons(int num, Random rnd)
+            throws Exception {
+        Alphabet alphabet =
+                (Alphabet) JAXBContext.newInstance(Alphabet.class)
+                        .createUnmarshaller().unmarshal(
+                                new File("assets/alphabet/alphabet.xml"));
+        alphabet.init();
+        AABB bounds = new AABB(new Vec3D(), new Vec3D(1000, 400, 500));
+        PoleManager poles = new PoleManager(alphabet, bounds);
+        poles.setMaxExternalPoleHitcount(num);
+        poles.setMaxLetterHitcount(num);
+        poles.init(0);
+        List<Vec3D> external = new ArrayList<Vec3D>();
+        for (int i = 0; i < 60; i++) {
+            external.add(new Vec3D(MathUtils.random(rnd, -1f, 1f), MathUtils
+                    .random(rnd, -1f, 1f), MathUtils.random(rnd, -1f, 1f))
+                    .scaleSelf(bounds.getExtent()));
+        }
+        poles.addExternalPoles(external);
+        poles.addMessageAt(MESSAGE, new Vec3D(-400, 0, 0), 1.5f);
+        poles.processGroups();
+        Ribbon.configureWidth(12, 2);
+        FeedConfiguration feed =
+                new FeedConfiguration("test", null, TColor.newRGB(1, 0.5f,
+                        0.25f));
+        List<Ribbon> ribbons = new ArrayList<Ribbon>(num);
+        Vec3D dir = Vec3D.Y_AXIS.copy();
+        while (ribbons.size() < num) {
+            LetterPoleGroup letter = poles.getLeastUsedLetter();
+            PoleUsageIndex poleSet =
+                    letter.hasInline() && letter.innerUsage < letter.outerUsage
+                            ? letter.innerIndex
+                            : letter.outerIndex;
+            Ribbon r = new Ribbon(poles, (Texture) null, feed, 0.005f, 0);
+            if (r.create(poleSet, dir, 0, 2)) {
+                ribbons.add(r);
+            } else {
+                r.cleanup();
+            }
+        }
+        return ribbons;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numThreads =
+                args.length > 0 ? Integer.parseInt(args[0]) : Runtime
+                        .getRuntime().availableProcessors();
+        int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int numTicks = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int[] sizes = new int[] { 1000, 10000, 50000 };
+        if (args.length > 3) {
+            sizes = new int[args.length - 3];
+            for (int i = 3; i < args.length; i++) {
+                sizes[i - 3] = Integer.parseInt(args[i]);
+            }
+        }
+        int maxSize = 0;
+        for (int s : sizes) {
+            maxSize = Math.max(maxSize, s);
+        }
+        Random rnd = new Random(23);
+        long t0 = System.nanoTime();
+        List<Ribbon> all = createRibbons(maxSize, rnd);
+        System.out.printf("created %d ribbons in %.1f s\n", all.size(),
+                (System.nanoTime() - t0) * 1e-9);
+        RibbonPool pool = RibbonPool.getInstance();
+        System.out.printf("pool: %d slots, %d vertex segments, "
+                + "capacity %d vertices (%.1f MB)\n", pool.getNumSlotsUsed(),
+                pool.getNumSegmentsUsed(), pool.getVertexCapacity(), pool
+                        .getVertexCapacity()
+                        * RibbonPool.VERTEX_SIZE * 4 / 1048576.0);
+        RibbonUpdater sequential = new RibbonUpdater(0, chunkSize);
+        RibbonUpdater parallel = new RibbonUpdater(numThreads, chunkSize);
+        for (int size : sizes) {
+            List<Ribbon> ribbons = all.subList(0, size);
+            RibbonStore store = new RibbonStore(size);
+            store.addAll(ribbons);
+
+            // update only (no scrolling, so no ribbon expires)
+            double tIter = 0, tSeq = 0, tPar = 0;
+            for (int k = 0; k < 2; k++) {
+                t0 = System.nanoTime();
+                for (int i = 0; i < numTicks; i++) {
+                    for (Iterator<Ribbon> it = ribbons.iterator(); it
+                            .hasNext();) {
+                        if (!it.next().update(i, false, 0.9f)) {
+                            it.remove();
+                        }
+                    }
+                }
+                tIter = (System.nanoTime() - t0) * 1e-6 / numTicks;
+                t0 = System.nanoTime();
+                for (int i = 0; i < numTicks; i++) {
+                    sequential.update(store, i, false, 0.9f);
+                }
+                tSeq = (System.nanoTime() - t0) * 1e-6 / numTicks;
+                t0 = System.nanoTime();
+                for (int i = 0; i < numTicks; i++) {
+                    parallel.update(store, i, false, 0.9f);
+                }
+                tPar = (System.nanoTime() - t0) * 1e-6 / numTicks;
+            }
+            System.out.printf("%6d ribbons: update iterator %.3f ms, "
+                    + "sequential %.3f ms, %d threads %.3f ms\n", size, tIter,
+                    tSeq, numThreads, tPar);
+
+            // removal of every other ribbon (e.g. after a message change)
+            List<Ribbon> list = new ArrayList<Ribbon>(ribbons);
+            t0 = System.nanoTime();
+            int idx = 0;
+            for (Iterator<Ribbon> it = list.iterator(); it.hasNext(); idx++) {
+                it.next();
+                if ((idx & 1) == 0) {
+                    it.remove();
+                }
+            }
+            double tRemove = (System.nanoTime() - t0) * 1e-6;
+            for (int i = 0; i < size; i += 2) {
+                store.setExpired(i, true);
+            }
+            t0 = System.nanoTime();
+            int num = store.removeExpired(null);
+            double tCompact = (System.nanoTime() - t0) * 1e-6;
+            System.out.printf("%6d ribbons: remove %d iterator %.3f ms, "
+                    + "compaction %.3f ms\n", size, num, tRemove, tCompact);
+            if (list.size() != store.size()
+                    || !list.equals(new ArrayList<Ribbon>(store))) {
+                System.err.println("compaction result differs");
+                System.exit(1);
+            }
+        }
+
+        // batched release of all ribbons' poles
+        PoleReleaseBatch batch = new PoleReleaseBatch();
+        t0 = System.nanoTime();
+        for (Ribbon r : all) {
+            r.releasePoles(batch);
+        }
+        int numPoles = batch.flush();
+        double tRelease = (System.nanoTime() - t0) * 1e-6;
+        System.out.printf("released poles of %d ribbons in %.3f ms "
+                + "(%d poles updated)\n", all.size(), tRelease, numPoles);
+        sequential.shutdown();
+        parallel.shutdown();
+    }
+}
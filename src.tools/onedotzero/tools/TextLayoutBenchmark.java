@@ -0,0 +1,135 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import onedotzero.TextLayout;
+import onedotzero.TextureManager;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import processing.core.PFont;
+
+/**
+ * Command line benchmark comparing message truncation via repeated full
+ * string measurement (as previously done by {@link TextureManager}) with the
+ * prefix width & binary search approach of {@link TextLayout}. Uses the entry
+ * titles of the sample feed in the assets folder and verifies both methods
+ * produce identical results. Must be run from the project root folder. Usage:
+ * 
+ * <pre>
+ * java onedotzero.tools.TextLayoutBenchmark [texWidth] [numRounds]
+ * </pre>
+ */
+public class TextLayoutBenchmark {
+
+    private static final String FEED = "assets/feeds/search20090911.xml";
+    private static final String FONT = "assets/fonts/odzroman-64.vlw";
+
+    private static final int NUM_ITERATIONS = 200;
+
+    private static float measure(PFont font, String txt) {
+        float w = 0;
+        for (int i = 0, num = txt.length(); i < num; i++) {
+            w += font.width(txt.charAt(i)) * font.size;
+        }
+        return w;
+    }
+
+    private static String truncateLegacy(PFont font, String txt,
+            float maxWidth) {
+        boolean isTruncated = false;
+        if (measure(font, txt) > maxWidth) {
+            while (measure(font, txt + TextureManager.ELLIPSE) > maxWidth) {
+                txt = txt.substring(0, txt.length() - 1);
+                isTruncated = true;
+            }
+        }
+        if (isTruncated) {
+            txt += TextureManager.ELLIPSE;
+        }
+        return txt;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int texWidth = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int numRounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        float maxWidth = texWidth - TextureManager.INDENT * 2;
+        PFont font = new PFont(new FileInputStream(FONT));
+        TextLayout layout = TextLayout.forFont(font);
+
+        Document doc =
+                DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                        .parse(new File(FEED));
+        NodeList nodes = doc.getElementsByTagName("title");
+        List<String> titles = new ArrayList<String>();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            titles.add(nodes.item(i).getTextContent());
+        }
+        int numTruncated = 0;
+        int numErrors = 0;
+        for (String t : titles) {
+            String ref = truncateLegacy(font, t, maxWidth);
+            if (!ref.equals(layout.truncate(t, maxWidth,
+                    TextureManager.ELLIPSE))) {
+                numErrors++;
+            }
+            if (!ref.equals(t)) {
+                numTruncated++;
+            }
+        }
+        System.out.println("titles: " + titles.size() + ", truncated: "
+                + numTruncated + ", mismatches: " + numErrors);
+
+        int check = 0;
+        for (int k = 0; k < numRounds; k++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < NUM_ITERATIONS; i++) {
+                for (String t : titles) {
+                    check += truncateLegacy(font, t, maxWidth).length();
+                }
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < NUM_ITERATIONS; i++) {
+                for (String t : titles) {
+                    check +=
+                            layout.truncate(t, maxWidth,
+                                    TextureManager.ELLIPSE).length();
+                }
+            }
+            long t2 = System.nanoTime();
+            double n = NUM_ITERATIONS * titles.size();
+            System.out.printf(
+                    "round %d: legacy: %.2f us/title, layout: %.2f us/title\n",
+                    k, (t1 - t0) * 1e-3 / n, (t2 - t1) * 1e-3 / n);
+        }
+        System.out.println("checksum: " + check);
+        if (numErrors > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.tools;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.media.opengl.GL;
+
+import onedotzero.MipmapBuilder;
+import onedotzero.Texture;
+import processing.core.PConstants;
+import processing.core.PImage;
+
+import com.sun.opengl.util.BufferUtil;
+
+/**
+ * Command line benchmark for the CPU side of message texture uploads. Compares
+ * the bulk pixel conversion of {@link Texture} with the previous per byte
+ * implementation (verifying both produce identical buffers for RGB & RGBA,
+ * incl. images smaller than the texture), measures the single channel
+ * luminance conversion used for message strips and mipmap creation with
+ * different numbers of {@link MipmapBuilder} threads. Usage:
+ * 
+ * <pre>
+ * java onedotzero.tools.TextureUploadBenchmark [texWidth] [maxThreads]
+ * </pre>
+ */
+public class TextureUploadBenchmark {
+
+    private static final int TEX_HEIGHT = 64;
+    private static final int NUM_ITERATIONS = 50;
+    private static final int NUM_ROUNDS = 3;
+
+    private static boolean compare(ByteBuffer a, ByteBuffer b) {
+        return a.duplicate().equals(b.duplicate());
+    }
+
+    private static ByteBuffer convertLegacy(PImage img, int width,
+            int height, boolean hasAlpha) {
+        int bytesPerPixel = hasAlpha ? 4 : 3;
+        ByteBuffer rgbaBuffer =
+                BufferUtil.newByteBuffer(width * height * bytesPerPixel);
+        for (int y = height - 1; y >= 0; y--) {
+            for (int x = 0, idx = y * img.width; x < width; x++) {
+                int c =
+                        (y < img.height && x < img.width)
+                                ? img.pixels[idx++]
+                                : 0;
+                rgbaBuffer.put((byte) (c >> 16 & 0xff));
+                rgbaBuffer.put((byte) (c >> 8 & 0xff));
+                rgbaBuffer.put((byte) (c & 0xff));
+                if (hasAlpha) {
+                    rgbaBuffer.put((byte) (c >>> 24 & 0xff));
+                }
+            }
+        }
+        rgbaBuffer.flip();
+        return rgbaBuffer;
+    }
+
+    private static PImage createImage(Random rnd, int width, int height) {
+        PImage img = new PImage(width, height, PConstants.ARGB);
+        for (int i = 0; i < img.pixels.length; i++) {
+            img.pixels[i] = rnd.nextInt();
+        }
+        return img;
+    }
+
+    public static void main(String[] args) {
+        int texWidth = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int maxThreads =
+                args.length > 1 ? Integer.parseInt(args[1]) : Runtime
+                        .getRuntime().availableProcessors();
+        Random rnd = new Random(23);
+        int numErrors = 0;
+        PImage[] images =
+                new PImage[] { createImage(rnd, texWidth, TEX_HEIGHT),
+                        createImage(rnd, texWidth - 37, TEX_HEIGHT - 5) };
+        for (PImage img : images) {
+            for (int i = 0; i < 2; i++) {
+                boolean hasAlpha = i == 0;
+                ByteBuffer legacy =
+                        convertLegacy(img, texWidth, TEX_HEIGHT, hasAlpha);
+                ByteBuffer bulk =
+                        Texture.getTextureByteBuffer(img, texWidth,
+                                TEX_HEIGHT, hasAlpha);
+                if (!compare(legacy, bulk)) {
+                    numErrors++;
+                }
+            }
+        }
+        System.out.println("conversion mismatches: " + numErrors);
+
+        PImage img = images[0];
+        for (int k = 0; k < NUM_ROUNDS; k++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < NUM_ITERATIONS; i++) {
+                convertLegacy(img, texWidth, TEX_HEIGHT, true);
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < NUM_ITERATIONS; i++) {
+                Texture.getTextureByteBuffer(img, texWidth, TEX_HEIGHT, true);
+            }
+            long t2 = System.nanoTime();
+            for (int i = 0; i < NUM_ITERATIONS; i++) {
+                Texture.getTextureByteBuffer(img, texWidth, TEX_HEIGHT,
+                        GL.GL_LUMINANCE);
+            }
+            long t3 = System.nanoTime();
+            System.out.printf(
+                    "round %d: legacy: %.3f ms, bulk: %.3f ms, "
+                            + "luminance: %.3f ms\n", k, (t1 - t0) * 1e-6
+                            / NUM_ITERATIONS, (t2 - t1) * 1e-6
+                            / NUM_ITERATIONS, (t3 - t2) * 1e-6
+                            / NUM_ITERATIONS);
+        }
+
+        ByteBuffer base =
+                Texture.getTextureByteBuffer(img, texWidth, TEX_HEIGHT, true);
+        ByteBuffer[] reference = null;
+        for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+            MipmapBuilder builder = new MipmapBuilder(numThreads);
+            ByteBuffer[] levels = builder.build(base, texWidth, TEX_HEIGHT, 4);
+            if (reference == null) {
+                reference = levels;
+            } else {
+                for (int i = 0; i < levels.length; i++) {
+                    if (!compare(reference[i], levels[i])) {
+                        numErrors++;
+                    }
+                }
+            }
+            double best = Double.MAX_VALUE;
+            for (int k = 0; k < NUM_ROUNDS; k++) {
+                long t0 = System.nanoTime();
+                for (int i = 0; i < NUM_ITERATIONS; i++) {
+                    builder.build(base, texWidth, TEX_HEIGHT, 4);
+                }
+                best =
+                        Math.min(best, (System.nanoTime() - t0) * 1e-6
+                                / NUM_ITERATIONS);
+            }
+            System.out.printf("mipmaps (%d levels), %d threads: %.3f ms\n",
+                    levels.length, numThreads, best);
+            builder.shutdown();
+        }
+        System.out.println("total mismatches: " + numErrors);
+        if (numErrors > 0) {
+            System.exit(1);
+        }
+    }
+}
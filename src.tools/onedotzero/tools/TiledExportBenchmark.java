@@ -0,0 +1,122 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import onedotzero.export.ImageEncoders;
+import onedotzero.export.RawEncoder;
+import onedotzero.export.TileWriter;
+
+/**
+ * Command line tool simulating a tiled poster export with the streaming
+ * {@link TileWriter}. Each tile is filled with a pattern derived from its
+ * position, written into the output file and afterwards a random sample of
+ * pixels is read back & verified. Reports throughput and the peak heap usage,
+ * which should stay close to the size of a single tile. Usage:
+ * 
+ * <pre>
+ * java onedotzero.tools.TiledExportBenchmark [tileWidth] [tileHeight] [numTiles] [format] [outputDir]
+ * </pre>
+ */
+public class TiledExportBenchmark {
+
+    private static final int NUM_SAMPLES = 10000;
+
+    private static int getPixel(int x, int y) {
+        return 0xff000000 | (x * 31 + y * 7) & 0xffffff ^ (y << 12);
+    }
+
+    private static long getUsedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int tw = args.length > 0 ? Integer.parseInt(args[0]) : 1280;
+        int th = args.length > 1 ? Integer.parseInt(args[1]) : 720;
+        int numTiles = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        String format = args.length > 3 ? args[3] : "tga";
+        File dir =
+                new File(args.length > 4 ? args[4] : System
+                        .getProperty("java.io.tmpdir"));
+        RawEncoder encoder = ImageEncoders.createStreaming(format);
+        if (encoder == null) {
+            System.err.println("unsupported format: " + format);
+            System.exit(1);
+        }
+        File file = new File(dir, "tiledexport." + format);
+        System.gc();
+        long heap0 = getUsedHeap();
+        long peak = 0;
+        int[] pixels = new int[tw * th];
+        long t0 = System.nanoTime();
+        TileWriter writer = new TileWriter(encoder, file, tw, th, numTiles);
+        for (int ty = 0; ty < numTiles; ty++) {
+            for (int tx = 0; tx < numTiles; tx++) {
+                for (int y = 0, i = 0; y < th; y++) {
+                    for (int x = 0; x < tw; x++) {
+                        pixels[i++] = getPixel(tx * tw + x, ty * th + y);
+                    }
+                }
+                writer.writeTile(pixels, tx, ty);
+                peak = Math.max(peak, getUsedHeap() - heap0);
+            }
+        }
+        writer.close();
+        double secs = (System.nanoTime() - t0) * 1e-9;
+        int w = writer.getWidth();
+        int h = writer.getHeight();
+        double mb = file.length() / (1024.0 * 1024.0);
+        System.out.printf("image: %dx%d, %d tiles, file: %.1f MB\n", w, h,
+                numTiles * numTiles, mb);
+        System.out.printf("time: %.2f s (%.1f MB/s), peak heap: %.1f MB, "
+                + "tile: %.1f MB\n", secs, mb / secs, peak / 1048576.0,
+                pixels.length * 4 / 1048576.0);
+
+        boolean isTGA = format.equals("tga");
+        long offset = isTGA ? 18 : 0;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        Random rnd = new Random(23);
+        byte[] rgb = new byte[3];
+        int numErrors = 0;
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            int x = rnd.nextInt(w);
+            int y = rnd.nextInt(h);
+            raf.seek(offset + ((long) y * w + x) * 3);
+            raf.readFully(rgb);
+            int r = rgb[isTGA ? 2 : 0] & 0xff;
+            int g = rgb[1] & 0xff;
+            int b = rgb[isTGA ? 0 : 2] & 0xff;
+            if ((r << 16 | g << 8 | b) != (getPixel(x, y) & 0xffffff)) {
+                numErrors++;
+            }
+        }
+        raf.close();
+        file.delete();
+        System.out.println("mismatches: " + numErrors);
+        if (numErrors > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import toxi.geom.Vec2D;
+
+/**
+ * Handle for a message texture which is still being rendered in the
+ * background by the {@link TextureManager}. Until the actual texture has been
+ * uploaded, all calls are forwarded to a shared placeholder texture.
+ * Afterwards the handle transparently forwards to the real texture, so ribbons
+ * created in the meantime don't need to be updated.
+ */
+public class AsyncTexture extends Texture {
+
+    protected final Texture placeholder;
+    protected volatile Texture target;
+    protected boolean isDeleted;
+
+    /**
+     * @param placeholder
+     *            texture to use until the real one is available
+     * @param width
+     *            final texture width
+     * @param height
+     *            final texture height
+     */
+    protected AsyncTexture(Texture placeholder, int width, int height) {
+        super(placeholder, width, height);
+        this.placeholder = placeholder;
+        this.target = placeholder;
+    }
+
+    @Override
+    public void bind() {
+        target.bind();
+    }
+
+    /**
+     * Deletes the actual texture, if already available. Otherwise the pending
+     * texture will be discarded once it's ready.
+     */
+    @Override
+    public void delete() {
+        if (!isDeleted) {
+            if (target != placeholder) {
+                target.delete();
+            }
+            isDeleted = true;
+        }
+    }
+
+    @Override
+    public Texture getBaseTexture() {
+        return target.getBaseTexture();
+    }
+
+    @Override
+    public Vec2D getMaxUV() {
+        return target.getMaxUV();
+    }
+
+    @Override
+    public Vec2D getMinUV() {
+        return target.getMinUV();
+    }
+
+    /**
+     * @return true, if the actual texture is available
+     */
+    public boolean isReady() {
+        return target != placeholder;
+    }
+
+    @Override
+    public float mapU(float u) {
+        return target.mapU(u);
+    }
+
+    @Override
+    public float mapV(float v) {
+        return target.mapV(v);
+    }
+
+    /**
+     * Sets the actual texture. Called by the {@link TextureManager} from the
+     * GL thread.
+     * 
+     * @param tex
+     */
+    protected void setTarget(Texture tex) {
+        target = tex;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import toxi.geom.Vec2D;
+
+/**
+ * A single strip stored in a row of a {@link TextureAtlas} page. Binding this
+ * texture binds the entire page, texture coordinates are mapped into the row
+ * using {@link #mapU(float)} & {@link #mapV(float)}. Deleting it only frees
+ * up the row for reuse.
+ */
+public class AtlasTexture extends Texture {
+
+    protected final TextureAtlas atlas;
+    protected final Texture page;
+    protected final int slot;
+
+    protected final float u0, v0;
+    protected final float uScale, vScale;
+
+    protected boolean isDeleted;
+
+    protected AtlasTexture(TextureAtlas atlas, Texture page, int slot, int y,
+            int width, int height) {
+        super(page, width, height);
+        this.atlas = atlas;
+        this.page = page;
+        this.slot = slot;
+        this.u0 = 0;
+        this.v0 = (float) y / page.height;
+        this.uScale = (float) width / page.width;
+        this.vScale = (float) height / page.height;
+    }
+
+    /**
+     * Releases the texture's row in the atlas. The page itself is kept.
+     */
+    @Override
+    public void delete() {
+        if (!isDeleted) {
+            atlas.release(this);
+            isDeleted = true;
+        }
+    }
+
+    @Override
+    public Texture getBaseTexture() {
+        return page;
+    }
+
+    @Override
+    public Vec2D getMaxUV() {
+        return new Vec2D(u0 + uScale, v0 + vScale);
+    }
+
+    @Override
+    public Vec2D getMinUV() {
+        return new Vec2D(u0, v0);
+    }
+
+    @Override
+    public float mapU(float u) {
+        return u0 + u * uScale;
+    }
+
+    @Override
+    public float mapV(float v) {
+        return v0 + v * vScale;
+    }
+}
@@ -20,6 +20,7 @@
 package onedotzero;
 
 import processing.core.PApplet;
+import processing.core.PGraphics;
 import toxi.geom.Quaternion;
 import toxi.geom.Vec3D;
 import toxi.math.MathUtils;
@@ -69,15 +70,25 @@ public class CameraState {
     }
 
     public void apply(PApplet app) {
+        apply(app.g);
+    }
+
+    /**
+     * Applies the camera transformation to the given (e.g. offscreen)
+     * graphics context.
+     * 
+     * @param g
+     */
+    public void apply(PGraphics g) {
         float[] axis = tiltOrientation.toAxisAngle();
-        app.rotate(axis[0], axis[1], axis[2], axis[3]);
+        g.rotate(axis[0], axis[1], axis[2], axis[3]);
         if (isFlipped) {
-            app.rotateZ(MathUtils.PI);
+            g.rotateZ(MathUtils.PI);
         }
-        app.rotateY(rotation.y + camModY.value);
-        app.rotateX(rotation.x + camModX.value);
-        app.scale(zoom);
-        app.translate(pos.x, pos.y, pos.z);
+        g.rotateY(rotation.y + camModY.value);
+        g.rotateX(rotation.x + camModX.value);
+        g.scale(zoom);
+        g.translate(pos.x, pos.y, pos.z);
     }
 
     public void enableModulation(boolean state) {
@@ -89,7 +100,34 @@ public class CameraState {
     }
 
     public void perspective(PApplet app) {
-        app.perspective(fov, (float) app.width / app.height, near, far);
+        perspective(app.g);
+    }
+
+    public void perspective(PGraphics g) {
+        g.perspective(fov, (float) g.width / g.height, near, far);
+    }
+
+    /**
+     * Copies the current view (all parameters used by
+     * {@link #apply(PGraphics)} & {@link #perspective(PGraphics)}) of the
+     * given camera, e.g. to create a snapshot for another thread.
+     * 
+     * @param cam
+     *            camera to copy
+     * @return itself
+     */
+    public CameraState set(CameraState cam) {
+        pos.set(cam.pos);
+        rotation.set(cam.rotation);
+        tiltOrientation.set(cam.tiltOrientation);
+        camModX.value = cam.camModX.value;
+        camModY.value = cam.camModY.value;
+        zoom = cam.zoom;
+        fov = cam.fov;
+        near = cam.near;
+        far = cam.far;
+        isFlipped = cam.isFlipped;
+        return this;
     }
 
     public void setZoomMod(AbstractWave wave) {
@@ -97,6 +135,13 @@ public class CameraState {
     }
 
     public void update(PApplet app) {
+        update();
+    }
+
+    /**
+     * Updates all interpolated & modulated parameters by one step.
+     */
+    public void update() {
         tiltOrientation.interpolateToSelf(targetTiltOrient, 0.05f);
         if (Float.isInfinite(tiltOrientation.x)
                 || Float.isNaN(tiltOrientation.x)) {
@@ -0,0 +1,174 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import onedotzero.poles.ParticlePole3D;
+
+/**
+ * Immutable (once published) state of a single simulation step, as needed to
+ * render a frame: the camera view and the scroll position & displacement of
+ * all visible ribbons. Snapshots are filled by the simulation thread and
+ * handed over to the render thread via a {@link TripleBuffer}, so all arrays
+ * are reused between frames. The ribbons themselves are referenced, but only
+ * their immutable geometry is used for drawing.
+ */
+public class FrameSnapshot {
+
+    /**
+     * Camera view of this frame
+     */
+    public final CameraState camera = new CameraState();
+
+    /**
+     * Poles to visualize in debug mode (empty if disabled)
+     */
+    public final List<ParticlePole3D> debugPoles =
+            new ArrayList<ParticlePole3D>();
+
+    protected Ribbon[] ribbons = new Ribbon[64];
+    protected double[] scrollPos = new double[64];
+    protected float[] offsets = new float[64 * 3];
+    protected int numRibbons;
+
+    protected int sequenceID;
+    protected long numExpired;
+
+    /**
+     * Records the current scroll position & displacement of the given ribbon.
+     * Ribbons are drawn in the order they've been added.
+     * 
+     * @param r
+     */
+    public void add(Ribbon r) {
+        if (numRibbons == ribbons.length) {
+            int size = numRibbons * 2;
+            Ribbon[] newRibbons = new Ribbon[size];
+            System.arraycopy(ribbons, 0, newRibbons, 0, numRibbons);
+            ribbons = newRibbons;
+            double[] newPos = new double[size];
+            System.arraycopy(scrollPos, 0, newPos, 0, numRibbons);
+            scrollPos = newPos;
+            float[] newOffsets = new float[size * 3];
+            System.arraycopy(offsets, 0, newOffsets, 0, numRibbons * 3);
+            offsets = newOffsets;
+        }
+        ribbons[numRibbons] = r;
+        scrollPos[numRibbons] = r.getScrollPosition();
+        r.getDisplacement(offsets, numRibbons * 3);
+        numRibbons++;
+    }
+
+    /**
+     * Removes all ribbons & debug poles.
+     */
+    public void clear() {
+        for (int i = 0; i < numRibbons; i++) {
+            ribbons[i] = null;
+        }
+        numRibbons = 0;
+        debugPoles.clear();
+    }
+
+    /**
+     * Draws all recorded ribbons using the given sink. Must be called from the
+     * GL thread after {@link #requestTextures(TextureManager)}.
+     * 
+     * @param sink
+     */
+    public void draw(RibbonStripSink sink) {
+        draw(sink, null);
+    }
+
+    /**
+     * Like {@link #draw(RibbonStripSink)}, but skips ribbons outside the view
+     * and reduces the detail of far away ones, as decided by the given culler.
+     * 
+     * @param sink
+     * @param culler
+     *            culler set up for the current view (or null to draw all
+     *            ribbons in full detail)
+     */
+    public void draw(RibbonStripSink sink, RibbonCuller culler) {
+        for (int i = 0, idx = 0; i < numRibbons; i++, idx += 3) {
+            ribbons[i].draw(sink, scrollPos[i], offsets[idx], offsets[idx + 1],
+                    offsets[idx + 2], culler);
+        }
+    }
+
+    /**
+     * @return number of ribbons expired up to this frame (see
+     *         {@link #setNumExpired(long)})
+     */
+    public long getNumExpired() {
+        return numExpired;
+    }
+
+    /**
+     * @return number of ribbons
+     */
+    public int getNumRibbons() {
+        return numRibbons;
+    }
+
+    /**
+     * @return frame number of the simulation
+     */
+    public int getSequenceID() {
+        return sequenceID;
+    }
+
+    /**
+     * Assigns textures to ribbons which haven't got one yet. Must be called
+     * from the GL thread.
+     * 
+     * @param textureManager
+     */
+    public void requestTextures(TextureManager textureManager) {
+        for (int i = 0; i < numRibbons; i++) {
+            Ribbon r = ribbons[i];
+            if (r.getTexture() == null && r.getMessage() != null) {
+                r.setTexture(textureManager.getTextureFor(r.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Stores the total number of ribbons expired by the simulation up to this
+     * frame. Since expired ribbons aren't part of this & any later snapshot,
+     * the render thread can safely clean them up once it has acquired this
+     * snapshot.
+     * 
+     * @param num
+     */
+    public void setNumExpired(long num) {
+        numExpired = num;
+    }
+
+    /**
+     * @param id
+     *            frame number of the simulation
+     */
+    public void setSequenceID(int id) {
+        sequenceID = id;
+    }
+}
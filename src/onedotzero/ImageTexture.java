@@ -0,0 +1,65 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import javax.media.opengl.GL;
+
+import processing.core.PImage;
+
+/**
+ * Texture backed by a {@link PImage} instead of an OpenGL texture object, used
+ * to render ribbons with Processing's software renderer when no GL context is
+ * available (see {@link OfflineRenderer}).
+ */
+public class ImageTexture extends Texture {
+
+    protected PImage image;
+
+    /**
+     * @param img
+     *            texture bitmap (ARGB)
+     */
+    public ImageTexture(PImage img) {
+        super(img.width, img.height, GL.GL_RGBA);
+        this.image = img;
+    }
+
+    /**
+     * Does nothing, the image needs to be passed to the renderer explicitly.
+     */
+    @Override
+    public void bind() {
+    }
+
+    /**
+     * Releases the image.
+     */
+    @Override
+    public void delete() {
+        image = null;
+    }
+
+    /**
+     * @return texture bitmap
+     */
+    public PImage getImage() {
+        return image;
+    }
+}
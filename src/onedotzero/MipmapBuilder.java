@@ -0,0 +1,238 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.sun.opengl.util.BufferUtil;
+
+/**
+ * Computes the complete mipmap chain of a texture on the CPU using a 2x2 box
+ * filter, as a replacement for {@link javax.media.opengl.glu.GLU}
+ * gluBuild2DMipmaps(). Large levels are split into horizontal bands which are
+ * filtered in parallel by a pool of worker threads. All levels can be uploaded
+ * directly via glTexImage2D(), avoiding a second upload of the base level.
+ * Instances are thread safe.
+ */
+public class MipmapBuilder {
+
+    /**
+     * Filters a band of rows of a single mipmap level.
+     */
+    protected static class Band implements Callable<Object> {
+
+        protected final byte[] src, dest;
+        protected final int srcWidth, srcHeight;
+        protected final int destWidth;
+        protected final int bpp;
+        protected final int y1, y2;
+
+        protected Band(byte[] src, int srcWidth, int srcHeight, byte[] dest,
+                int destWidth, int bpp, int y1, int y2) {
+            this.src = src;
+            this.srcWidth = srcWidth;
+            this.srcHeight = srcHeight;
+            this.dest = dest;
+            this.destWidth = destWidth;
+            this.bpp = bpp;
+            this.y1 = y1;
+            this.y2 = y2;
+        }
+
+        public Object call() {
+            int srcStride = srcWidth * bpp;
+            int dx = srcWidth > 1 ? bpp : 0;
+            int dy = srcHeight > 1 ? srcStride : 0;
+            for (int y = y1; y < y2; y++) {
+                int s = (srcHeight > 1 ? y * 2 : y) * srcStride;
+                int d = y * destWidth * bpp;
+                for (int x = 0; x < destWidth; x++) {
+                    for (int c = 0; c < bpp; c++, s++) {
+                        int sum =
+                                (src[s] & 0xff) + (src[s + dx] & 0xff)
+                                        + (src[s + dy] & 0xff)
+                                        + (src[s + dx + dy] & 0xff);
+                        dest[d++] = (byte) ((sum + 2) >> 2);
+                    }
+                    s += dx;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Min. number of pixels of a level to be worth splitting into bands
+     */
+    public static final int MIN_PARALLEL_PIXELS = 16384;
+
+    protected static final Logger logger =
+            Logger.getLogger(MipmapBuilder.class.getName());
+
+    protected final ExecutorService executor;
+    protected final int numBands;
+
+    /**
+     * @param numThreads
+     *            number of worker threads (0 or 1 = filter on calling thread)
+     */
+    public MipmapBuilder(int numThreads) {
+        if (numThreads > 1) {
+            executor =
+                    Executors.newFixedThreadPool(numThreads,
+                            new ThreadFactory() {
+
+                                private int id;
+
+                                public Thread newThread(Runnable r) {
+                                    Thread t =
+                                            new Thread(r, "mipmapbuilder-"
+                                                    + (id++));
+                                    t.setDaemon(true);
+                                    return t;
+                                }
+                            });
+            numBands = numThreads;
+        } else {
+            executor = null;
+            numBands = 1;
+        }
+        logger.info("mipmap builder threads: " + numThreads);
+    }
+
+    /**
+     * Computes all mipmap levels of the given base image down to 1x1 pixels.
+     * The base buffer itself is returned as first element and is left
+     * unchanged.
+     * 
+     * @param base
+     *            level 0 pixels, tightly packed
+     * @param width
+     *            base width (power of 2)
+     * @param height
+     *            base height (power of 2)
+     * @param bytesPerPixel
+     *            number of channels (1 - 4)
+     * @return array of direct buffers, one per level
+     */
+    public ByteBuffer[] build(ByteBuffer base, int width, int height,
+            int bytesPerPixel) {
+        return build(base, width, height, bytesPerPixel, getNumLevels(width,
+                height));
+    }
+
+    /**
+     * Computes the given number of mipmap levels of the given base image. The
+     * base buffer itself is returned as first element and is left unchanged.
+     * 
+     * @param base
+     *            level 0 pixels, tightly packed
+     * @param width
+     *            base width (power of 2)
+     * @param height
+     *            base height (power of 2)
+     * @param bytesPerPixel
+     *            number of channels (1 - 4)
+     * @param numLevels
+     *            number of levels incl. the base level
+     * @return array of direct buffers, one per level
+     */
+    public ByteBuffer[] build(ByteBuffer base, int width, int height,
+            int bytesPerPixel, int numLevels) {
+        ByteBuffer[] levels = new ByteBuffer[numLevels];
+        levels[0] = base;
+        byte[] src = new byte[width * height * bytesPerPixel];
+        base.duplicate().get(src);
+        for (int i = 1; i < numLevels; i++) {
+            int w = Math.max(width >> 1, 1);
+            int h = Math.max(height >> 1, 1);
+            byte[] dest = new byte[w * h * bytesPerPixel];
+            filter(src, width, height, dest, w, h, bytesPerPixel);
+            levels[i] = BufferUtil.newByteBuffer(dest.length);
+            levels[i].put(dest).flip();
+            src = dest;
+            width = w;
+            height = h;
+        }
+        return levels;
+    }
+
+    /**
+     * Reduces a single level, splitting it into bands if it's large enough.
+     */
+    protected void filter(byte[] src, int srcWidth, int srcHeight,
+            byte[] dest, int destWidth, int destHeight, int bpp) {
+        if (executor == null || destWidth * destHeight < MIN_PARALLEL_PIXELS
+                || destHeight < numBands) {
+            new Band(src, srcWidth, srcHeight, dest, destWidth, bpp, 0,
+                    destHeight).call();
+            return;
+        }
+        List<Band> bands = new ArrayList<Band>(numBands);
+        for (int i = 0; i < numBands; i++) {
+            int y1 = destHeight * i / numBands;
+            int y2 = destHeight * (i + 1) / numBands;
+            bands.add(new Band(src, srcWidth, srcHeight, dest, destWidth, bpp,
+                    y1, y2));
+        }
+        try {
+            for (Future<Object> f : executor.invokeAll(bands)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("mipmap build interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("mipmap build failed", e
+                    .getCause());
+        }
+    }
+
+    /**
+     * @param width
+     * @param height
+     * @return number of mipmap levels incl. the base level
+     */
+    public static int getNumLevels(int width, int height) {
+        int num = 1;
+        for (int size = Math.max(width, height); size > 1; size >>= 1) {
+            num++;
+        }
+        return num;
+    }
+
+    /**
+     * Stops all worker threads.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -23,23 +23,19 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.URI;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Logger;
 
 import javax.media.opengl.GL;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
 
-import onedotzero.data.FeedPool;
 import onedotzero.data.SMSProvider;
 import onedotzero.data.UserMessageProvider;
 import onedotzero.data.FeedPool.FeedConfiguration;
 import onedotzero.export.FrameSequenceExporter;
 import onedotzero.export.Tiler;
+import onedotzero.message.MessageLayout;
 import onedotzero.message.MessageLine;
 import onedotzero.message.MessageScheduleListener;
 import onedotzero.message.MessageScheduler;
@@ -47,8 +43,7 @@ import onedotzero.message.UserMessage;
 import onedotzero.osc.InteractionStateListener;
 import onedotzero.osc.OSCManager;
 import onedotzero.poles.ParticlePole3D;
-import onedotzero.poles.PoleManager;
-import onedotzero.poles.strategies.RandomXPolePositioning;
+import onedotzero.poles.PoleReleaseBatch;
 import onedotzero.states.AppState;
 import onedotzero.states.IdentState;
 import onedotzero.states.IdleState;
@@ -58,16 +53,12 @@ import onedotzero.states.TiltState;
 import onedotzero.states.TouchState;
 import onedotzero.text.MessageFormatter;
 import onedotzero.text.WordWrapFormatter;
-import onedotzero.type.Alphabet;
-import onedotzero.type.CustomPoles;
-import onedotzero.type.LetterPoleGroup;
 import oscP5.OscMessage;
 import processing.core.PApplet;
 import processing.core.PFont;
 import processing.core.PImage;
 import processing.opengl.PGraphicsOpenGL;
 import toxi.color.TColor;
-import toxi.geom.AABB;
 import toxi.geom.Quaternion;
 import toxi.geom.Vec3D;
 import toxi.math.MathUtils;
@@ -158,11 +149,8 @@ public class ODZApp extends PApplet implements InteractionStateListener,
 
     private TColor bgColor;
 
-    private Alphabet alphabet;
-    private PoleManager poles;
-    private CustomPoles customPoles;
 
-    private FeedPool feedPool;
+    private RibbonSimulation sim;
     private TextureManager textureManager;
 
     private PGraphicsOpenGL pgl;
@@ -172,18 +160,22 @@ public class ODZApp extends PApplet implements InteractionStateListener,
     private ControlP5 ui;
     private CameraState camera;
     private ArcBall arcBall;
-    private AABB worldBounds = new AABB(new Vec3D(), new Vec3D(1500, 400, 500));
 
     private FrameSequenceExporter exporter;
     private Tiler tiler;
 
-    private List<Ribbon> ribbons = new ArrayList<Ribbon>();
-    private List<Ribbon> oldRibbons = new ArrayList<Ribbon>();
+    private final ConcurrentLinkedQueue<Ribbon> expiredRibbons =
+            new ConcurrentLinkedQueue<Ribbon>();
+    private long numExpired;
+    private long numCleanedUp;
+    private RibbonBatch ribbonBatch;
+    private RibbonBatchRenderer ribbonRenderer;
+    private RibbonCuller ribbonCuller;
 
     private MessageFormatter messageFormatter;
     private MessageScheduler messageScheduler;
     private UserMessageProvider userMessageProvider;
-    private UserMessage newMessage;
+    private volatile UserMessage newMessage;
     private String prevMessage;
     private long lastMessageTime;
 
@@ -192,14 +184,9 @@ public class ODZApp extends PApplet implements InteractionStateListener,
 
     private OSCManager osc;
 
-    private AppState appState;
+    private volatile AppState appState;
     private long lastAppStateChange;
 
-    private float ribbonWidth = 12;
-    private float letterScale = 1.75f;
-    private float maxScrollSpeed = 0.005f;
-    private int numNewRibbons = 1;
-    private float newRibbonChance = 0.5f;
 
     private boolean isDebug = false;
     private boolean isShiftDown = false;
@@ -211,47 +198,47 @@ public class ODZApp extends PApplet implements InteractionStateListener,
 
     private Textlabel uiLabelNumTiles;
 
-    private Vec3D centreExclusion;
     private Vec3D shakeDir = new Vec3D();
     private Vec3D targetTouchPos = new Vec3D();
     private Vec3D touchPos = new Vec3D();
 
     private int numExportTiles = 4;
-    private int numPoles = 60;
-    private int sequenceID;
-    private int maxRibbonCount = 500;
+    private int numTilesPerFrame = 4;
     private int camPresetID;
-    private int maxRibbonDelay;
     private float shakeEnergy;
     private float shakeMaxEnergy = 1200;
     private float shakeEnergyDecay = 0.95f;
 
     private PImage maskImg;
 
-    private int ribbonLoopCount;
+    private SimulationThread simulation;
+    private boolean isSimThreaded;
+    private TripleBuffer<FrameSnapshot> snapshots;
+    private FrameSnapshot snapshot;
+    private int prevSequenceID;
+    private final ConcurrentLinkedQueue<Runnable> simTasks =
+            new ConcurrentLinkedQueue<Runnable>();
+
 
     /**
-     * Initializes and adds a new single text ribbon in the space. The ribbon is
-     * created so that it flows through the currently least used letter.
+     * Cleans up all ribbons expired by the simulation up to the given number
+     * (see {@link FrameSnapshot#getNumExpired()}). Must be called from the GL
+     * thread.
+     * 
+     * @param num
+     *            total number of expired ribbons
      */
-    private void addRibbon() {
-        List<ParticlePole3D> poleSet;
-        LetterPoleGroup letter = poles.getLeastUsedLetter();
-        if (letter.hasInline() && letter.innerUsage < letter.outerUsage) {
-            poleSet = letter.inner;
-        } else {
-            poleSet = letter.outer;
-        }
-        FeedConfiguration fc = feedPool.getRandomActiveFeed();
-        Texture tex = textureManager.getTextureFor(fc.feed.getMessage());
-        Ribbon r = new Ribbon(poles, tex, fc, maxScrollSpeed, maxRibbonDelay);
-        if (r.create(poleSet, Vec3D.Y_AXIS, sequenceID, ribbonLoopCount)) {
-            ribbons.add(r);
+    private void cleanupExpiredRibbons(long num) {
+        while (numCleanedUp < num) {
+            expiredRibbons.poll().cleanup();
+            numCleanedUp++;
         }
     }
 
     /**
-     * Main update & rendering loop.
+     * Main rendering loop. Draws the latest snapshot published by the
+     * simulation. While exporting an image sequence (or if the simulation
+     * thread is disabled), the simulation is stepped once per frame instead.
      * 
      * @see processing.core.PApplet#draw()
      */
@@ -261,79 +248,41 @@ public class ODZApp extends PApplet implements InteractionStateListener,
             noCursor();
         }
         appState.pre(this);
-        if (newMessage != null) {
-            initPolesAndRibbonsForMessage(newMessage);
-            newMessage = null;
+        if (!tiler.isTiling()) {
+            boolean isLockstep = !isSimThreaded || exporter.isExporting();
+            simulation.setSynchronous(isLockstep);
+            if (isLockstep) {
+                simulation.step();
+            }
+            snapshot = snapshots.acquire();
+            cleanupExpiredRibbons(snapshot.getNumExpired());
+            // sequence restarts with each new message
+            if (snapshot.getSequenceID() < prevSequenceID) {
+                logger.info(textureManager.toString());
+            }
+            prevSequenceID = snapshot.getSequenceID();
         }
         pushMatrix();
         {
-            sequenceID++;
-            camera.perspective(this);
+            snapshot.camera.perspective(this);
             background(bgColor.toARGB());
             translate(width * 0.5f, height * 0.5f, 0);
             arcBall.apply();
-            if (!tiler.isTiling()) {
-                camera.update(this);
-            }
-            camera.apply(this);
-            tiler.pre();
+            snapshot.camera.apply(this);
             gl.glDepthMask(false);
             gl.glEnable(GL.GL_BLEND);
             gl.glBlendFunc(GL.GL_SRC_ALPHA, GL.GL_ONE);
             gl.glTexParameterf(GL.GL_TEXTURE_2D,
                     GL.GL_TEXTURE_MAX_ANISOTROPY_EXT, 4f);
             if (!tiler.isTiling()) {
-                shakeEnergy *= shakeEnergyDecay;
-                appState.update(this);
-                if (doUpdate) {
-                    if (ribbons.size() < maxRibbonCount) {
-                        for (int i = 0; i < numNewRibbons
-                                && ribbons.size() < maxRibbonCount; i++) {
-                            if (random(1f) < newRibbonChance) {
-                                addRibbon();
-                            }
-                        }
-                    }
-                }
-                float displaceDecay = (appState != SHAKE_STATE ? 0.9f : 0.99f);
-                for (Iterator<Ribbon> i = oldRibbons.iterator(); i.hasNext();) {
-                    Ribbon r = i.next();
-                    if (!r.update(sequenceID, doUpdate, displaceDecay)) {
-                        r.cleanup();
-                        i.remove();
-                    }
-                }
-                for (Iterator<Ribbon> i = ribbons.iterator(); i.hasNext();) {
-                    Ribbon r = i.next();
-                    if (!r.update(sequenceID, doUpdate, displaceDecay)) {
-                        r.cleanup();
-                        i.remove();
-                    }
-                }
+                textureManager.update();
+                snapshot.requestTextures(textureManager);
             }
-            pgl.beginGL();
-            {
-                gl.glEnable(GL.GL_TEXTURE_2D);
-                for (Ribbon r : oldRibbons) {
-                    r.draw(g, gl);
-                }
-                for (Ribbon r : ribbons) {
-                    r.draw(g, gl);
-                }
-            }
-            pgl.endGL();
-            if (isDebug) {
-                noStroke();
-                textSize(32);
-                for (ParticlePole3D p : poles.c12poles) {
-                    drawDebugPole(p);
-                }
-                for (ParticlePole3D p : poles.c3poles) {
-                    drawDebugPole(p);
-                }
+            if (tiler.isTiling()) {
+                drawTiles();
+            } else {
+                drawScene();
             }
-            noTint();
-            tiler.post();
             exporter.update(g);
         }
         popMatrix();
@@ -375,14 +324,15 @@ public class ODZApp extends PApplet implements InteractionStateListener,
     private void drawDebugPole(ParticlePole3D p) {
         pushMatrix();
         translate(p.x, p.y, p.z);
-        if (customPoles != null && customPoles.points.indexOf(p) != -1) {
+        if (sim.customPoles != null
+                && sim.customPoles.points.indexOf(p) != -1) {
             fill(255, 255, 0);
             box(5);
         } else {
             fill(p.charge < 0 ? 0xff0000ff : 0xffff0000);
             box(2);
         }
-        text("" + p.hitCount, 0, 0);
+        text("" + p.getHitCount(), 0, 0);
         popMatrix();
     }
 
@@ -412,6 +362,68 @@ public class ODZApp extends PApplet implements InteractionStateListener,
         hint(ENABLE_DEPTH_TEST);
     }
 
+    /**
+     * Draws all ribbons (and debug info) using the current camera settings
+     * (and tile frustum, if tiling). Ribbons outside the view are culled.
+     */
+    private void drawScene() {
+        if (ribbonCuller != null) {
+            ribbonCuller.setView(pgl.projection, pgl.modelview, true, height);
+        }
+        pgl.beginGL();
+        {
+            gl.glEnable(GL.GL_TEXTURE_2D);
+            if (ribbonRenderer != null) {
+                ribbonBatch.clear();
+                snapshot.draw(ribbonBatch, ribbonCuller);
+                ribbonRenderer.draw(ribbonBatch);
+            } else {
+                snapshot.draw(new Ribbon.ImmediateModeSink(gl), ribbonCuller);
+            }
+        }
+        pgl.endGL();
+        if (isDebug) {
+            noStroke();
+            textSize(32);
+            for (ParticlePole3D p : snapshot.debugPoles) {
+                drawDebugPole(p);
+            }
+        }
+        noTint();
+    }
+
+    /**
+     * Renders & captures the next batch of tiles of an active tiled export.
+     * The scene is frozen during this time, so all tiles of a batch are drawn
+     * into the back buffer one after another.
+     */
+    private void drawTiles() {
+        int num = tiler.getTilesPerFrame();
+        for (int i = 0; i < num && tiler.isTiling(); i++) {
+            if (i > 0) {
+                background(bgColor.toARGB());
+            }
+            tiler.pre();
+            drawScene();
+            tiler.post();
+        }
+    }
+
+    /**
+     * Releases the poles of a ribbon removed from the simulation (batched, see
+     * {@link PoleReleaseBatch}) and queues it
+     * for cleanup by the render thread, once it's not part of any snapshot
+     * anymore.
+     * 
+     * @param r
+     *            ribbon
+     */
+    private void expireRibbon(Ribbon r) {
+        r.releasePoles(sim.poleReleases);
+        expiredRibbons.offer(r);
+        numExpired++;
+    }
+
     /**
      * Returns the camera configuration.
      * 
@@ -458,21 +470,23 @@ public class ODZApp extends PApplet implements InteractionStateListener,
     }
 
     /**
-     * Returns list of expired, but still visible ribbons.
+     * Returns list of expired, but still visible ribbons. Must only be used
+     * from the simulation thread.
      * 
      * @return list of ribbons
      */
     public List<Ribbon> getOldRibbons() {
-        return oldRibbons;
+        return sim.oldRibbons;
     }
 
     /**
-     * Returns list of active ribbons.
+     * Returns list of active ribbons. Must only be used from the simulation
+     * thread.
      * 
      * @return list of ribbons
      */
     public List<Ribbon> getRibbons() {
-        return ribbons;
+        return sim.ribbons;
     }
 
     /**
@@ -493,22 +507,6 @@ public class ODZApp extends PApplet implements InteractionStateListener,
         return tiler;
     }
 
-    /**
-     * Initializes alphabet class structure from XML using JAXB.
-     * 
-     * @see Alphabet
-     */
-    private void initAlphabet() {
-        try {
-            JAXBContext context = JAXBContext.newInstance(Alphabet.class);
-            File file = new File("assets/alphabet/alphabet.xml");
-            alphabet = (Alphabet) context.createUnmarshaller().unmarshal(file);
-            alphabet.init();
-        } catch (JAXBException e) {
-            e.printStackTrace();
-        }
-    }
-
     /**
      * Initializes camera configuration & arc ball navigation using default
      * settings from app.properties
@@ -539,30 +537,35 @@ public class ODZApp extends PApplet implements InteractionStateListener,
     private void initDefaults() {
         bgColor = TColor.newHex(config.getProperty("background.col", "000000"));
         frameRate(config.getInt("app.framerate", 60));
-        numPoles = config.getInt("defaults.poles.count", numPoles);
-        centreExclusion =
-                new Vec3D(0, config.getFloat("defaults.poles.exclusion.depth",
-                        0.33f), config.getFloat(
-                        "defaults.poles.exclusion.height", 0.5f));
-        maxRibbonCount =
-                config.getInt("defaults.ribbon.totalmaxcount", maxRibbonCount);
-        maxRibbonDelay =
-                config.getInt("defaults.ribbon.spawndelay", maxRibbonDelay);
-        ribbonLoopCount = config.getInt("defaults.ribbon.loopcount", 2);
-        ribbonWidth = config.getFloat("defaults.ribbon.width", ribbonWidth);
-        letterScale =
-                config.getFloat("defaults.ribbon.letter.scale", letterScale);
-        maxScrollSpeed =
-                config.getFloat("defaults.ribbon.maxscrollspeed", 0.005f);
-        numNewRibbons = config.getInt("defaults.ribbon.add.perframe", 1);
-        newRibbonChance = config.getFloat("defaults.ribbon.add.chance", 0.5f);
-        worldBounds.setExtent(new Vec3D(config.getFloat(
-                "defaults.bounds.extent.x", 1000), config.getFloat(
-                "defaults.bounds.extent.y", 400), config.getFloat(
-                "defaults.bounds.extent.z", 500)));
-
+        RibbonFactory factory =
+                new RibbonFactory(config.getInt(
+                        "defaults.ribbon.factory.threads", 2), config.getInt(
+                        "defaults.ribbon.factory.maxinflight", 16));
+        RibbonUpdater updater =
+                new RibbonUpdater(config.getInt(
+                        "defaults.ribbon.update.threads", 0), config.getInt(
+                        "defaults.ribbon.update.chunksize", 1000));
+        sim = new RibbonSimulation(config, factory, updater) {
+
+            @Override
+            protected void expireRibbon(Ribbon r) {
+                ODZApp.this.expireRibbon(r);
+            }
+        };
+        if (config.getBoolean("defaults.ribbon.render.batched", true)) {
+            ribbonBatch = new RibbonBatch();
+            ribbonRenderer = new RibbonBatchRenderer(gl);
+        }
+        if (config.getBoolean("defaults.ribbon.culling.enabled", true)) {
+            ribbonCuller =
+                    new RibbonCuller(config.getFloat(
+                            "defaults.ribbon.lod.spacing", 0));
+        }
         numExportTiles =
                 config.getInt("defaults.export.numtiles", numExportTiles);
+        numTilesPerFrame =
+                config.getInt("defaults.export.tilesperframe",
+                        numTilesPerFrame);
     }
 
     /**
@@ -587,19 +590,20 @@ public class ODZApp extends PApplet implements InteractionStateListener,
         ui.addTab(UI_FEEDS);
         ui.addTab(UI_EXPORT);
 
-        ui.addSlider("numPoles", 1, 20, numPoles, UI_X, UI_Y, 100, 14)
+        ui.addSlider("setNumPoles", 1, 20, sim.numPoles, UI_X, UI_Y, 100, 14)
                 .setLabel("Number of poles");
         ui.addSlider("setPoleHitCount", 1, 300,
-                poles.getMaxExternalPoleHitcount(), UI_X, UI_Y + 20, 100, 14)
-                .setLabel("max pole hitcount");
-        ui.addSlider("maxRibbonCount", 0, 1000, maxRibbonCount, UI_X,
+                sim.poles.getMaxExternalPoleHitcount(), UI_X, UI_Y + 20, 100,
+                14).setLabel("max pole hitcount");
+        ui.addSlider("setMaxRibbonCount", 0, 1000, sim.maxRibbonCount, UI_X,
                 UI_Y + 40, 100, 14).setLabel("max ribbon count");
-        ui.addSlider("setRibbonHitCount", 1, 150, poles.getMaxLetterHitCount(),
-                UI_X, UI_Y + 60, 100, 14).setLabel("max letter hitcount");
-        ui.addSlider("ribbonLoopCount", 0, 4, ribbonLoopCount, UI_X, UI_Y + 80,
-                100, 14).setLabel("letter loop count");
-        ui.addSlider("maxScrollSpeed", 0.001f, 0.02f, maxScrollSpeed, UI_X,
-                UI_Y + 100, 100, 14).setLabel("text scroll speed");
+        ui.addSlider("setRibbonHitCount", 1, 150,
+                sim.poles.getMaxLetterHitCount(), UI_X, UI_Y + 60, 100, 14)
+                .setLabel("max letter hitcount");
+        ui.addSlider("setRibbonLoopCount", 0, 4, sim.ribbonLoopCount, UI_X,
+                UI_Y + 80, 100, 14).setLabel("letter loop count");
+        ui.addSlider("setMaxScrollSpeed", 0.001f, 0.02f, sim.maxScrollSpeed,
+                UI_X, UI_Y + 100, 100, 14).setLabel("text scroll speed");
 
         ui.addToggle("isDebug", isDebug, UI_X, height - UI_Y - 184, 28, 28)
                 .setLabel("toggle debug mode");
@@ -658,15 +662,15 @@ public class ODZApp extends PApplet implements InteractionStateListener,
         s.setTab(UI_CAMERA);
 
         s =
-                ui.addSlider("setTargetPanY", -worldBounds.getExtent().y,
-                        worldBounds.getExtent().y, camera.pos.y, UI_X,
+                ui.addSlider("setTargetPanY", -sim.worldBounds.getExtent().y,
+                        sim.worldBounds.getExtent().y, camera.pos.y, UI_X,
                         UI_Y + 140, 200, 14);
         s.setLabel("cam offset Y");
         s.setTab(UI_CAMERA);
 
         s =
-                ui.addSlider("setTargetPanZ", -worldBounds.getExtent().z,
-                        worldBounds.getExtent().z, camera.pos.z, UI_X,
+                ui.addSlider("setTargetPanZ", -sim.worldBounds.getExtent().z,
+                        sim.worldBounds.getExtent().z, camera.pos.z, UI_X,
                         UI_Y + 160, 200, 14);
         s.setLabel("cam offset Z");
         s.setTab(UI_CAMERA);
@@ -694,7 +698,7 @@ public class ODZApp extends PApplet implements InteractionStateListener,
 
         int y = UI_Y;
         int feedID = 0;
-        for (FeedConfiguration f : feedPool) {
+        for (FeedConfiguration f : sim.feedPool) {
             Toggle t = ui.addToggle("toggleFeed", f.isEnabled, UI_X, y, 14, 14);
             t.setId(feedID);
             t.setLabel(f.feed.getName());
@@ -702,10 +706,10 @@ public class ODZApp extends PApplet implements InteractionStateListener,
 
                 @Override
                 public void controlEvent(ControlEvent e) {
-                    int num = feedPool.getActiveFeedCount();
+                    int num = sim.feedPool.getActiveFeedCount();
                     int id = e.controller().id();
-                    if (!feedPool.getFeedForID(id).isEnabled || num > 1) {
-                        feedPool.toggleFeedStatus(id);
+                    if (!sim.feedPool.getFeedForID(id).isEnabled || num > 1) {
+                        sim.feedPool.toggleFeedStatus(id);
                     }
                 }
             });
@@ -752,43 +756,12 @@ public class ODZApp extends PApplet implements InteractionStateListener,
      * @param isIdentity
      */
     private void initMessages(boolean isIdentity) {
-        feedPool = new FeedPool();
-        int numFeeds = config.getInt("feeds.count", 1);
-        for (int i = 0; i < numFeeds; i++) {
-            String feedID = "feed" + i;
-            String id = config.getProperty(feedID + ".id", "feed" + i);
-            String type = config.getProperty(feedID + ".type", "atom");
-            String url =
-                    config
-                            .getProperty(feedID + ".url",
-                                    "http://search.twitter.com/search.atom?q=onedotzero");
-            String hexCol = config.getProperty(feedID + ".col", "ffffff");
-            FeedConfiguration fc = null;
-            if (id != null && type != null && url != null && hexCol != null) {
-                TColor col = TColor.newHex(hexCol);
-                if (url.indexOf("http://") == -1) {
-                    File f = new File(sketchPath(url));
-                    URI u = f.toURI();
-                    url = u.toString();
-                }
-                if (type.equalsIgnoreCase("atom")) {
-                    fc = feedPool.addAtomFeed(id, url, col);
-                } else if (type.equalsIgnoreCase("rss")) {
-                    fc = feedPool.addRSSFeed(id, url, col);
-                }
-            }
-            if (fc != null) {
-                fc.isEnabled = config.getBoolean(feedID + ".enabled", true);
-            } else {
-                logger.warning("feed #" + i
-                        + " config invalid, ignoring this feed");
-            }
-        }
+        sim.initFeeds(new File(sketchPath));
         userMessageProvider =
                 new UserMessageProvider(config.getInt("message.log.count", 10));
         if (!isIdentity) {
             String userCol = config.getProperty("message.feed.col", "ffff00");
-            feedPool.addFeed("user", TColor.newHex(userCol),
+            sim.feedPool.addFeed("user", TColor.newHex(userCol),
                     userMessageProvider);
         }
         messageFormatter =
@@ -811,35 +784,20 @@ public class ODZApp extends PApplet implements InteractionStateListener,
         osc.addListener(this);
     }
 
-    private void initPoleManager() {
-        poles = new PoleManager(alphabet, worldBounds);
-        poles.setPositionStrategy(new RandomXPolePositioning());
-        poles.setMaxLetterHitcount(config.getInt(
-                "defaults.poles.letters.maxhitcount", 30));
-        poles.setMaxExternalPoleHitcount(config.getInt(
-                "defaults.poles.external.maxhitcount", 60));
-    }
-
     /**
      * (Re)Initializes the pole manager and loads optional, hardcoded custom
      * poles.
      */
     private void initPoles() {
-        if (config.getBoolean("defaults.poles.custom.enabled", false)) {
-            try {
-                JAXBContext context =
-                        JAXBContext.newInstance(CustomPoles.class);
-                File file = new File("config/custompoles.xml");
-                customPoles =
-                        (CustomPoles) context.createUnmarshaller().unmarshal(
-                                file);
-            } catch (JAXBException e) {
-                e.printStackTrace();
+        sim.initCustomPoles();
+        runInSimulation(new Runnable() {
+
+            public void run() {
+                sim.poles.clear();
+                sim.poles.setCentreExclusion(sim.centreExclusion);
+                sim.resetRibbons();
             }
-        }
-        poles.clear();
-        poles.setCentreExclusion(centreExclusion);
-        initRibbons();
+        });
     }
 
     /**
@@ -852,55 +810,62 @@ public class ODZApp extends PApplet implements InteractionStateListener,
      */
     private void initPolesAndRibbonsForMessage(UserMessage msg) {
         logger.info("reset poles for new message");
-        poles.setCentreExclusionZ(centreExclusion.z);
-        poles.init(numPoles);
-        if (customPoles != null) {
-            poles.addExternalPoles(customPoles.points);
-        }
-        List<MessageLine> lines = msg.getContent();
-        for (MessageLine line : lines) {
-            poles.addMessageAt(line.text, line.offset, line.scale);
-        }
-        poles.processGroups();
-        sequenceID = 0;
-        ArrayList<Ribbon> or = new ArrayList<Ribbon>();
-        synchronized (ribbons) {
-            for (Ribbon r : ribbons) {
-                r.retire();
-                or.add(r);
-            }
-            initRibbons();
-        }
-        synchronized (oldRibbons) {
-            or.addAll(oldRibbons);
-        }
-        oldRibbons = or;
+        sim.initPolesAndRibbonsForMessage(msg.getContent());
     }
 
     /**
-     * Clears all existing ribbons.
+     * Clears all existing ribbons (during the next simulation step).
      */
     private void initRibbons() {
-        Ribbon.configureWidth(ribbonWidth, letterScale);
-        ribbons.clear();
-        if (poles != null) {
-            poles.clearHitCounts();
-        }
+        runInSimulation(new Runnable() {
+
+            public void run() {
+                sim.resetRibbons();
+            }
+        });
     }
 
     /**
-     * Initializes shake mode for all ribbons in the given list.
-     * 
-     * @param ribbons
-     *            list of ribbons
+     * Initializes shake mode for all ribbons (during the next simulation
+     * step).
      */
-    public void initRibbonShake(List<Ribbon> ribbons) {
-        if (ribbons != null) {
-            synchronized (ribbons) {
-                for (Ribbon r : ribbons) {
+    public void initRibbonShake() {
+        runInSimulation(new Runnable() {
+
+            public void run() {
+                for (Ribbon r : sim.oldRibbons) {
+                    r.initShake();
+                }
+                for (Ribbon r : sim.ribbons) {
                     r.initShake();
                 }
             }
+        });
+    }
+
+    /**
+     * Creates the simulation thread & snapshot buffers. The tick rate is set
+     * via app.properties, a rate of 0 disables the thread and steps the
+     * simulation once per frame instead.
+     */
+    private void initSimulation() {
+        snapshots =
+                new TripleBuffer<FrameSnapshot>(new FrameSnapshot(),
+                        new FrameSnapshot(), new FrameSnapshot());
+        updateSnapshot();
+        snapshot = snapshots.acquire();
+        float rate =
+                config.getFloat("app.simulation.rate", config.getInt(
+                        "app.framerate", 60));
+        isSimThreaded = rate > 0;
+        simulation = new SimulationThread(new Runnable() {
+
+            public void run() {
+                updateSimulation();
+            }
+        }, isSimThreaded ? rate : 60);
+        if (isSimThreaded) {
+            simulation.start();
         }
     }
 
@@ -929,9 +894,17 @@ public class ODZApp extends PApplet implements InteractionStateListener,
      * app.properties.
      */
     private void initTextures() {
+        Texture.setMipmapBuilder(new MipmapBuilder(config.getInt(
+                "texture.mipmap.threads", 2)));
         textureManager =
                 new TextureManager(this, gl, font, config.getInt(
-                        "texture.width", 4096));
+                        "texture.width", 4096), config.getInt(
+                        "texture.atlas.height", 0), config.getBoolean(
+                        "texture.mipmaps", true));
+        textureManager.setMaxCacheSize(config.getInt("texture.cache.maxsize",
+                256) * 1024L * 1024L);
+        textureManager.setAsync(config.getInt("texture.async.threads", 1),
+                config.getFloat("texture.async.uploadbudget", 4));
     }
 
     /**
@@ -1101,6 +1074,17 @@ public class ODZApp extends PApplet implements InteractionStateListener,
         camera.targetRotSpeed.y = 0;
     }
 
+    /**
+     * Queues the given task to be executed at the beginning of the next
+     * simulation step. All modifications of the ribbon lists from other
+     * threads (GUI, OSC etc.) need to be done this way.
+     * 
+     * @param task
+     */
+    private void runInSimulation(Runnable task) {
+        simTasks.offer(task);
+    }
+
     public void saveCamera(int id) {
         TypedProperties conf = new TypedProperties();
         Quaternion q = arcBall.downOrientation;
@@ -1138,21 +1122,9 @@ public class ODZApp extends PApplet implements InteractionStateListener,
         userMessageProvider.addMessage(message);
         int maxLines = config.getInt("message.maxlines", 5);
         float leading = config.getFloat("message.leading", 160);
-        List<String> lines = messageFormatter.format(message);
-        int numLines = min(maxLines, lines.size());
-        float totalHeight = numLines * leading;
         // split wordwrapped message in chunks of x lines
-        while (numLines > 0) {
-            ArrayList<MessageLine> msgPart =
-                    new ArrayList<MessageLine>(maxLines);
-            Vec3D offset = new Vec3D(0, 0, -totalHeight / 2);
-            for (int i = 0; i < numLines; i++) {
-                String line = lines.remove(0);
-                offset.x = -alphabet.getWidthForString(line) / 2;
-                msgPart.add(new MessageLine(line, offset.copy(), 1));
-                offset.z += leading;
-            }
-            numLines = lines.size();
+        for (List<MessageLine> msgPart : MessageLayout.split(message,
+                messageFormatter, sim.alphabet, maxLines, leading)) {
             messageScheduler.addMessage(new UserMessage(msgPart, config.getInt(
                     "message.ttl", 10000), 1));
         }
@@ -1204,6 +1176,14 @@ public class ODZApp extends PApplet implements InteractionStateListener,
         System.out.println("new export format: " + exporter.getFileFormat());
     }
 
+    public void setMaxRibbonCount(int count) {
+        sim.maxRibbonCount = count;
+    }
+
+    public void setMaxScrollSpeed(float speed) {
+        sim.maxScrollSpeed = speed;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -1221,6 +1201,8 @@ public class ODZApp extends PApplet implements InteractionStateListener,
     public void setNumExportTiles(int num) {
         numExportTiles = num;
         tiler = new Tiler(pgl, numExportTiles);
+        tiler.setCompressor(exporter.getCompressor());
+        tiler.setTilesPerFrame(numTilesPerFrame);
         int totalWidth = num * width;
         int totalHeight = num * height;
         int px = (int) UnitTranslator.pixelsToMillis(totalWidth, 300);
@@ -1229,16 +1211,24 @@ public class ODZApp extends PApplet implements InteractionStateListener,
                 + " x " + py + " mm @ 300 dpi)");
     }
 
+    public void setNumPoles(int num) {
+        sim.numPoles = num;
+    }
+
     public void setPoleHitCount(int count) {
-        poles.setMaxExternalPoleHitcount(count);
+        sim.poles.setMaxExternalPoleHitcount(count);
     }
 
     public void setRibbonColorSaturation(float amount) {
-        feedPool.adjustFeedColors(amount);
+        sim.feedPool.adjustFeedColors(amount);
     }
 
     public void setRibbonHitCount(int count) {
-        poles.setMaxLetterHitcount(count);
+        sim.poles.setMaxLetterHitcount(count);
+    }
+
+    public void setRibbonLoopCount(int count) {
+        sim.ribbonLoopCount = count;
     }
 
     /*
@@ -1256,12 +1246,17 @@ public class ODZApp extends PApplet implements InteractionStateListener,
         } else {
             shakeDir.interpolateToSelf(Vec3D.Y_AXIS, 0.05f);
         }
-        for (Ribbon r : oldRibbons) {
-            r.applyShake(shakeDir, shakeEnergy);
-        }
-        for (Ribbon r : ribbons) {
-            r.applyShake(shakeDir, shakeEnergy);
-        }
+        runInSimulation(new Runnable() {
+
+            public void run() {
+                for (Ribbon r : sim.oldRibbons) {
+                    r.applyShake(shakeDir, shakeEnergy);
+                }
+                for (Ribbon r : sim.ribbons) {
+                    r.applyShake(shakeDir, shakeEnergy);
+                }
+            }
+        });
     }
 
     public void setTargetPanX(float x) {
@@ -1296,7 +1291,7 @@ public class ODZApp extends PApplet implements InteractionStateListener,
         x = map(x, -100, 500, -1f, 1f);
         y = map(y, -100, 420, -1f, 1f);
         targetTouchPos.set(new Vec3D(x, 0, y)
-                .scaleSelf(worldBounds.getExtent()));
+                .scaleSelf(sim.worldBounds.getExtent()));
         isTouching = true;
     }
 
@@ -1318,14 +1313,20 @@ public class ODZApp extends PApplet implements InteractionStateListener,
         initCamera();
         initDefaults();
         initMessages(isIdentity);
-        initAlphabet();
-        initPoleManager();
+        sim.initAlphabet();
+        sim.initPoleManager();
         initTextures();
         initPoles();
         exporter =
                 new FrameSequenceExporter(sketchPath("export"), APP_NAME,
                         config.getProperty("defaults.export.format", "tga"));
+        exporter.setPipelined(gl, config.getInt("defaults.export.encoders", 2),
+                config.getInt("defaults.export.maxqueued", 8));
+        exporter.setCompressionThreads(config.getInt(
+                "defaults.export.compressionthreads", 2));
         tiler = new Tiler(pgl, numExportTiles);
+        tiler.setCompressor(exporter.getCompressor());
+        tiler.setTilesPerFrame(numTilesPerFrame);
         doShowMask = config.getBoolean("app.mask.enabled", false);
         if (doShowMask) {
             maskImg = loadImage("assets/textures/mask_1280x128.png");
@@ -1336,6 +1337,7 @@ public class ODZApp extends PApplet implements InteractionStateListener,
         if (appState != IDENT_STATE) {
             initOSC();
         }
+        initSimulation();
         triggerDefaultMessage();
     }
 
@@ -1364,6 +1366,11 @@ public class ODZApp extends PApplet implements InteractionStateListener,
         messageScheduler.shutdown();
         while (messageScheduler.isAlive()) {
         }
+        simulation.shutdown();
+        sim.ribbonUpdater.shutdown();
+        sim.ribbonFactory.shutdown();
+        textureManager.shutdown();
+        exporter.shutdown();
         osc.shutdown();
         super.stop();
     }
@@ -1386,37 +1393,8 @@ public class ODZApp extends PApplet implements InteractionStateListener,
      * information about the available message config settings.
      */
     public void triggerDefaultMessage() {
-        ArrayList<MessageLine> lines = new ArrayList<MessageLine>();
-        String logoText =
-                config.getProperty("defaults.message.line0", "onedotzero");
-        float subtitleScale =
-                config.getFloat("defaults.message.subtitle.scale", 0.5f);
-        float subtitleLeading = config.getFloat("message.leading", 160);
-        int numSubtitles = config.getInt("defaults.message.lines.count", 1);
-        boolean hasSubtitles = numSubtitles > 1;
-        float totalHeight;
-        if (hasSubtitles) {
-            totalHeight =
-                    subtitleLeading + numSubtitles * subtitleLeading
-                            * subtitleScale;
-        } else {
-            totalHeight = alphabet.baseHeight;
-        }
-        Vec3D offset =
-                new Vec3D(-alphabet.getWidthForString(logoText) / 2, 0,
-                        -totalHeight / 2);
-        lines.add(new MessageLine(logoText, offset.copy(), 1));
-        if (hasSubtitles) {
-            offset.addSelf(config.getInt("defaults.message.subtitle.offset.x",
-                    0), 0, config.getInt("defaults.message.subtitle.offset.z",
-                    160));
-            for (int i = 1; i < numSubtitles; i++) {
-                String line =
-                        config.getProperty("defaults.message.line" + i, "");
-                lines.add(new MessageLine(line, offset.copy(), subtitleScale));
-                offset.z += subtitleLeading * subtitleScale;
-            }
-        }
+        List<MessageLine> lines =
+                MessageLayout.getDefaultLines(config, sim.alphabet);
         // in ident state don't expire message (practically)
         int ttl =
                 appState == IDENT_STATE ? (int) 1e+9 : config.getInt(
@@ -1435,12 +1413,61 @@ public class ODZApp extends PApplet implements InteractionStateListener,
             float radius =
                     config.getFloat("defaults.ixd.touch.displace.radius", 200);
             float radiusSq = radius * radius;
-            for (Ribbon r : oldRibbons) {
+            for (Ribbon r : sim.oldRibbons) {
                 r.applyTouch(touchPos, radius, radiusSq);
             }
-            for (Ribbon r : ribbons) {
+            for (Ribbon r : sim.ribbons) {
                 r.applyTouch(touchPos, radius, radiusSq);
             }
         }
     }
+
+    /**
+     * Executes a single simulation step: processes queued tasks & message
+     * changes, updates camera, app state and ribbons and finally publishes a
+     * new {@link FrameSnapshot} for the render thread. The simulation is
+     * frozen during tiled exports.
+     */
+    private void updateSimulation() {
+        if (tiler.isTiling()) {
+            return;
+        }
+        Runnable task;
+        while ((task = simTasks.poll()) != null) {
+            task.run();
+        }
+        UserMessage msg = newMessage;
+        if (msg != null) {
+            newMessage = null;
+            initPolesAndRibbonsForMessage(msg);
+        }
+        camera.update();
+        shakeEnergy *= shakeEnergyDecay;
+        appState.update(this);
+        sim.update(doUpdate, appState != SHAKE_STATE ? 0.9f : 0.99f);
+        updateSnapshot();
+    }
+
+    /**
+     * Records the current state of the simulation into the next snapshot and
+     * publishes it.
+     */
+    private void updateSnapshot() {
+        FrameSnapshot next = snapshots.getWriteBuffer();
+        next.clear();
+        next.camera.set(camera);
+        for (Ribbon r : sim.oldRibbons) {
+            next.add(r);
+        }
+        for (Ribbon r : sim.ribbons) {
+            next.add(r);
+        }
+        if (isDebug) {
+            next.debugPoles.addAll(sim.poles.c12poles);
+            next.debugPoles.addAll(sim.poles.c3poles);
+        }
+        next.setSequenceID(sim.sequenceID);
+        next.setNumExpired(numExpired);
+        snapshots.publish();
+    }
 }
@@ -0,0 +1,499 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import onedotzero.data.FeedPool.FeedConfiguration;
+import onedotzero.export.FrameSequenceExporter;
+import onedotzero.message.MessageLayout;
+import onedotzero.message.MessageLine;
+import onedotzero.text.WordWrapFormatter;
+import processing.core.PFont;
+import processing.core.PGraphics3D;
+import processing.core.PImage;
+import toxi.color.TColor;
+import toxi.util.datatypes.TypedProperties;
+
+/**
+ * <p>
+ * Headless command line renderer producing frame sequences of the identity
+ * mode without a display or OpenGL context. The simulation (poles, ribbons,
+ * camera) is configured from app.properties and shared with the interactive
+ * {@link ODZApp} (see {@link RibbonSimulation}), but runs on a single thread
+ * using the simulated {@link SimClock} and a seeded random number generator,
+ * so the same seed & settings always produce the same frames. Usage:
+ * </p>
+ * 
+ * <pre>
+ * java onedotzero.OfflineRenderer [-config file] [-seed n] [-start frame]
+ *     [-end frame] [-width w] [-height h] [-out dir] [-format tga|png|...]
+ *     [-fps n] [-session id] [-messageframes n] [-message text]...
+ * </pre>
+ * 
+ * <p>
+ * Frames are rendered in software by Processing's P3D renderer, which only
+ * supports alpha blending. Message textures are therefore converted to white
+ * with the text luminance as alpha channel and drawn "over" the frame,
+ * whereas {@link ODZApp} blends them additively (GL_SRC_ALPHA, GL_ONE). Both
+ * match for ribbons drawn on the background, but where ribbons overlap the
+ * app accumulates their brightness and the offline renderer doesn't, so
+ * offline frames are darker and less saturated in dense areas and aren't
+ * pixel identical to exports of the app.
+ * </p>
+ * 
+ * <p>
+ * Frame ranges are supported by fast-forwarding the simulation to the start
+ * frame, so a sequence can be split into several ranges rendered in parallel
+ * by separate processes. Each frame's CRC32 is printed to stdout to allow
+ * comparing runs. Without an output directory no images are written.
+ * </p>
+ * 
+ * <p>
+ * If no messages are given, the default message of the config file is used.
+ * Otherwise the messages are word wrapped, split into chunks (as in the
+ * interactive mode) and cycled every "messageframes" frames.
+ * </p>
+ */
+public class OfflineRenderer {
+
+    /**
+     * Software renderer with a preallocated texture list. P3D grows this list
+     * via PApplet.expand(), but the PApplet class can't be initialized without
+     * a display.
+     */
+    protected static class OfflineGraphics extends PGraphics3D {
+
+        protected void ensureTextureCapacity(int num) {
+            if (textures.length < num) {
+                PImage[] t = new PImage[num];
+                System.arraycopy(textures, 0, t, 0, textures.length);
+                textures = t;
+            }
+        }
+    }
+
+    /**
+     * Simulation variant assigning textures to new ribbons straight away.
+     */
+    protected class OfflineSimulation extends RibbonSimulation {
+
+        /**
+         * Builds ribbons & updates them on the calling thread to keep the
+         * order of random numbers fixed.
+         */
+        protected OfflineSimulation(TypedProperties config) {
+            super(config, new RibbonFactory(0, config.getInt(
+                    "defaults.ribbon.factory.maxinflight", 16)),
+                    new RibbonUpdater(0, 1));
+        }
+
+        @Override
+        protected Ribbon createRibbon(FeedConfiguration fc) {
+            Texture tex = getTextureFor(fc.feed.getMessage());
+            return new Ribbon(poles, tex, fc, maxScrollSpeed, maxRibbonDelay);
+        }
+    }
+
+    protected static final Logger logger =
+            Logger.getLogger(OfflineRenderer.class.getName());
+
+    protected static final String BASE_NAME = "ODZIdent";
+
+    public static void main(String[] args) {
+        String configPath = "config/app.properties";
+        String outPath = null;
+        String format = null;
+        long seed = 23;
+        long sessionID = 0;
+        int start = 0;
+        int end = 250;
+        int width = -1;
+        int height = -1;
+        int fps = 25;
+        int messageFrames = 250;
+        List<String> messages = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String a = args[i];
+                if (a.equals("-config")) {
+                    configPath = args[++i];
+                } else if (a.equals("-seed")) {
+                    seed = Long.parseLong(args[++i]);
+                } else if (a.equals("-start")) {
+                    start = Integer.parseInt(args[++i]);
+                } else if (a.equals("-end")) {
+                    end = Integer.parseInt(args[++i]);
+                } else if (a.equals("-width")) {
+                    width = Integer.parseInt(args[++i]);
+                } else if (a.equals("-height")) {
+                    height = Integer.parseInt(args[++i]);
+                } else if (a.equals("-out")) {
+                    outPath = args[++i];
+                } else if (a.equals("-format")) {
+                    format = args[++i];
+                } else if (a.equals("-fps")) {
+                    fps = Integer.parseInt(args[++i]);
+                } else if (a.equals("-session")) {
+                    sessionID = Long.parseLong(args[++i]);
+                } else if (a.equals("-messageframes")) {
+                    messageFrames = Integer.parseInt(args[++i]);
+                } else if (a.equals("-message")) {
+                    messages.add(args[++i]);
+                } else {
+                    throw new IllegalArgumentException("unknown option: " + a);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("invalid arguments: " + e.getMessage());
+            System.exit(1);
+        }
+        TypedProperties config = new TypedProperties();
+        if (!config.load(configPath)) {
+            System.err.println("couldn't load config: " + configPath);
+            System.exit(1);
+        }
+        if (width <= 0) {
+            width = config.getInt("app.width", 1280);
+        }
+        if (height <= 0) {
+            height = config.getInt("app.height", 720);
+        }
+        if (format == null) {
+            format = config.getProperty("defaults.export.format", "tga");
+        }
+        OfflineRenderer renderer = new OfflineRenderer(config, seed);
+        renderer.setMessages(messages, messageFrames);
+        FrameSequenceExporter exporter = null;
+        if (outPath != null) {
+            exporter = new FrameSequenceExporter(outPath, BASE_NAME, format);
+            exporter.setCompressionThreads(config.getInt(
+                    "defaults.export.compressionthreads", 2));
+            exporter.setFPS(fps);
+            exporter.newSession(sessionID);
+            exporter.sequenceID = start;
+            exporter.start();
+        }
+        renderer.render(width, height, start, end, fps, exporter);
+        if (exporter != null) {
+            exporter.shutdown();
+        }
+    }
+
+    protected final TypedProperties config;
+    protected RibbonSimulation sim;
+    protected CameraState camera;
+
+    protected TextRasterizer rasterizer;
+    protected LinkedHashMap<String, ImageTexture> textures;
+    protected int maxTextures;
+
+    protected RibbonCuller culler;
+    protected float[] offset = new float[3];
+    protected long numCulled;
+    protected long numCulledChunks;
+    protected long numCoarseChunks;
+
+    protected List<List<MessageLine>> messages =
+            new ArrayList<List<MessageLine>>();
+    protected int messageFrames;
+    protected int currMessageID = -1;
+
+    protected int frameCount;
+    protected int bgColor;
+
+    /**
+     * Sets up the simulation using the given config. Switches the
+     * {@link SimClock} into simulated mode and reseeds its RNG.
+     * 
+     * @param config
+     *            app config
+     * @param seed
+     *            random seed
+     */
+    public OfflineRenderer(TypedProperties config, long seed) {
+        this.config = config;
+        SimClock.setSimulated(true);
+        SimClock.setSeed(seed);
+        initDefaults();
+        initCamera();
+        initTextures();
+        sim = new OfflineSimulation(config);
+        sim.initAlphabet();
+        sim.initCustomPoles();
+        sim.initFeeds(new File(System.getProperty("user.dir")));
+        if (sim.feedPool.getActiveFeedCount() == 0) {
+            throw new IllegalStateException("no active feeds");
+        }
+        sim.initPoleManager();
+    }
+
+    /**
+     * Draws the current state of the simulation into the given graphics
+     * context.
+     * 
+     * @param g
+     * @param sink
+     *            strip sink wrapping the graphics context
+     */
+    protected void draw(OfflineGraphics g, RibbonStripSink sink) {
+        // one texture per ribbon strip
+        g.ensureTextureCapacity((sim.ribbons.size() + sim.oldRibbons.size())
+                * 2 + 16);
+        g.beginDraw();
+        camera.perspective(g);
+        g.background(bgColor);
+        g.translate(g.width * 0.5f, g.height * 0.5f, 0);
+        camera.apply(g);
+        if (culler != null) {
+            culler.setView(g.projection, g.modelview, false, g.height);
+        }
+        for (Ribbon r : sim.oldRibbons) {
+            draw(r, sink);
+        }
+        for (Ribbon r : sim.ribbons) {
+            draw(r, sink);
+        }
+        if (culler != null) {
+            numCulled += culler.getNumCulled();
+            numCulledChunks += culler.getNumCulledChunks();
+            numCoarseChunks += culler.getNumCoarseChunks();
+        }
+        g.noTint();
+        g.endDraw();
+    }
+
+    /**
+     * Draws the visible parts of a single ribbon.
+     */
+    protected void draw(Ribbon r, RibbonStripSink sink) {
+        r.getDisplacement(offset, 0);
+        r.draw(sink, r.getScrollPosition(), offset[0], offset[1], offset[2],
+                culler);
+    }
+
+    /**
+     * Removes unused textures from the cache, least recently used first.
+     */
+    protected void evictTextures() {
+        for (Iterator<ImageTexture> i = textures.values().iterator(); i
+                .hasNext()
+                && textures.size() > maxTextures;) {
+            ImageTexture tex = i.next();
+            if (tex.getRefCount() == 0) {
+                tex.delete();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the (retained) texture for the given message. Messages are
+     * rasterized white on black, so the luminance is moved into the alpha
+     * channel for the software renderer.
+     * 
+     * @param txt
+     * @return texture
+     */
+    protected Texture getTextureFor(String txt) {
+        ImageTexture tex = textures.get(txt);
+        if (tex == null) {
+            PImage img = rasterizer.rasterize(txt);
+            int[] pixels = img.pixels;
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = (pixels[i] & 0xff) << 24 | 0xffffff;
+            }
+            tex = new ImageTexture(img);
+            textures.put(txt, tex);
+        }
+        tex.retain();
+        if (textures.size() > maxTextures) {
+            evictTextures();
+        }
+        return tex;
+    }
+
+    /**
+     * Configures the camera like the identity mode of {@link ODZApp}.
+     */
+    protected void initCamera() {
+        camera = new CameraState();
+        camera.flipCamera(!config.getBoolean("app.mode.identity", false));
+        camera.enableModulation(false);
+        camera.pos.set(config.getFloat("cam.pos.x", 0), config.getFloat(
+                "cam.pos.y", 0), config.getFloat("cam.pos.z", 0));
+        camera.rotation.set(config.getFloat("cam.rotation.x", 0), config
+                .getFloat("cam.rotation.y", 0), config.getFloat(
+                "cam.rotation.z", 0));
+        camera.zoom = config.getFloat("cam.zoom", camera.zoom);
+        camera.zoomSmooth =
+                config.getFloat("cam.zoom.smooth", camera.zoomSmooth);
+        camera.rotSmooth =
+                config.getFloat("cam.rotation.smooth", camera.rotSmooth);
+        camera.panSmooth = config.getFloat("cam.pan.smooth", camera.panSmooth);
+    }
+
+    protected void initDefaults() {
+        bgColor =
+                TColor.newHex(config.getProperty("background.col", "000000"))
+                        .toARGB();
+        // culling alone doesn't change the frames, reduced detail does
+        if (config.getBoolean("defaults.ribbon.culling.enabled", true)) {
+            culler =
+                    new RibbonCuller(config.getFloat(
+                            "offline.ribbon.lod.spacing", 0));
+        }
+    }
+
+    protected void initTextures() {
+        String fontPath = "assets/fonts/odzroman-64.vlw";
+        PFont font;
+        try {
+            FileInputStream in = new FileInputStream(fontPath);
+            try {
+                font = new PFont(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("couldn't load font: " + fontPath,
+                    e);
+        }
+        rasterizer =
+                new TextRasterizer(font, config.getInt("texture.width", 4096),
+                        64);
+        maxTextures = config.getInt("offline.texture.cache.count", 256);
+        textures = new LinkedHashMap<String, ImageTexture>(16, 0.75f, true);
+    }
+
+    /**
+     * Simulates (and optionally exports) the given range of frames. Frames
+     * before the start frame are only simulated.
+     * 
+     * @param width
+     *            frame width
+     * @param height
+     *            frame height
+     * @param start
+     *            first frame to render
+     * @param end
+     *            last frame (exclusive)
+     * @param fps
+     *            frame rate used to advance the simulated clock
+     * @param exporter
+     *            frame exporter (or null)
+     */
+    public void render(int width, int height, int start, int end, int fps,
+            FrameSequenceExporter exporter) {
+        OfflineGraphics g = new OfflineGraphics();
+        g.setPrimary(false);
+        g.setSize(width, height);
+        RibbonStripSink sink = new PGraphicsRibbonSink(g);
+        long frameTime = 1000000000L / fps;
+        CRC32 frameCRC = new CRC32();
+        CRC32 totalCRC = new CRC32();
+        byte[] row = new byte[width * 4];
+        long t0 = System.nanoTime();
+        while (frameCount < end) {
+            int frame = frameCount;
+            update();
+            SimClock.advance(frameTime);
+            if (frame < start) {
+                continue;
+            }
+            draw(g, sink);
+            g.loadPixels();
+            frameCRC.reset();
+            for (int y = 0, i = 0; y < height; y++) {
+                for (int x = 0, j = 0; x < width; x++) {
+                    int c = g.pixels[i++];
+                    row[j++] = (byte) (c >> 24);
+                    row[j++] = (byte) (c >> 16);
+                    row[j++] = (byte) (c >> 8);
+                    row[j++] = (byte) c;
+                }
+                frameCRC.update(row);
+                totalCRC.update(row);
+            }
+            System.out.printf("frame %d crc %08x ribbons %d\n", frame,
+                    frameCRC.getValue(), sim.ribbons.size()
+                            + sim.oldRibbons.size());
+            if (exporter != null) {
+                exporter.update(g);
+            }
+        }
+        double secs = (System.nanoTime() - t0) * 1e-9;
+        System.out.printf("frames %d-%d crc %08x time %.1f s\n", start, end,
+                totalCRC.getValue(), secs);
+        if (culler != null) {
+            System.out.printf("ribbons culled %d, chunks culled %d, "
+                    + "reduced detail %d\n", numCulled, numCulledChunks,
+                    numCoarseChunks);
+        }
+    }
+
+    /**
+     * Sets the messages to be displayed. If the list is empty, the default
+     * message is used.
+     * 
+     * @param msgList
+     *            message texts
+     * @param frames
+     *            number of frames per message (chunk)
+     */
+    public void setMessages(List<String> msgList, int frames) {
+        messages.clear();
+        if (msgList.size() > 0) {
+            int wrap = config.getInt("message.wordwrap", 12);
+            WordWrapFormatter formatter = new WordWrapFormatter(wrap);
+            int maxLines = config.getInt("message.maxlines", 5);
+            float leading = config.getFloat("message.leading", 160);
+            for (String msg : msgList) {
+                messages.addAll(MessageLayout.split(msg, formatter,
+                        sim.alphabet, maxLines, leading));
+            }
+        } else {
+            messages.add(MessageLayout.getDefaultLines(config, sim.alphabet));
+        }
+        messageFrames = Math.max(frames, 1);
+    }
+
+    /**
+     * Advances the simulation by a single frame.
+     */
+    public void update() {
+        int msgID = (frameCount / messageFrames) % messages.size();
+        if (msgID != currMessageID) {
+            sim.initPolesAndRibbonsForMessage(messages.get(msgID));
+            currMessageID = msgID;
+        }
+        frameCount++;
+        camera.update();
+        sim.update(true, 0.9f);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import processing.core.PConstants;
+import processing.core.PGraphics;
+
+/**
+ * Renders ribbon strips as textured triangle strips using the Processing API,
+ * e.g. with the software renderer of an offscreen {@link PGraphics} when no
+ * OpenGL context is available. Only works with {@link ImageTexture}s. Vertex
+ * colours are applied as tint.
+ */
+public class PGraphicsRibbonSink implements RibbonStripSink {
+
+    protected final PGraphics gfx;
+    protected Texture tex;
+    protected float vTop, vBottom;
+
+    /**
+     * @param gfx
+     *            target graphics context (3D)
+     */
+    public PGraphicsRibbonSink(PGraphics gfx) {
+        this.gfx = gfx;
+    }
+
+    public void addVertexPair(float r, float g, float b, float a, float u,
+            float x, float yTop, float yBottom, float z) {
+        u = tex.mapU(u);
+        gfx.tint(r * 255, g * 255, b * 255, a * 255);
+        gfx.vertex(x, yTop, z, u, vTop);
+        gfx.vertex(x, yBottom, z, u, vBottom);
+    }
+
+    public void beginStrip(Texture tex) {
+        this.tex = tex;
+        vTop = tex.mapV(Ribbon.V_TOP);
+        vBottom = tex.mapV(Ribbon.V_BOTTOM);
+        gfx.noStroke();
+        gfx.textureMode(PConstants.NORMAL);
+        gfx.beginShape(PConstants.TRIANGLE_STRIP);
+        gfx.texture(((ImageTexture) tex).getImage());
+    }
+
+    public void endStrip() {
+        gfx.endShape();
+    }
+}
@@ -21,21 +21,26 @@ package onedotzero;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Random;
 
 import javax.media.opengl.GL;
 
 import onedotzero.data.FeedPool.FeedConfiguration;
+import onedotzero.poles.FieldLineCache;
+import onedotzero.poles.FieldLineIntegrator;
+import onedotzero.poles.FieldLinePath;
 import onedotzero.poles.ParticlePole3D;
 import onedotzero.poles.PoleManager;
+import onedotzero.poles.PoleOctree;
+import onedotzero.poles.PoleReleaseBatch;
+import onedotzero.poles.PoleUsageIndex;
 import onedotzero.type.LetterPoleGroup;
 import processing.core.PGraphics;
 import toxi.color.TColor;
-import toxi.geom.Vec2D;
 import toxi.geom.Vec3D;
 import toxi.math.MathUtils;
-import toxi.math.waves.SineWave;
 
 /**
  * Implements behaviour, creates path, geometry and texture animation for a
@@ -43,6 +48,64 @@ import toxi.math.waves.SineWave;
  */
 public class Ribbon {
 
+    /**
+     * Sends ribbon strips straight to OpenGL using immediate mode.
+     */
+    protected static class ImmediateModeSink implements RibbonStripSink {
+
+        protected final GL gl;
+        protected Texture tex;
+        protected float vTop, vBottom;
+
+        protected ImmediateModeSink(GL gl) {
+            this.gl = gl;
+        }
+
+        public void addVertexPair(float r, float g, float b, float a,
+                float u, float x, float yTop, float yBottom, float z) {
+            u = tex.mapU(u);
+            gl.glColor4f(r, g, b, a);
+            gl.glTexCoord2f(u, vTop);
+            gl.glVertex3f(x, yTop, z);
+            gl.glTexCoord2f(u, vBottom);
+            gl.glVertex3f(x, yBottom, z);
+        }
+
+        public void beginStrip(Texture tex) {
+            this.tex = tex;
+            vTop = tex.mapV(V_TOP);
+            vBottom = tex.mapV(V_BOTTOM);
+            tex.bind();
+            gl.glBegin(GL.GL_TRIANGLE_STRIP);
+        }
+
+        public void endStrip() {
+            gl.glEnd();
+        }
+    }
+
+    /**
+     * V texture coordinate of the top ribbon edge
+     */
+    public static final float V_TOP = 0.015625f;
+
+    /**
+     * V texture coordinate of the bottom ribbon edge
+     */
+    public static final float V_BOTTOM = 0.984375f;
+
+    /**
+     * Alpha values of the fade in at the start of a ribbon (one per vertex)
+     */
+    protected static final float[] ALPHA_RAMP = new float[12];
+
+    static {
+        for (int i = 1; i < ALPHA_RAMP.length; i++) {
+            float a = ALPHA_RAMP[i - 1];
+            ALPHA_RAMP[i] = a < 1 ? a + 0.1f : a;
+        }
+    }
+
     protected static float RIBBON_STEP_LENGTH = 10;
     protected static float TEXTURE_WIDTH = 4096;
     protected static float RIBBON_WIDTH;
@@ -59,109 +122,185 @@ public class Ribbon {
         SCALED_LETTER_WIDTH = SCALED_WIDTH / LETTER_WIDTH;
     }
 
-    protected HashMap<ParticlePole3D, ParticlePole3D> poles =
-            new HashMap<ParticlePole3D, ParticlePole3D>();
+    protected ArrayList<ParticlePole3D> poles = new ArrayList<ParticlePole3D>();
+    protected BitSet usedPoleIDs;
 
-    protected ArrayList<Vec3D> vertices = new ArrayList<Vec3D>();
-    protected float[] distances;
+    protected final RibbonPool pool = RibbonPool.getInstance();
+    protected int slot;
+    protected int vertexOffset = -1;
+    protected int numVertices;
 
     protected final PoleManager poleManager;
 
-    protected double currU = -1;
-    protected double uSpeed;
     protected int letterStartID, letterEndID;
+    protected float letterStartDist, letterEndDist;
+    protected final Vec3D minBounds = new Vec3D();
+    protected final Vec3D maxBounds = new Vec3D();
 
     protected Texture tex;
+    protected String message;
 
     protected int totalLength;
     protected FeedConfiguration feed;
 
-    protected int startFrame, delay;
-    protected SineWave displaceMod;
-    protected Vec3D shakeDir = new Vec3D();
-    protected Vec3D displaceOffset = new Vec3D();
-    protected Vec3D tmp = new Vec3D();
-    protected double uTargetSpeed;
+    protected int startFrame;
 
     protected Vec3D origPos;
 
+    /**
+     * Creates a ribbon whose texture is requested later on (from the GL
+     * thread) for the given message (see {@link #setTexture(Texture)}).
+     * 
+     * @param poles
+     * @param message
+     *            message text
+     * @param feed
+     * @param maxScroll
+     * @param maxDelay
+     */
+    public Ribbon(PoleManager poles, String message, FeedConfiguration feed,
+            float maxScroll, int maxDelay) {
+        this(poles, (Texture) null, feed, maxScroll, maxDelay);
+        this.message = message;
+    }
+
     public Ribbon(PoleManager poles, Texture tex, FeedConfiguration feed,
             float maxScroll, int maxDelay) {
         this.poleManager = poles;
         this.tex = tex;
         this.feed = feed;
-        uSpeed = MathUtils.random(0.25f, 1f) * maxScroll;
-        uTargetSpeed = uSpeed;
-        delay = MathUtils.random(maxDelay);
-        displaceMod = new SineWave(MathUtils.random(MathUtils.TWO_PI), 0);
+        this.slot = pool.allocSlot();
+        Random rnd = SimClock.getRandom();
+        double uSpeed = MathUtils.random(rnd, 0.25f, 1f) * maxScroll;
+        pool.currU[slot] = -1;
+        pool.uSpeed[slot] = uSpeed;
+        pool.uTargetSpeed[slot] = uSpeed;
+        pool.delay[slot] = MathUtils.random(rnd, maxDelay);
+        // displacement wave: phase, frequency, amplitude
+        int w = slot * 3;
+        pool.waves[w] = MathUtils.random(rnd, MathUtils.TWO_PI);
+        pool.waves[w + 1] = 0;
+        pool.waves[w + 2] = 1;
+    }
+
+    /**
+     * Adds the given pole to the set of poles used by this ribbon, unless
+     * already present.
+     */
+    private void addPole(ParticlePole3D p) {
+        if (!isUsed(p)) {
+            usedPoleIDs.set(p.getID());
+            poles.add(p);
+        }
     }
 
     public void applyShake(Vec3D shakeDir, float energy) {
+        int w = slot * 3;
+        float[] waves = pool.waves;
         float amp = energy * 500;
-        if (amp > displaceMod.amp) {
-            displaceMod.amp += (amp - displaceMod.amp) * 0.15f;
-            displaceMod.frequency +=
-                    (energy * MathUtils.PI * 0.03f - displaceMod.frequency) * 0.15f;
+        if (amp > waves[w + 2]) {
+            waves[w + 2] += (amp - waves[w + 2]) * 0.15f;
+            waves[w + 1] +=
+                    (energy * MathUtils.PI * 0.03f - waves[w + 1]) * 0.15f;
         }
-        this.shakeDir.set(shakeDir);
+        float[] dir = pool.shakeDirs;
+        dir[w] = shakeDir.x;
+        dir[w + 1] = shakeDir.y;
+        dir[w + 2] = shakeDir.z;
     }
 
     public void applyTouch(Vec3D touchPos, float radius, float radiusSquared) {
         float dist = origPos.distanceToSquared(touchPos);
         if (dist < radiusSquared) {
-            shakeDir
-                    .interpolateToSelf(origPos.sub(touchPos).normalize(), 0.15f);
-            displaceMod.amp += (radius - displaceMod.amp) * 0.15f;
-            displaceMod.phase = MathUtils.HALF_PI;
-            displaceMod.frequency = 0;
+            float dx = origPos.x - touchPos.x;
+            float dy = origPos.y - touchPos.y;
+            float dz = origPos.z - touchPos.z;
+            float mag = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+            if (mag > 0) {
+                mag = 1f / mag;
+                dx *= mag;
+                dy *= mag;
+                dz *= mag;
+            }
+            int w = slot * 3;
+            float[] dir = pool.shakeDirs;
+            dir[w] += (dx - dir[w]) * 0.15f;
+            dir[w + 1] += (dy - dir[w + 1]) * 0.15f;
+            dir[w + 2] += (dz - dir[w + 2]) * 0.15f;
+            float[] waves = pool.waves;
+            waves[w] = MathUtils.HALF_PI;
+            waves[w + 1] = 0;
+            waves[w + 2] += (radius - waves[w + 2]) * 0.15f;
         }
     }
 
+    /**
+     * Releases all poles reserved by this ribbon as well as its texture and
+     * returns its slot & geometry to the {@link RibbonPool}. Must be called
+     * exactly once for every ribbon, whether it has been built successfully
+     * or not.
+     */
     public void cleanup() {
-        for (ParticlePole3D p : poles.values()) {
-            if (p.hitCount > 0) {
-                p.hitCount--;
-            }
+        releasePoles();
+        if (tex != null) {
+            tex.release();
+            tex = null;
+        }
+        if (vertexOffset >= 0) {
+            pool.freeVertices(vertexOffset, numVertices);
+            vertexOffset = -1;
+            numVertices = 0;
+        }
+        if (slot >= 0) {
+            pool.freeSlot(slot);
+            slot = -1;
         }
-        vertices = null;
-        poles = null;
     }
 
-    public boolean create(List<ParticlePole3D> poleSet, Vec3D dir,
+    /**
+     * Builds the ribbon geometry: selects a start pole from the given group,
+     * traces field lines to external poles and walks the letter outline. All
+     * poles used are reserved and later released via {@link #cleanup()}. Start
+     * and external poles are only used if they can be reserved within their
+     * hit count limits, so this method can safely be called concurrently for
+     * different ribbons.
+     * 
+     * @param startPoles
+     *            usage index of the letter poles to choose start pole from
+     * @param dir
+     *            initial field line direction
+     * @param startFrame
+     * @param loopCount
+     *            number of loops around the letter
+     * @return true, if successful
+     */
+    public boolean create(PoleUsageIndex startPoles, Vec3D dir,
             int startFrame, int loopCount) {
         this.startFrame = startFrame;
-        List<ParticlePole3D> availablePoles =
-                PoleManager.getFiltered(poleSet, poleManager
-                        .getMaxLetterHitCount());
-        ParticlePole3D currPole = PoleManager.getOldestPole(availablePoles);
-        ParticlePole3D currPoleAlt =
-                PoleManager.getLeastUsedPole(availablePoles);
-        if (currPole != null || currPoleAlt != null) {
-            if (currPole != null && currPoleAlt != null) {
-                if (currPoleAlt.hitCount < currPole.hitCount) {
-                    currPole = currPoleAlt;
-                }
-            } else {
-                if (currPoleAlt != null) {
-                    currPole = currPoleAlt;
-                }
-            }
-            poles.put(currPole, currPole);
+        ParticlePole3D currPole = reserveStartPole(startPoles);
+        if (currPole != null) {
+            ArrayList<Vec3D> vertices = new ArrayList<Vec3D>();
+            usedPoleIDs = new BitSet(poleManager.getNumPoles());
+            addPole(currPole);
             ParticlePole3D startPole = currPole;
             origPos = startPole;
-            List<ParticlePole3D> c1filtered =
-                    PoleManager.getFiltered(poleManager.c1poles, poleManager
-                            .getMaxExternalPoleHitcount());
+            PoleOctree c1index = poleManager.getExternalPoleIndex();
+            FieldLineIntegrator integrator = FieldLineIntegrator.getInstance();
+            FieldLineCache cache = poleManager.getFieldLineCache();
+            int maxExtHitCount = poleManager.getMaxExternalPoleHitcount();
             ParticlePole3D extPole =
-                    currPole.computeFieldLine(c1filtered, dir,
-                            RIBBON_STEP_LENGTH, poleManager.bounds, poleManager
-                                    .getMaxExternalPoleHitcount());
+                    cache.trace(integrator, currPole, c1index, dir,
+                            RIBBON_STEP_LENGTH, poleManager.bounds,
+                            maxExtHitCount);
+            if (extPole != null && !extPole.reserve(maxExtHitCount)) {
+                extPole = null;
+            }
             if (extPole != null) {
-                extPole.updateHitCount();
-                poles.put(extPole, extPole);
-                int numV = currPole.vertices.size();
+                addPole(extPole);
+                FieldLinePath path = integrator.getPath();
+                int numV = path.getNumVertices();
                 for (int i = numV - 1; i >= 0; i--) {
-                    vertices.add(currPole.vertices.get(i));
+                    vertices.add(path.getVertex(i));
                 }
                 if (numV > 1) {
                     dir = vertices.get(numV - 1).sub(vertices.get(numV - 2));
@@ -171,38 +310,18 @@ public class Ribbon {
                 LetterPoleGroup lpg = poleManager.getLetterForPole(startPole);
                 if (lpg != null) {
                     letterStartID = vertices.size();
-                    ParticlePole3D nextPole = currPole;
-                    boolean isLoopComplete = false;
-                    for (int i = 0; !isLoopComplete; i++) {
-                        currPole.updateHitCount();
-                        ParticlePole3D[] options =
-                                lpg.getFlowOptionsForPole(currPole);
-                        float minTheta = MathUtils.TWO_PI;
-                        Vec2D curr2D = currPole.pos2D;
-                        for (ParticlePole3D p : options) {
-                            if (poles.get(p) == null) {
-                                float theta =
-                                        MathUtils.abs(curr2D
-                                                .angleBetween(p.pos2D));
-                                if (theta < minTheta) {
-                                    minTheta = theta;
-                                    nextPole = p;
-                                }
-                            } else if (i > 1 && p == startPole) {
-                                isLoopComplete = true;
-                                nextPole = p;
-                                break;
-                            }
-                        }
-                        if (poles.get(nextPole) == null || isLoopComplete) {
-                            Vec3D.splitIntoSegments(currPole, nextPole,
-                                    RIBBON_STEP_LENGTH, vertices, false);
-                            dir.set(nextPole.sub(currPole));
-                            currPole = nextPole;
-                            poles.put(currPole, currPole);
-                        } else {
-                            break;
+                    List<ParticlePole3D> group = lpg.getGroupForPole(startPole);
+                    int[] loop = lpg.getLoopForPole(startPole);
+                    for (int i = 1; i < loop.length; i++) {
+                        ParticlePole3D nextPole = group.get(loop[i]);
+                        if (nextPole != startPole) {
+                            nextPole.updateHitCount();
                         }
+                        Vec3D.splitIntoSegments(currPole, nextPole,
+                                RIBBON_STEP_LENGTH, vertices, false);
+                        dir.set(nextPole.sub(currPole));
+                        currPole = nextPole;
+                        addPole(currPole);
                     }
                     letterEndID = vertices.size();
                     for (int k = 0; k < loopCount; k++) {
@@ -214,102 +333,488 @@ public class Ribbon {
                     dir.normalize().y = -1;
                     dir.normalize();
                     ParticlePole3D endPole =
-                            currPole.computeFieldLine(c1filtered, dir,
+                            cache.trace(integrator, currPole, c1index, dir,
                                     RIBBON_STEP_LENGTH, poleManager.bounds,
-                                    poleManager.getMaxExternalPoleHitcount());
-                    if (endPole != null) {
-                        endPole.updateHitCount();
-                        vertices.addAll(currPole.vertices);
-                        poles.put(endPole, endPole);
+                                    maxExtHitCount);
+                    if (endPole != null
+                            && (isUsed(endPole) || endPole
+                                    .reserve(maxExtHitCount))) {
+                        integrator.getPath().addVerticesTo(vertices);
+                        addPole(endPole);
                     }
                 }
                 Collections.reverse(vertices);
                 numV = vertices.size();
                 letterStartID = numV - letterStartID;
                 letterEndID = numV - letterEndID;
-                distances = new float[numV];
                 totalLength = 0;
+                if (numV > 0) {
+                    minBounds.set(vertices.get(0));
+                    maxBounds.set(minBounds);
+                }
                 for (int i = 1; i < numV; i++) {
-                    float len = vertices.get(i).distanceTo(vertices.get(i - 1));
-                    distances[i] = len;
-                    totalLength += len;
+                    Vec3D v = vertices.get(i);
+                    totalLength += v.distanceTo(vertices.get(i - 1));
+                    minBounds.minSelf(v);
+                    maxBounds.maxSelf(v);
                 }
+                vertexOffset = pool.storeVertices(vertices);
+                numVertices = numV;
+                letterStartDist = getDistance(letterStartID - 1);
+                letterEndDist = getDistance(getLetterEndID() - 1);
+                usedPoleIDs = null;
                 return true;
             }
+            poles.clear();
+            currPole.release();
         }
         return false;
     }
 
+    /**
+     * Draws the ribbon in OpenGL immediate mode.
+     * 
+     * @param g
+     * @param gl
+     */
     public void draw(PGraphics g, GL gl) {
-        if (feed.isEnabled) {
+        draw(new ImmediateModeSink(gl));
+    }
+
+    /**
+     * Computes the visible part of the ribbon's triangle strip for the current
+     * scroll position and passes it to the given sink.
+     * 
+     * @param sink
+     */
+    public void draw(RibbonStripSink sink) {
+        int w = slot * 3;
+        float[] offsets = pool.offsets;
+        draw(sink, pool.currU[slot], offsets[w], offsets[w + 1],
+                offsets[w + 2]);
+    }
+
+    /**
+     * Like {@link #draw(RibbonStripSink)}, but using the given (previously
+     * recorded) scroll position & displacement instead of the current ones.
+     * The geometry itself doesn't change after the ribbon has been created, so
+     * this can be used to draw a snapshot while the ribbon is being updated by
+     * another thread.
+     * 
+     * @param sink
+     * @param currU
+     *            scroll position
+     * @param dx
+     *            displacement X
+     * @param dy
+     *            displacement Y
+     * @param dz
+     *            displacement Z
+     */
+    public void draw(RibbonStripSink sink, double currU, float dx, float dy,
+            float dz) {
+        draw(sink, currU, dx, dy, dz, null);
+    }
+
+    /**
+     * Like {@link #draw(RibbonStripSink, double, float, float, float)}, but
+     * skips the ribbon (or parts of it) if outside the view of the given
+     * culler and only uses every other vertex if it's far away or small on
+     * screen. The strip is split where it leaves the view.
+     * 
+     * @param sink
+     * @param currU
+     *            scroll position
+     * @param dx
+     *            displacement X
+     * @param dy
+     *            displacement Y
+     * @param dz
+     *            displacement Z
+     * @param culler
+     *            culler set up for the current view (or null to draw all
+     *            vertices)
+     */
+    public void draw(RibbonStripSink sink, double currU, float dx, float dy,
+            float dz, RibbonCuller culler) {
+        if (feed.isEnabled && tex != null) {
             double u = currU - totalLength * SCALED_LETTER_WIDTH * 2;
             if (u < 1) {
-                tex.bind();
-                gl.glBegin(GL.GL_TRIANGLE_STRIP);
+                if (culler != null && !culler.isVisible(this, dx, dy, dz)) {
+                    return;
+                }
+                float[] v = pool.getVertices();
                 float w2 = RIBBON_WIDTH * 0.5f;
-                Vec3D prev = null;
-                int i = 0;
-                TColor c = feed.color.copy();
-                c.alpha = 0;
-                float cr = c.red();
-                float cg = c.green();
-                float cb = c.blue();
-                int numV = vertices.size();
-                for (Vec3D v : vertices) {
-                    boolean isInLetter =
-                            (i >= letterStartID && i < letterEndID);
-                    if (prev != null) {
-                        u +=
-                                distances[i]
-                                        * (isInLetter
-                                                ? SCALED_LETTER_WIDTH
-                                                : SCALED_WIDTH);
+                double sw = SCALED_WIDTH;
+                double slw = SCALED_LETTER_WIDTH;
+                // U = uOffset + distance * uScale for each of the 3 sections
+                // (before, inside & after the letter)
+                double u1 = u + letterStartDist * (sw - slw);
+                double u2 = u1 + letterEndDist * (slw - sw);
+                boolean isOpen = false;
+                for (int section = 0; section < 3; section++) {
+                    int from, to;
+                    double uOffset, uScale;
+                    float bottom;
+                    if (section == 0) {
+                        from = 0;
+                        to = letterStartID;
+                        uOffset = u;
+                        uScale = sw;
+                        bottom = w2;
+                    } else if (section == 1) {
+                        from = letterStartID;
+                        to = getLetterEndID();
+                        uOffset = u1;
+                        uScale = slw;
+                        bottom = w2 * LETTER_WIDTH;
+                    } else {
+                        from = getLetterEndID();
+                        to = numVertices;
+                        uOffset = u2;
+                        uScale = sw;
+                        bottom = w2;
                     }
-                    if (u >= 0 && u <= 1.0) {
-                        float uu = (float) u;
-                        gl.glColor4f(cr, cg, cb, c.alpha);
-                        gl.glTexCoord2f(uu, 0.015625f);
-                        tmp.set(v.x + displaceOffset.x, v.y + displaceOffset.y,
-                                v.z + displaceOffset.z);
-                        gl.glVertex3f(tmp.x, tmp.y + w2, tmp.z);
-                        gl.glTexCoord2f(uu, 0.984375f);
-                        gl.glVertex3f(tmp.x, tmp.y
-                                - (isInLetter ? w2 * LETTER_WIDTH : w2), tmp.z);
+                    // visible range: 0 <= U <= 1
+                    from = findVertex(v, from, to, uOffset, uScale, 0, false);
+                    to = findVertex(v, from, to, uOffset, uScale, 1, true);
+                    if (from < to) {
+                        isOpen =
+                                drawSection(sink, v, culler, from, to,
+                                        uOffset, uScale, bottom, dx, dy, dz,
+                                        isOpen);
                     }
-                    prev = v;
-                    i++;
-                    if (i < numV - 10) {
-                        if (c.alpha < 1) {
-                            c.alpha += 0.1f;
-                        }
-                    } else {
-                        if (c.alpha > 0) {
-                            c.alpha -= 0.1;
+                }
+                if (isOpen) {
+                    sink.endStrip();
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes the given vertex range of the current strip to the sink. If a
+     * culler is given, invisible chunks of vertices (see
+     * {@link RibbonPool#getChunkBounds()}) are skipped, ending the current
+     * strip and starting a new one with the next visible chunk. Chunks far
+     * away only use every other vertex.
+     * 
+     * @return true, if a strip is still open
+     */
+    private boolean drawSection(RibbonStripSink sink, float[] v,
+            RibbonCuller culler, int from, int to, double uOffset,
+            double uScale, float bottom, float dx, float dy, float dz,
+            boolean isOpen) {
+        TColor c = feed.color;
+        float cr = c.red();
+        float cg = c.green();
+        float cb = c.blue();
+        float w2 = RIBBON_WIDTH * 0.5f;
+        float[] bounds = culler != null ? pool.getChunkBounds() : null;
+        int base = vertexOffset / RibbonPool.VERTEX_SIZE;
+        int numFadeIn = numVertices - 11;
+        float spacing = getVertexSpacing();
+        float alpha = getAlpha(from);
+        for (int i = from; i < to;) {
+            int end = to;
+            int step = RibbonCuller.FULL_DETAIL;
+            if (culler != null) {
+                int chunk = (base + i) >> RibbonPool.CHUNK_BITS;
+                end =
+                        Math.min(((chunk + 1) << RibbonPool.CHUNK_BITS) - base,
+                                to);
+                step =
+                        getChunkStep(culler, bounds, chunk, spacing, dx, dy,
+                                dz);
+                if (step == RibbonCuller.CULLED) {
+                    if (isOpen) {
+                        // last segment of the previous (visible) chunk
+                        int idx = vertexOffset + i * RibbonPool.VERTEX_SIZE;
+                        float y = v[idx + 1] + dy;
+                        sink.addVertexPair(cr, cg, cb, alpha,
+                                (float) (uOffset + v[idx + 3] * uScale),
+                                v[idx] + dx, y + w2, y - bottom, v[idx + 2]
+                                        + dz);
+                        sink.endStrip();
+                        isOpen = false;
+                    }
+                    if (end < to) {
+                        alpha = getAlpha(end);
+                    }
+                    i = end;
+                    continue;
+                }
+            }
+            if (!isOpen) {
+                sink.beginStrip(tex);
+                isOpen = true;
+            }
+            while (i < end) {
+                int idx = vertexOffset + i * RibbonPool.VERTEX_SIZE;
+                float y = v[idx + 1] + dy;
+                sink.addVertexPair(cr, cg, cb, alpha,
+                        (float) (uOffset + v[idx + 3] * uScale), v[idx] + dx,
+                        y + w2, y - bottom, v[idx + 2] + dz);
+                // always include the last vertex of the section
+                int next = i + step;
+                if (next >= to && i < to - 1) {
+                    next = to - 1;
+                }
+                for (; i < next; i++) {
+                    if (i < numFadeIn) {
+                        if (alpha < 1) {
+                            alpha += 0.1f;
                         }
+                    } else if (alpha > 0) {
+                        alpha -= 0.1;
                     }
                 }
-                gl.glEnd();
             }
         }
+        return isOpen;
+    }
+
+    /**
+     * Binary search for the first vertex in the given index range whose
+     * texture U coordinate (uOffset + distance * uScale) is greater or equal
+     * to (or if strict, greater than) the given value.
+     * 
+     * @return vertex index or the end of the range, if there's none
+     */
+    private int findVertex(float[] v, int from, int to, double uOffset,
+            double uScale, double u, boolean isStrict) {
+        int base = vertexOffset + 3;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            double mu =
+                    uOffset + v[base + mid * RibbonPool.VERTEX_SIZE] * uScale;
+            if (isStrict ? mu > u : mu >= u) {
+                to = mid;
+            } else {
+                from = mid + 1;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * Computes the alpha value of the given vertex: the first and last 10
+     * vertices of a ribbon are faded in/out in steps of 0.1.
+     * 
+     * @param i
+     *            vertex index
+     * @return alpha
+     */
+    protected float getAlpha(int i) {
+        int numFadeIn = Math.min(i, Math.max(numVertices - 11, 0));
+        float alpha = ALPHA_RAMP[Math.min(numFadeIn, ALPHA_RAMP.length - 1)];
+        for (int j = numFadeIn; j < i && alpha > 0; j++) {
+            alpha -= 0.1;
+        }
+        return alpha;
+    }
+
+    /**
+     * Computes the bounding box of the ribbon strip (incl. its width) for the
+     * given displacement.
+     * 
+     * @param dx
+     *            displacement X
+     * @param dy
+     *            displacement Y
+     * @param dz
+     *            displacement Z
+     * @param min
+     *            vector to store min. corner in
+     * @param max
+     *            vector to store max. corner in
+     */
+    public void getBounds(float dx, float dy, float dz, Vec3D min, Vec3D max) {
+        float w2 = RIBBON_WIDTH * 0.5f;
+        min.set(minBounds.x + dx, minBounds.y + dy - w2
+                * Math.max(LETTER_WIDTH, 1), minBounds.z + dz);
+        max.set(maxBounds.x + dx, maxBounds.y + dy + w2, maxBounds.z + dz);
+    }
+
+    /**
+     * Checks the given vertex chunk (incl. strip width & displacement)
+     * against the view of the culler.
+     * 
+     * @return vertex step to draw the chunk with
+     */
+    private int getChunkStep(RibbonCuller culler, float[] bounds, int chunk,
+            float spacing, float dx, float dy, float dz) {
+        int b = chunk * RibbonPool.BOUNDS_SIZE;
+        float w2 = RIBBON_WIDTH * 0.5f;
+        return culler.getVertexStep(bounds[b] + dx, bounds[b + 1] + dy - w2
+                * Math.max(LETTER_WIDTH, 1), bounds[b + 2] + dz, bounds[b + 3]
+                + dx, bounds[b + 4] + dy + w2, bounds[b + 5] + dz, spacing);
+    }
+
+    /**
+     * Copies the current displacement offset into the given array.
+     * 
+     * @param dest
+     *            target array
+     * @param offset
+     *            start index in target array
+     */
+    public void getDisplacement(float[] dest, int offset) {
+        int w = slot * 3;
+        float[] offsets = pool.offsets;
+        dest[offset] = offsets[w];
+        dest[offset + 1] = offsets[w + 1];
+        dest[offset + 2] = offsets[w + 2];
+    }
+
+    /**
+     * Returns the cumulative distance of the given vertex along the ribbon.
+     * 
+     * @param i
+     *            vertex index (clipped to the valid range)
+     * @return distance
+     */
+    protected float getDistance(int i) {
+        i = Math.max(Math.min(i, numVertices - 1), 0);
+        return pool.getVertices()[vertexOffset + i * RibbonPool.VERTEX_SIZE
+                + 3];
+    }
+
+    /**
+     * Returns the end of the letter section of the vertices, which is empty if
+     * the letter IDs aren't in ascending order.
+     * 
+     * @return index after last letter vertex
+     */
+    protected int getLetterEndID() {
+        return Math.max(letterStartID, letterEndID);
+    }
+
+    /**
+     * @return message text or null, if the texture has been given directly
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return current scroll position (texture U offset)
+     */
+    public double getScrollPosition() {
+        return pool.currU[slot];
+    }
+
+    /**
+     * @return texture or null, if not yet assigned
+     */
+    public Texture getTexture() {
+        return tex;
+    }
+
+    /**
+     * @return average distance between vertices
+     */
+    public float getVertexSpacing() {
+        return numVertices > 1 ? (float) totalLength / (numVertices - 1) : 0;
     }
 
     public void initShake() {
-        displaceMod.phase = MathUtils.random(MathUtils.TWO_PI);
+        pool.waves[slot * 3] =
+                MathUtils.random(SimClock.getRandom(), MathUtils.TWO_PI);
+    }
+
+    private boolean isUsed(ParticlePole3D p) {
+        return usedPoleIDs.get(p.getID());
+    }
+
+    /**
+     * Selects and reserves the start pole from the given group, either the one
+     * used least recently or the least used one (whichever has the lower hit
+     * count). Should the reservation fail due to concurrent ribbon builds, the
+     * selection is repeated.
+     * 
+     * @param startPoles
+     * @return reserved pole or null, if all poles are at their limit
+     */
+    protected ParticlePole3D reserveStartPole(PoleUsageIndex startPoles) {
+        int maxHitCount = poleManager.getMaxLetterHitCount();
+        while (true) {
+            ParticlePole3D currPole = startPoles.getCandidate(maxHitCount);
+            if (currPole == null || currPole.reserve(maxHitCount)) {
+                return currPole;
+            }
+        }
+    }
+
+    /**
+     * Releases all poles used by this ribbon, so they're available for new
+     * ribbons, while the geometry stays intact for drawing. Also done by
+     * {@link #cleanup()}, if not called before.
+     */
+    public void releasePoles() {
+        if (poles != null) {
+            for (ParticlePole3D p : poles) {
+                p.release();
+            }
+            poles = null;
+            usedPoleIDs = null;
+        }
+    }
+
+    /**
+     * Like {@link #releasePoles()}, but only adds the releases to the given
+     * batch, which is then applied by the caller for many ribbons at once.
+     * 
+     * @param batch
+     */
+    public void releasePoles(PoleReleaseBatch batch) {
+        if (poles != null) {
+            for (ParticlePole3D p : poles) {
+                batch.add(p);
+            }
+            poles = null;
+            usedPoleIDs = null;
+        }
     }
 
     public void retire() {
-        uTargetSpeed *= 5;
+        pool.uTargetSpeed[slot] *= 5;
+        pool.delay[slot] = 0;
         startFrame = 0;
-        delay = 0;
+    }
+
+    /**
+     * Assigns the (retained) texture, which will be released by
+     * {@link #cleanup()}.
+     * 
+     * @param tex
+     */
+    public void setTexture(Texture tex) {
+        this.tex = tex;
     }
 
     public boolean update(int currFrame, boolean doUpdate, float decay) {
-        displaceMod.amp *= decay;
-        displaceOffset.set(shakeDir).scaleSelf(displaceMod.update());
-        if (doUpdate && currFrame > startFrame + delay) {
-            uSpeed += (uTargetSpeed - uSpeed) * 0.02f;
-            currU += uSpeed;
-            double u = currU - totalLength * SCALED_LETTER_WIDTH * 2;
+        int w = slot * 3;
+        float[] waves = pool.waves;
+        float amp = waves[w + 2] *= decay;
+        float phase = waves[w];
+        float value = (float) (Math.sin(phase) * amp);
+        phase = (phase + waves[w + 1]) % MathUtils.TWO_PI;
+        if (phase < 0) {
+            phase += MathUtils.TWO_PI;
+        }
+        waves[w] = phase;
+        float[] dir = pool.shakeDirs;
+        float[] offsets = pool.offsets;
+        offsets[w] = dir[w] * value;
+        offsets[w + 1] = dir[w + 1] * value;
+        offsets[w + 2] = dir[w + 2] * value;
+        if (doUpdate && currFrame > startFrame + pool.delay[slot]) {
+            double[] uSpeed = pool.uSpeed;
+            uSpeed[slot] += (pool.uTargetSpeed[slot] - uSpeed[slot]) * 0.02f;
+            double u =
+                    (pool.currU[slot] += uSpeed[slot]) - totalLength
+                            * SCALED_LETTER_WIDTH * 2;
             return (u < 1);
         }
         return true;
@@ -0,0 +1,297 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * <p>
+ * CPU side packing stage of the batched ribbon renderer. Collects the triangle
+ * strips of all visible ribbons of a frame into a single interleaved vertex
+ * array and groups the strips by texture, so that they can be drawn with one
+ * multi draw call per texture (see {@link RibbonBatchRenderer}). This class
+ * doesn't require an OpenGL context.
+ * </p>
+ * 
+ * <p>
+ * Each vertex consists of {@link #VERTEX_SIZE} floats: position (XYZ),
+ * texture coordinates (UV) and color (RGBA). Texture coordinates are mapped
+ * into the area of the strip's texture and strips are grouped by base texture
+ * (see {@link Texture#getBaseTexture()}), so that strips stored in the same
+ * {@link TextureAtlas} page can be drawn together. Strips without texture are
+ * stored unmapped.
+ * </p>
+ */
+public class RibbonBatch implements RibbonStripSink {
+
+    /**
+     * Number of floats per vertex
+     */
+    public static final int VERTEX_SIZE = 9;
+
+    /**
+     * Float offset of the texture coordinates within a vertex
+     */
+    public static final int UV_OFFSET = 3;
+
+    /**
+     * Float offset of the color within a vertex
+     */
+    public static final int COLOR_OFFSET = 5;
+
+    protected float[] vertices;
+    protected int numVertices;
+
+    protected Texture[] stripTextures = new Texture[64];
+    protected int[] stripFirst = new int[64];
+    protected int[] stripCount = new int[64];
+    protected int numStrips;
+
+    protected Texture currTexture;
+    protected int currFirst;
+    protected float vTop, vBottom;
+
+    protected final IdentityHashMap<Texture, int[]> groupLookup =
+            new IdentityHashMap<Texture, int[]>();
+    protected Texture[] groupTextures = new Texture[16];
+    protected int[] groupOffsets = new int[17];
+    protected int[] sortedFirst = new int[64];
+    protected int[] sortedCount = new int[64];
+    protected int numGroups;
+
+    /**
+     * Creates a new batch with an initial capacity of 16k vertices. The batch
+     * grows automatically as needed.
+     */
+    public RibbonBatch() {
+        this(16 * 1024);
+    }
+
+    /**
+     * Creates a new batch with the given initial vertex capacity.
+     * 
+     * @param capacity
+     */
+    public RibbonBatch(int capacity) {
+        vertices = new float[Math.max(capacity, 2) * VERTEX_SIZE];
+    }
+
+    public void addVertexPair(float r, float g, float b, float a, float u,
+            float x, float yTop, float yBottom, float z) {
+        if (currTexture != null) {
+            u = currTexture.mapU(u);
+        }
+        int idx = numVertices * VERTEX_SIZE;
+        if (idx + 2 * VERTEX_SIZE > vertices.length) {
+            vertices = Arrays.copyOf(vertices, vertices.length * 2);
+        }
+        final float[] buf = vertices;
+        buf[idx++] = x;
+        buf[idx++] = yTop;
+        buf[idx++] = z;
+        buf[idx++] = u;
+        buf[idx++] = vTop;
+        buf[idx++] = r;
+        buf[idx++] = g;
+        buf[idx++] = b;
+        buf[idx++] = a;
+        buf[idx++] = x;
+        buf[idx++] = yBottom;
+        buf[idx++] = z;
+        buf[idx++] = u;
+        buf[idx++] = vBottom;
+        buf[idx++] = r;
+        buf[idx++] = g;
+        buf[idx++] = b;
+        buf[idx] = a;
+        numVertices += 2;
+    }
+
+    public void beginStrip(Texture tex) {
+        currTexture = tex;
+        currFirst = numVertices;
+        if (tex != null) {
+            vTop = tex.mapV(Ribbon.V_TOP);
+            vBottom = tex.mapV(Ribbon.V_BOTTOM);
+        } else {
+            vTop = Ribbon.V_TOP;
+            vBottom = Ribbon.V_BOTTOM;
+        }
+    }
+
+    /**
+     * Removes all strips from the batch (keeps allocated buffers).
+     */
+    public void clear() {
+        numVertices = 0;
+        numStrips = 0;
+        numGroups = 0;
+        Arrays.fill(stripTextures, null);
+        Arrays.fill(groupTextures, null);
+        currTexture = null;
+    }
+
+    public void endStrip() {
+        int count = numVertices - currFirst;
+        if (count > 0) {
+            if (numStrips == stripFirst.length) {
+                int len = numStrips * 2;
+                stripTextures = Arrays.copyOf(stripTextures, len);
+                stripFirst = Arrays.copyOf(stripFirst, len);
+                stripCount = Arrays.copyOf(stripCount, len);
+            }
+            stripTextures[numStrips] =
+                    currTexture != null ? currTexture.getBaseTexture() : null;
+            stripFirst[numStrips] = currFirst;
+            stripCount[numStrips] = count;
+            numStrips++;
+        }
+        currTexture = null;
+    }
+
+    /**
+     * Returns the texture of the given group.
+     * 
+     * @param group
+     *            group index
+     * @return texture
+     */
+    public Texture getGroupTexture(int group) {
+        return groupTextures[group];
+    }
+
+    /**
+     * Returns the index of the first strip of the given group within
+     * {@link #getSortedFirst()} and {@link #getSortedCount()}.
+     * 
+     * @param group
+     *            group index
+     * @return strip index
+     */
+    public int getGroupOffset(int group) {
+        return groupOffsets[group];
+    }
+
+    /**
+     * Returns the number of strips in the given group.
+     * 
+     * @param group
+     *            group index
+     * @return number of strips
+     */
+    public int getGroupSize(int group) {
+        return groupOffsets[group + 1] - groupOffsets[group];
+    }
+
+    /**
+     * @return number of texture groups, only valid after
+     *         {@link #groupByTexture()}
+     */
+    public int getNumGroups() {
+        return numGroups;
+    }
+
+    /**
+     * @return number of non-empty strips in the batch
+     */
+    public int getNumStrips() {
+        return numStrips;
+    }
+
+    /**
+     * @return number of vertices in the batch
+     */
+    public int getNumVertices() {
+        return numVertices;
+    }
+
+    /**
+     * Returns the vertex counts of all strips, ordered by texture group.
+     * 
+     * @return strip vertex counts
+     */
+    public int[] getSortedCount() {
+        return sortedCount;
+    }
+
+    /**
+     * Returns the first vertex index of all strips, ordered by texture group.
+     * 
+     * @return strip start indices
+     */
+    public int[] getSortedFirst() {
+        return sortedFirst;
+    }
+
+    /**
+     * Returns the underlying interleaved vertex array. Only the first
+     * {@link #getNumVertices()} * {@link #VERTEX_SIZE} values are valid.
+     * 
+     * @return vertex array
+     */
+    public float[] getVertices() {
+        return vertices;
+    }
+
+    /**
+     * Groups all strips by base texture (in order of first use). Within each group
+     * strips retain their original order. Since ribbons are rendered with
+     * additive blending and without depth writes, changing the order in which
+     * strips are drawn does not change the result.
+     */
+    public void groupByTexture() {
+        numGroups = 0;
+        groupLookup.clear();
+        for (int i = 0; i < numStrips; i++) {
+            int[] group = groupLookup.get(stripTextures[i]);
+            if (group == null) {
+                if (numGroups == groupTextures.length) {
+                    groupTextures = Arrays.copyOf(groupTextures, numGroups * 2);
+                    groupOffsets =
+                            Arrays.copyOf(groupOffsets, numGroups * 2 + 1);
+                }
+                group = new int[] { numGroups, 0 };
+                groupLookup.put(stripTextures[i], group);
+                groupTextures[numGroups++] = stripTextures[i];
+            }
+            group[1]++;
+        }
+        int offset = 0;
+        for (int i = 0; i < numGroups; i++) {
+            groupOffsets[i] = offset;
+            offset += groupLookup.get(groupTextures[i])[1];
+        }
+        groupOffsets[numGroups] = offset;
+        if (sortedFirst.length < numStrips) {
+            sortedFirst = new int[stripFirst.length];
+            sortedCount = new int[stripFirst.length];
+        }
+        for (int i = 0; i < numGroups; i++) {
+            groupLookup.get(groupTextures[i])[1] = groupOffsets[i];
+        }
+        for (int i = 0; i < numStrips; i++) {
+            int[] group = groupLookup.get(stripTextures[i]);
+            int idx = group[1]++;
+            sortedFirst[idx] = stripFirst[i];
+            sortedCount[idx] = stripCount[i];
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.nio.FloatBuffer;
+import java.util.logging.Logger;
+
+import javax.media.opengl.GL;
+
+import com.sun.opengl.util.BufferUtil;
+
+/**
+ * <p>
+ * Draws the contents of a {@link RibbonBatch} using a single streamed vertex
+ * buffer object (VBO) and one <code>glMultiDrawArrays()</code> call per
+ * texture. This replaces thousands of immediate mode calls per ribbon with a
+ * single buffer upload per frame. If VBOs are not supported by the driver,
+ * plain client side vertex arrays are used instead.
+ * </p>
+ * 
+ * <p>
+ * Must only be used from the GL thread, between
+ * {@link processing.opengl.PGraphicsOpenGL#beginGL()} and
+ * {@link processing.opengl.PGraphicsOpenGL#endGL()}.
+ * </p>
+ */
+public class RibbonBatchRenderer {
+
+    protected static final Logger logger =
+            Logger.getLogger(RibbonBatchRenderer.class.getName());
+
+    /**
+     * Vertex stride in bytes
+     */
+    protected static final int STRIDE = RibbonBatch.VERTEX_SIZE * 4;
+
+    protected final GL gl;
+    protected final boolean useVBO;
+    protected int vboID;
+    protected int vboCapacity;
+    protected FloatBuffer buffer;
+
+    /**
+     * Creates a new renderer for the given GL context.
+     * 
+     * @param gl
+     *            JOGL GL instance
+     */
+    public RibbonBatchRenderer(GL gl) {
+        this.gl = gl;
+        useVBO = gl.isFunctionAvailable("glGenBuffers");
+        if (useVBO) {
+            int[] tmp = new int[1];
+            gl.glGenBuffers(1, tmp, 0);
+            vboID = tmp[0];
+        }
+        logger.info("batched ribbon renderer using "
+                + (useVBO ? "VBO" : "vertex arrays"));
+    }
+
+    /**
+     * Releases the vertex buffer object.
+     */
+    public void delete() {
+        if (useVBO && vboID != 0) {
+            gl.glDeleteBuffers(1, new int[] { vboID }, 0);
+            vboID = 0;
+        }
+    }
+
+    /**
+     * Groups the strips of the given batch by texture, uploads the vertex data
+     * and renders all strips.
+     * 
+     * @param batch
+     *            ribbon batch
+     */
+    public void draw(RibbonBatch batch) {
+        int numFloats = batch.getNumVertices() * RibbonBatch.VERTEX_SIZE;
+        if (numFloats == 0) {
+            return;
+        }
+        batch.groupByTexture();
+        if (buffer == null || buffer.capacity() < numFloats) {
+            buffer = BufferUtil.newFloatBuffer(numFloats + numFloats / 2);
+        }
+        buffer.clear();
+        buffer.put(batch.getVertices(), 0, numFloats);
+        buffer.flip();
+        gl.glEnableClientState(GL.GL_VERTEX_ARRAY);
+        gl.glEnableClientState(GL.GL_TEXTURE_COORD_ARRAY);
+        gl.glEnableClientState(GL.GL_COLOR_ARRAY);
+        if (useVBO) {
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vboID);
+            if (numFloats > vboCapacity) {
+                vboCapacity = buffer.capacity();
+                gl.glBufferData(GL.GL_ARRAY_BUFFER, vboCapacity * 4, null,
+                        GL.GL_STREAM_DRAW);
+            }
+            gl.glBufferSubData(GL.GL_ARRAY_BUFFER, 0, numFloats * 4, buffer);
+            gl.glVertexPointer(3, GL.GL_FLOAT, STRIDE, 0);
+            gl.glTexCoordPointer(2, GL.GL_FLOAT, STRIDE,
+                    RibbonBatch.UV_OFFSET * 4);
+            gl.glColorPointer(4, GL.GL_FLOAT, STRIDE,
+                    RibbonBatch.COLOR_OFFSET * 4);
+        } else {
+            buffer.position(0);
+            gl.glVertexPointer(3, GL.GL_FLOAT, STRIDE, buffer.slice());
+            buffer.position(RibbonBatch.UV_OFFSET);
+            gl.glTexCoordPointer(2, GL.GL_FLOAT, STRIDE, buffer.slice());
+            buffer.position(RibbonBatch.COLOR_OFFSET);
+            gl.glColorPointer(4, GL.GL_FLOAT, STRIDE, buffer.slice());
+            buffer.position(0);
+        }
+        int[] first = batch.getSortedFirst();
+        int[] count = batch.getSortedCount();
+        for (int i = 0, num = batch.getNumGroups(); i < num; i++) {
+            batch.getGroupTexture(i).bind();
+            gl.glMultiDrawArrays(GL.GL_TRIANGLE_STRIP, first, batch
+                    .getGroupOffset(i), count, batch.getGroupOffset(i), batch
+                    .getGroupSize(i));
+        }
+        if (useVBO) {
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        }
+        gl.glDisableClientState(GL.GL_COLOR_ARRAY);
+        gl.glDisableClientState(GL.GL_TEXTURE_COORD_ARRAY);
+        gl.glDisableClientState(GL.GL_VERTEX_ARRAY);
+    }
+}
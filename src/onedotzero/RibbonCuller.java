@@ -0,0 +1,255 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import processing.core.PMatrix3D;
+import toxi.geom.Vec3D;
+
+/**
+ * <p>
+ * Decides how (and if) ribbons need to be drawn for the current view. Ribbons
+ * whose bounding box lies completely outside the view frustum are skipped.
+ * Since ribbons usually span large parts of the scene, {@link Ribbon} also
+ * tests the boxes of chunks of its vertices while drawing: invisible chunks
+ * are skipped and chunks which are far away or small on screen, i.e. whose
+ * vertices would be less than a given number of pixels apart, are drawn using
+ * only every other vertex.
+ * </p>
+ * 
+ * <p>
+ * The frustum is extracted from the projection & modelview matrices of the
+ * graphics context, so it reflects the camera settings (fov, clipping
+ * planes, zoom, arc ball rotation) as well as the frustum of the current tile
+ * of a tiled export (see {@link onedotzero.export.Tiler}). The view needs to
+ * be updated via {@link #setView(PMatrix3D, PMatrix3D, boolean, int)} each
+ * time the camera or tile changes. This class is not thread safe.
+ * </p>
+ */
+public class RibbonCuller {
+
+    /**
+     * Vertex step for chunks outside the view frustum
+     */
+    public static final int CULLED = 0;
+
+    /**
+     * Vertex step for chunks drawn in full detail
+     */
+    public static final int FULL_DETAIL = 1;
+
+    /**
+     * Vertex step for chunks drawn with reduced detail
+     */
+    public static final int COARSE_DETAIL = 2;
+
+    protected final PMatrix3D clip = new PMatrix3D();
+    protected final float[] planes = new float[24];
+    protected final Vec3D min = new Vec3D();
+    protected final Vec3D max = new Vec3D();
+
+    protected float pixelScale;
+    protected float minSpacing;
+
+    protected int numCulled;
+    protected int numCulledChunks;
+    protected int numCoarseChunks;
+
+    /**
+     * @param minSpacing
+     *            min. on screen distance (in pixels) between vertices for
+     *            chunks to be drawn in full detail (0 = always full detail)
+     */
+    public RibbonCuller(float minSpacing) {
+        this.minSpacing = minSpacing;
+    }
+
+    /**
+     * @return number of chunks with reduced detail since the last view change
+     */
+    public int getNumCoarseChunks() {
+        return numCoarseChunks;
+    }
+
+    /**
+     * @return number of ribbons culled since the last view change
+     */
+    public int getNumCulled() {
+        return numCulled;
+    }
+
+    /**
+     * @return number of chunks culled since the last view change (excl. those
+     *         of culled ribbons)
+     */
+    public int getNumCulledChunks() {
+        return numCulledChunks;
+    }
+
+    /**
+     * Checks the given bounding box of a chunk of ribbon vertices against the
+     * current view.
+     * 
+     * @param minX
+     * @param minY
+     * @param minZ
+     * @param maxX
+     * @param maxY
+     * @param maxZ
+     * @param spacing
+     *            distance between the vertices of the chunk
+     * @return vertex step to draw the chunk with: {@link #CULLED},
+     *         {@link #FULL_DETAIL} or {@link #COARSE_DETAIL}
+     */
+    public int getVertexStep(float minX, float minY, float minZ, float maxX,
+            float maxY, float maxZ, float spacing) {
+        if (!isVisible(minX, minY, minZ, maxX, maxY, maxZ)) {
+            numCulledChunks++;
+            return CULLED;
+        }
+        if (minSpacing > 0) {
+            // smallest eye distance (clip W) of the box
+            float ex = (maxX - minX) * 0.5f;
+            float ey = (maxY - minY) * 0.5f;
+            float ez = (maxZ - minZ) * 0.5f;
+            float w =
+                    clip.m30 * (minX + ex) + clip.m31 * (minY + ey)
+                            + clip.m32 * (minZ + ez) + clip.m33
+                            - Math.abs(clip.m30) * ex
+                            - Math.abs(clip.m31) * ey
+                            - Math.abs(clip.m32) * ez;
+            if (w > 0 && spacing * pixelScale < minSpacing * w) {
+                numCoarseChunks++;
+                return COARSE_DETAIL;
+            }
+        }
+        return FULL_DETAIL;
+    }
+
+    /**
+     * Checks the bounding box of the given ribbon (with the given
+     * displacement) against the current view.
+     * 
+     * @param r
+     *            ribbon
+     * @param dx
+     *            displacement X
+     * @param dy
+     *            displacement Y
+     * @param dz
+     *            displacement Z
+     * @return true, if (potentially) visible
+     */
+    public boolean isVisible(Ribbon r, float dx, float dy, float dz) {
+        r.getBounds(dx, dy, dz, min, max);
+        if (!isVisible(min.x, min.y, min.z, max.x, max.y, max.z)) {
+            numCulled++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the given axis aligned box intersects the view frustum. The
+     * test is conservative, i.e. some boxes close to the frustum corners are
+     * considered visible although they're not.
+     * 
+     * @param minX
+     * @param minY
+     * @param minZ
+     * @param maxX
+     * @param maxY
+     * @param maxZ
+     * @return true, if (potentially) visible
+     */
+    public boolean isVisible(float minX, float minY, float minZ, float maxX,
+            float maxY, float maxZ) {
+        float[] p = planes;
+        for (int i = 0; i < 24; i += 4) {
+            // test the box corner furthest along the plane normal
+            float a = p[i];
+            float b = p[i + 1];
+            float c = p[i + 2];
+            if (a * (a > 0 ? maxX : minX) + b * (b > 0 ? maxY : minY) + c
+                    * (c > 0 ? maxZ : minZ) + p[i + 3] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the min. on screen distance between vertices for chunks to be
+     * drawn in full detail.
+     * 
+     * @param minSpacing
+     *            distance in pixels (0 = always full detail)
+     */
+    public void setMinSpacing(float minSpacing) {
+        this.minSpacing = minSpacing;
+    }
+
+    private void setPlane(int id, float a, float b, float c, float d) {
+        id *= 4;
+        planes[id] = a;
+        planes[id + 1] = b;
+        planes[id + 2] = c;
+        planes[id + 3] = d;
+    }
+
+    /**
+     * Sets up the frustum planes for the given view and resets the
+     * statistics.
+     * 
+     * @param projection
+     *            projection matrix
+     * @param modelview
+     *            modelview matrix
+     * @param isFlipped
+     *            true, if the Y axis is flipped between modelview and
+     *            projection (as done by Processing's OpenGL renderer)
+     * @param height
+     *            viewport height in pixels
+     */
+    public void setView(PMatrix3D projection, PMatrix3D modelview,
+            boolean isFlipped, int height) {
+        clip.set(projection);
+        if (isFlipped) {
+            clip.scale(1, -1, 1);
+        }
+        clip.apply(modelview);
+        PMatrix3D m = clip;
+        // left, right, bottom, top, near, far
+        setPlane(0, m.m30 + m.m00, m.m31 + m.m01, m.m32 + m.m02, m.m33 + m.m03);
+        setPlane(1, m.m30 - m.m00, m.m31 - m.m01, m.m32 - m.m02, m.m33 - m.m03);
+        setPlane(2, m.m30 + m.m10, m.m31 + m.m11, m.m32 + m.m12, m.m33 + m.m13);
+        setPlane(3, m.m30 - m.m10, m.m31 - m.m11, m.m32 - m.m12, m.m33 - m.m13);
+        setPlane(4, m.m30 + m.m20, m.m31 + m.m21, m.m32 + m.m22, m.m33 + m.m23);
+        setPlane(5, m.m30 - m.m20, m.m31 - m.m21, m.m32 - m.m22, m.m33 - m.m23);
+        // pixels per world unit at an eye distance of 1
+        float scale =
+                (float) Math.sqrt(modelview.m00 * modelview.m00
+                        + modelview.m01 * modelview.m01 + modelview.m02
+                        * modelview.m02);
+        pixelScale = Math.abs(projection.m11) * scale * height * 0.5f;
+        numCulled = 0;
+        numCulledChunks = 0;
+        numCoarseChunks = 0;
+    }
+}
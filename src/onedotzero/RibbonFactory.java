@@ -0,0 +1,279 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import onedotzero.poles.PoleUsageIndex;
+import toxi.geom.Vec3D;
+
+/**
+ * <p>
+ * Builds {@link Ribbon} geometry (field line tracing, letter loop walking and
+ * distance computation) on a pool of background worker threads, so that a
+ * burst of new ribbons doesn't stall the render loop. Finished ribbons are
+ * handed back via a lock-free queue and collected once per frame using
+ * {@link #drainTo(List, int)}.
+ * </p>
+ * 
+ * <p>
+ * The number of builds in flight (queued, running or finished but not yet
+ * collected) is limited. With a pool size of 0, ribbons are built
+ * synchronously on the calling thread, same as before. Since builds read the
+ * current pole constellation, {@link #reset()} must be called before any
+ * changes are made to the {@link onedotzero.poles.PoleManager}.
+ * </p>
+ */
+public class RibbonFactory {
+
+    /**
+     * Single ribbon build job.
+     */
+    protected class Job implements Runnable {
+
+        protected final Ribbon ribbon;
+        protected final PoleUsageIndex startPoles;
+        protected final int startFrame;
+        protected final int loopCount;
+        protected final int generation;
+
+        protected Job(Ribbon ribbon, PoleUsageIndex startPoles,
+                int startFrame, int loopCount) {
+            this.ribbon = ribbon;
+            this.startPoles = startPoles;
+            this.startFrame = startFrame;
+            this.loopCount = loopCount;
+            this.generation = RibbonFactory.this.generation.get();
+        }
+
+        public void run() {
+            boolean isQueued = false;
+            try {
+                if (generation == RibbonFactory.this.generation.get()) {
+                    isQueued = build(this);
+                }
+            } catch (RuntimeException e) {
+                logger.warning("ribbon build failed: " + e);
+            } finally {
+                if (!isQueued) {
+                    ribbon.cleanup();
+                    jobDone();
+                }
+            }
+        }
+    }
+
+    protected static final Logger logger =
+            Logger.getLogger(RibbonFactory.class.getName());
+
+    protected final ExecutorService executor;
+    protected final ConcurrentLinkedQueue<Ribbon> finished =
+            new ConcurrentLinkedQueue<Ribbon>();
+    protected final AtomicInteger numInFlight = new AtomicInteger();
+    protected final AtomicInteger generation = new AtomicInteger();
+    protected final int maxInFlight;
+
+    /**
+     * Initial direction of the next ribbon. Each build continues with the
+     * last field direction of the previous one, like the shared
+     * {@link Vec3D#Y_AXIS} instance used to be mutated by the original
+     * synchronous implementation.
+     */
+    protected final Vec3D direction = Vec3D.Y_AXIS.copy();
+
+    /**
+     * Creates a new factory.
+     * 
+     * @param numThreads
+     *            number of worker threads (0 = build synchronously)
+     * @param maxInFlight
+     *            max. number of ribbon builds in flight
+     */
+    public RibbonFactory(int numThreads, int maxInFlight) {
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        if (numThreads > 0) {
+            executor =
+                    Executors.newFixedThreadPool(numThreads,
+                            new ThreadFactory() {
+
+                                private int id;
+
+                                public Thread newThread(Runnable r) {
+                                    Thread t =
+                                            new Thread(r, "ribbonfactory-"
+                                                    + (id++));
+                                    t.setDaemon(true);
+                                    return t;
+                                }
+                            });
+        } else {
+            executor = null;
+        }
+        logger.info("ribbon factory threads: " + numThreads
+                + " max in flight: " + this.maxInFlight);
+    }
+
+    /**
+     * Executes the actual build of a job and queues the ribbon if successful.
+     * Builds of an outdated generation are discarded. Ribbons which haven't
+     * been queued must be cleaned up by the caller.
+     * 
+     * @return true, if the ribbon has been queued
+     */
+    protected boolean build(Job job) {
+        Vec3D dir;
+        synchronized (direction) {
+            dir = direction.copy();
+        }
+        boolean isValid =
+                job.ribbon.create(job.startPoles, dir, job.startFrame,
+                        job.loopCount);
+        synchronized (direction) {
+            direction.set(dir);
+        }
+        if (isValid && job.generation == generation.get()) {
+            finished.offer(job.ribbon);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves finished ribbons into the given list.
+     * 
+     * @param ribbons
+     *            target list
+     * @param maxCount
+     *            max. size of the target list
+     * @return number of ribbons added
+     */
+    public int drainTo(List<Ribbon> ribbons, int maxCount) {
+        int num = 0;
+        Ribbon r;
+        while (ribbons.size() < maxCount && (r = finished.poll()) != null) {
+            ribbons.add(r);
+            jobDone();
+            num++;
+        }
+        return num;
+    }
+
+    /**
+     * @return max. number of ribbon builds in flight
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return current number of builds queued, running or waiting for
+     *         collection
+     */
+    public int getNumInFlight() {
+        return numInFlight.get();
+    }
+
+    protected void jobDone() {
+        if (numInFlight.decrementAndGet() == 0) {
+            synchronized (numInFlight) {
+                numInFlight.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Discards all pending and finished builds and blocks until all running
+     * builds are completed. Must be called before the pole constellation used
+     * by any pending builds is modified. Interrupts don't cut the wait short,
+     * the interrupt flag is restored once all builds are done.
+     */
+    public void reset() {
+        generation.incrementAndGet();
+        Ribbon r;
+        while ((r = finished.poll()) != null) {
+            r.cleanup();
+            jobDone();
+        }
+        boolean isInterrupted = false;
+        synchronized (numInFlight) {
+            while (numInFlight.get() > 0) {
+                try {
+                    numInFlight.wait(10);
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+                while ((r = finished.poll()) != null) {
+                    r.cleanup();
+                    jobDone();
+                }
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops all worker threads. Pending builds are discarded.
+     */
+    public void shutdown() {
+        generation.incrementAndGet();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Submits a new ribbon for construction, if the max. number of builds in
+     * flight hasn't been reached yet. Ribbons which are rejected, fail to build
+     * or are discarded are cleaned up automatically.
+     * 
+     * @param ribbon
+     *            ribbon instance to build
+     * @param startPoles
+     *            letter poles to choose the ribbon's start pole from
+     * @param startFrame
+     *            frame number at which the ribbon should start
+     * @param loopCount
+     *            number of loops around the letter
+     * @return true, if the ribbon has been accepted
+     */
+    public boolean submit(Ribbon ribbon, PoleUsageIndex startPoles,
+            int startFrame, int loopCount) {
+        if (numInFlight.incrementAndGet() > maxInFlight) {
+            ribbon.cleanup();
+            jobDone();
+            return false;
+        }
+        Job job = new Job(ribbon, startPoles, startFrame, loopCount);
+        if (executor != null) {
+            executor.execute(job);
+        } else {
+            job.run();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.util.List;
+
+import toxi.geom.Vec3D;
+
+/**
+ * <p>
+ * Structure-of-arrays storage for the state of all ribbons. Instead of each
+ * {@link Ribbon} owning a vertex list, distance array, wave and several
+ * vectors, all ribbons share a handful of large arrays:
+ * </p>
+ * 
+ * <ul>
+ * <li>Per ribbon slots for scroll position & speed, start delay, the
+ * displacement wave (phase, frequency, amplitude), shake direction and current
+ * displacement offset.</li>
+ * <li>A single float array holding the geometry of all ribbons, using
+ * {@link #VERTEX_SIZE} floats per vertex: position and cumulative distance
+ * along the ribbon (from which texture coordinates are derived when
+ * drawing).</li>
+ * <li>A float array holding the bounding box of each chunk of
+ * {@link #CHUNK_SIZE} vertices, used to skip invisible parts of ribbons (see
+ * {@link RibbonCuller}).</li>
+ * </ul>
+ * 
+ * <p>
+ * Slots and vertex segments are recycled once a ribbon has been cleaned up.
+ * Vertex segments are allocated in power-of-2 size classes, each with its own
+ * free list, so the array doesn't fragment over time. Since geometry doesn't
+ * change after a ribbon has been built, it can be read without locking, as
+ * long as the ribbon has been handed over safely (see {@link RibbonFactory}).
+ * Slot data must only be modified by the thread allocating slots (i.e. the
+ * simulation thread and its {@link RibbonUpdater}).
+ * </p>
+ */
+public class RibbonPool {
+
+    /**
+     * Number of floats per vertex: x, y, z, cumulative distance
+     */
+    public static final int VERTEX_SIZE = 4;
+
+    /**
+     * Size class of the smallest vertex segment (as power of 2)
+     */
+    public static final int MIN_SEGMENT_BITS = 6;
+
+    /**
+     * Number of vertices per bounding box chunk (as power of 2)
+     */
+    public static final int CHUNK_BITS = 4;
+
+    /**
+     * Number of vertices per bounding box chunk
+     */
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    /**
+     * Number of floats per chunk: min. & max. corner of its bounding box
+     */
+    public static final int BOUNDS_SIZE = 6;
+
+    private static final RibbonPool INSTANCE = new RibbonPool(1024, 1 << 18);
+
+    /**
+     * Returns the pool shared by all ribbons.
+     * 
+     * @return pool
+     */
+    public static RibbonPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the size class of a segment for the given number of vertices.
+     * 
+     * @param numVertices
+     * @return size class (segment length as power of 2)
+     */
+    public static int getSizeClass(int numVertices) {
+        return Math.max(MIN_SEGMENT_BITS, 32 - Integer
+                .numberOfLeadingZeros(Math.max(numVertices, 1) - 1));
+    }
+
+    protected double[] currU;
+    protected double[] uSpeed;
+    protected double[] uTargetSpeed;
+    protected int[] delay;
+    protected float[] waves;
+    protected float[] shakeDirs;
+    protected float[] offsets;
+
+    protected int numSlots;
+    protected int[] freeSlots;
+    protected int numFreeSlots;
+
+    protected volatile float[] vertices;
+    protected volatile float[] chunkBounds;
+    protected int vertexTop;
+    protected final int[][] freeSegments = new int[32][];
+    protected final int[] numFreeSegments = new int[32];
+    protected int numSegments;
+
+    /**
+     * @param numSlots
+     *            initial number of ribbon slots
+     * @param numVertices
+     *            initial vertex capacity
+     */
+    public RibbonPool(int numSlots, int numVertices) {
+        growSlots(Math.max(numSlots, 1));
+        vertices = new float[Math.max(numVertices, 1) * VERTEX_SIZE];
+        chunkBounds = new float[getNumChunks(vertices.length) * BOUNDS_SIZE];
+    }
+
+    /**
+     * Allocates a slot for a new ribbon. All values are set to 0.
+     * 
+     * @return slot index
+     */
+    public synchronized int allocSlot() {
+        int slot;
+        if (numFreeSlots > 0) {
+            slot = freeSlots[--numFreeSlots];
+            currU[slot] = 0;
+            uSpeed[slot] = 0;
+            uTargetSpeed[slot] = 0;
+            delay[slot] = 0;
+            for (int i = slot * 3, j = i + 3; i < j; i++) {
+                waves[i] = 0;
+                shakeDirs[i] = 0;
+                offsets[i] = 0;
+            }
+        } else {
+            if (numSlots == currU.length) {
+                growSlots(numSlots * 2);
+            }
+            slot = numSlots++;
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the slot with the given index back to the pool.
+     * 
+     * @param slot
+     */
+    public synchronized void freeSlot(int slot) {
+        freeSlots[numFreeSlots++] = slot;
+    }
+
+    /**
+     * Returns the segment of the given size back to the pool.
+     * 
+     * @param offset
+     *            array offset of the segment
+     * @param numVertices
+     *            number of vertices the segment has been allocated for
+     */
+    public synchronized void freeVertices(int offset, int numVertices) {
+        int sizeClass = getSizeClass(numVertices);
+        int[] stack = freeSegments[sizeClass];
+        if (stack == null) {
+            stack = freeSegments[sizeClass] = new int[16];
+        } else if (numFreeSegments[sizeClass] == stack.length) {
+            int[] newStack = new int[stack.length * 2];
+            System.arraycopy(stack, 0, newStack, 0, stack.length);
+            stack = freeSegments[sizeClass] = newStack;
+        }
+        stack[numFreeSegments[sizeClass]++] = offset;
+        numSegments--;
+    }
+
+    /**
+     * Returns the array holding the bounding boxes of all vertex chunks. Each
+     * box contains the vertices of its chunk as well as the first 2 vertices
+     * of the following one, so it also covers the segments connecting the
+     * chunk to the next (even if every other vertex is skipped). The box of
+     * the chunk containing vertex i of a segment starting at array offset o
+     * starts at index ((o / VERTEX_SIZE + i) >> CHUNK_BITS) * BOUNDS_SIZE. Like
+     * the vertex array, this array is replaced when the pool grows.
+     * 
+     * @return chunk bounds array
+     */
+    public float[] getChunkBounds() {
+        return chunkBounds;
+    }
+
+    private int getNumChunks(int numFloats) {
+        return ((numFloats / VERTEX_SIZE) >> CHUNK_BITS) + 1;
+    }
+
+    /**
+     * @return number of slots currently in use
+     */
+    public synchronized int getNumSlotsUsed() {
+        return numSlots - numFreeSlots;
+    }
+
+    /**
+     * @return number of vertex segments currently in use
+     */
+    public synchronized int getNumSegmentsUsed() {
+        return numSegments;
+    }
+
+    /**
+     * @return vertex capacity of the backing array
+     */
+    public int getVertexCapacity() {
+        return vertices.length / VERTEX_SIZE;
+    }
+
+    /**
+     * Returns the array holding all ribbon geometry. The array is replaced
+     * when the pool grows, so callers should only hold on to it during a
+     * single operation.
+     * 
+     * @return vertex array
+     */
+    public float[] getVertices() {
+        return vertices;
+    }
+
+    private void growSlots(int size) {
+        currU = grow(currU, size);
+        uSpeed = grow(uSpeed, size);
+        uTargetSpeed = grow(uTargetSpeed, size);
+        delay = grow(delay, size);
+        waves = grow(waves, size * 3);
+        shakeDirs = grow(shakeDirs, size * 3);
+        offsets = grow(offsets, size * 3);
+        freeSlots = grow(freeSlots, size);
+    }
+
+    private double[] grow(double[] a, int size) {
+        double[] b = new double[size];
+        if (a != null) {
+            System.arraycopy(a, 0, b, 0, a.length);
+        }
+        return b;
+    }
+
+    private float[] grow(float[] a, int size) {
+        float[] b = new float[size];
+        if (a != null) {
+            System.arraycopy(a, 0, b, 0, a.length);
+        }
+        return b;
+    }
+
+    private int[] grow(int[] a, int size) {
+        int[] b = new int[size];
+        if (a != null) {
+            System.arraycopy(a, 0, b, 0, a.length);
+        }
+        return b;
+    }
+
+    /**
+     * Computes the bounding boxes of all chunks of the given vertex segment.
+     */
+    private void storeChunkBounds(float[] v, int offset, int num) {
+        float[] bounds = chunkBounds;
+        int base = offset / VERTEX_SIZE;
+        for (int i = 0; i < num; i += CHUNK_SIZE) {
+            int idx = offset + i * VERTEX_SIZE;
+            float minX = v[idx], minY = v[idx + 1], minZ = v[idx + 2];
+            float maxX = minX, maxY = minY, maxZ = minZ;
+            int end = Math.min(i + CHUNK_SIZE + 2, num);
+            for (int j = i + 1; j < end; j++) {
+                idx += VERTEX_SIZE;
+                float x = v[idx], y = v[idx + 1], z = v[idx + 2];
+                if (x < minX) {
+                    minX = x;
+                } else if (x > maxX) {
+                    maxX = x;
+                }
+                if (y < minY) {
+                    minY = y;
+                } else if (y > maxY) {
+                    maxY = y;
+                }
+                if (z < minZ) {
+                    minZ = z;
+                } else if (z > maxZ) {
+                    maxZ = z;
+                }
+            }
+            int b = ((base + i) >> CHUNK_BITS) * BOUNDS_SIZE;
+            bounds[b] = minX;
+            bounds[b + 1] = minY;
+            bounds[b + 2] = minZ;
+            bounds[b + 3] = maxX;
+            bounds[b + 4] = maxY;
+            bounds[b + 5] = maxZ;
+        }
+    }
+
+    /**
+     * Allocates a vertex segment and stores the given vertices and their
+     * cumulative distances (starting with 0 for the first vertex). Vertices
+     * are copied, so the list can be discarded afterwards.
+     * 
+     * @param list
+     *            ribbon vertices
+     * @return array offset of the segment
+     */
+    public synchronized int storeVertices(List<Vec3D> list) {
+        int num = list.size();
+        int sizeClass = getSizeClass(num);
+        int offset;
+        if (numFreeSegments[sizeClass] > 0) {
+            offset = freeSegments[sizeClass][--numFreeSegments[sizeClass]];
+        } else {
+            offset = vertexTop;
+            vertexTop += (1 << sizeClass) * VERTEX_SIZE;
+            if (vertexTop > vertices.length) {
+                float[] v =
+                        grow(vertices, Math
+                                .max(vertices.length * 2, vertexTop));
+                chunkBounds =
+                        grow(chunkBounds, getNumChunks(v.length)
+                                * BOUNDS_SIZE);
+                vertices = v;
+            }
+        }
+        float[] v = vertices;
+        Vec3D prev = null;
+        float dist = 0;
+        for (int i = 0, idx = offset; i < num; i++, idx += VERTEX_SIZE) {
+            Vec3D p = list.get(i);
+            if (prev != null) {
+                dist += p.distanceTo(prev);
+            }
+            v[idx] = p.x;
+            v[idx + 1] = p.y;
+            v[idx + 2] = p.z;
+            v[idx + 3] = dist;
+            prev = p;
+        }
+        storeChunkBounds(v, offset, num);
+        numSegments++;
+        return offset;
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+import onedotzero.data.FeedPool;
+import onedotzero.data.FeedPool.FeedConfiguration;
+import onedotzero.message.MessageLine;
+import onedotzero.poles.PoleManager;
+import onedotzero.poles.PoleReleaseBatch;
+import onedotzero.poles.PoleUsageIndex;
+import onedotzero.poles.strategies.RandomXPolePositioning;
+import onedotzero.type.Alphabet;
+import onedotzero.type.CustomPoles;
+import onedotzero.type.LetterPoleGroup;
+import toxi.color.TColor;
+import toxi.geom.AABB;
+import toxi.geom.Vec3D;
+import toxi.math.MathUtils;
+import toxi.util.datatypes.TypedProperties;
+
+/**
+ * <p>
+ * Ribbon simulation shared by the interactive {@link ODZApp} and the headless
+ * {@link OfflineRenderer}. Owns the alphabet, message feeds, poles and the
+ * lists of active & retired ribbons, all configured from app.properties. Each
+ * call of {@link #update(boolean, float)} advances the simulation by a single
+ * step: new ribbons are submitted to the {@link RibbonFactory}, finished ones
+ * are added to the scene and all ribbons are updated and expired.
+ * </p>
+ * 
+ * <p>
+ * Subclasses can customize how new ribbons are created (e.g. to assign their
+ * textures straight away) and how expired ribbons are disposed of. The ribbon
+ * settings fields may be changed from other threads (e.g. the GUI), all
+ * methods must only be called from the simulation thread.
+ * </p>
+ */
+public class RibbonSimulation {
+
+    protected static final Logger logger =
+            Logger.getLogger(RibbonSimulation.class.getName());
+
+    protected final TypedProperties config;
+
+    protected Alphabet alphabet;
+    protected CustomPoles customPoles;
+    protected FeedPool feedPool;
+    protected PoleManager poles;
+    protected final AABB worldBounds =
+            new AABB(new Vec3D(), new Vec3D(1500, 400, 500));
+    protected final Vec3D centreExclusion;
+
+    protected final RibbonFactory ribbonFactory;
+    protected final RibbonUpdater ribbonUpdater;
+    protected RibbonStore ribbons = new RibbonStore();
+    protected RibbonStore oldRibbons = new RibbonStore();
+    protected final List<Ribbon> expiredTmp = new ArrayList<Ribbon>();
+    protected final PoleReleaseBatch poleReleases = new PoleReleaseBatch();
+
+    protected int sequenceID;
+
+    protected int numPoles;
+    protected int maxRibbonCount;
+    protected int maxRibbonDelay;
+    protected int ribbonLoopCount;
+    protected float maxScrollSpeed;
+    protected int numNewRibbons;
+    protected float newRibbonChance;
+    protected float ribbonWidth;
+    protected float letterScale;
+
+    /**
+     * Reads the default pole & ribbon settings from the given config. The
+     * alphabet, feeds & poles need to be initialized separately.
+     * 
+     * @param config
+     *            app config
+     * @param ribbonFactory
+     *            factory used to build new ribbons
+     * @param ribbonUpdater
+     *            updater used for all ribbons
+     */
+    public RibbonSimulation(TypedProperties config,
+            RibbonFactory ribbonFactory, RibbonUpdater ribbonUpdater) {
+        this.config = config;
+        this.ribbonFactory = ribbonFactory;
+        this.ribbonUpdater = ribbonUpdater;
+        numPoles = config.getInt("defaults.poles.count", 60);
+        centreExclusion =
+                new Vec3D(0, config.getFloat("defaults.poles.exclusion.depth",
+                        0.33f), config.getFloat(
+                        "defaults.poles.exclusion.height", 0.5f));
+        maxRibbonCount = config.getInt("defaults.ribbon.totalmaxcount", 500);
+        maxRibbonDelay = config.getInt("defaults.ribbon.spawndelay", 0);
+        ribbonLoopCount = config.getInt("defaults.ribbon.loopcount", 2);
+        ribbonWidth = config.getFloat("defaults.ribbon.width", 12);
+        letterScale = config.getFloat("defaults.ribbon.letter.scale", 1.75f);
+        maxScrollSpeed =
+                config.getFloat("defaults.ribbon.maxscrollspeed", 0.005f);
+        numNewRibbons = config.getInt("defaults.ribbon.add.perframe", 1);
+        newRibbonChance = config.getFloat("defaults.ribbon.add.chance", 0.5f);
+        worldBounds.setExtent(new Vec3D(config.getFloat(
+                "defaults.bounds.extent.x", 1000), config.getFloat(
+                "defaults.bounds.extent.y", 400), config.getFloat(
+                "defaults.bounds.extent.z", 500)));
+        Ribbon.configureWidth(ribbonWidth, letterScale);
+    }
+
+    /**
+     * Initializes and submits a new single text ribbon to the
+     * {@link RibbonFactory}. The ribbon is created so that it flows through the
+     * currently least used letter and will be added to the space once its
+     * geometry has been built.
+     */
+    protected void addRibbon() {
+        PoleUsageIndex poleSet;
+        LetterPoleGroup letter = poles.getLeastUsedLetter();
+        if (letter.hasInline() && letter.innerUsage < letter.outerUsage) {
+            poleSet = letter.innerIndex;
+        } else {
+            poleSet = letter.outerIndex;
+        }
+        Ribbon r = createRibbon(feedPool.getRandomActiveFeed());
+        ribbonFactory.submit(r, poleSet, sequenceID, ribbonLoopCount);
+    }
+
+    /**
+     * Creates a new ribbon for the current message of the given feed. By
+     * default, the texture is requested later by the render thread.
+     * 
+     * @param fc
+     *            feed
+     * @return ribbon
+     */
+    protected Ribbon createRibbon(FeedConfiguration fc) {
+        return new Ribbon(poles, fc.feed.getMessage(), fc, maxScrollSpeed,
+                maxRibbonDelay);
+    }
+
+    /**
+     * Releases the poles of a ribbon removed from the simulation (batched, see
+     * {@link PoleReleaseBatch}) and cleans it up. Subclasses rendering on
+     * another thread need to defer the cleanup until the ribbon isn't drawn
+     * anymore.
+     * 
+     * @param r
+     *            ribbon
+     */
+    protected void expireRibbon(Ribbon r) {
+        r.releasePoles(poleReleases);
+        r.cleanup();
+    }
+
+    /**
+     * Returns the number of active ribbons plus the ones currently being built
+     * by the {@link RibbonFactory}.
+     * 
+     * @return number of ribbons
+     */
+    public int getNumRibbonsPending() {
+        return ribbons.size() + ribbonFactory.getNumInFlight();
+    }
+
+    /**
+     * Loads the alphabet definition used for the pole constellations.
+     * 
+     * @see Alphabet
+     */
+    public void initAlphabet() {
+        try {
+            JAXBContext context = JAXBContext.newInstance(Alphabet.class);
+            File file = new File("assets/alphabet/alphabet.xml");
+            alphabet = (Alphabet) context.createUnmarshaller().unmarshal(file);
+            alphabet.init();
+        } catch (JAXBException e) {
+            throw new IllegalStateException("couldn't load alphabet", e);
+        }
+    }
+
+    /**
+     * Loads the optional, hardcoded custom poles (if enabled in
+     * app.properties).
+     */
+    public void initCustomPoles() {
+        if (config.getBoolean("defaults.poles.custom.enabled", false)) {
+            try {
+                JAXBContext context =
+                        JAXBContext.newInstance(CustomPoles.class);
+                File file = new File("config/custompoles.xml");
+                customPoles =
+                        (CustomPoles) context.createUnmarshaller().unmarshal(
+                                file);
+            } catch (JAXBException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Loads & initializes all message feeds registered in app.properties.
+     * 
+     * @param baseDir
+     *            base directory for relative feed paths
+     */
+    public void initFeeds(File baseDir) {
+        feedPool = new FeedPool();
+        int numFeeds = config.getInt("feeds.count", 1);
+        for (int i = 0; i < numFeeds; i++) {
+            String feedID = "feed" + i;
+            String id = config.getProperty(feedID + ".id", "feed" + i);
+            String type = config.getProperty(feedID + ".type", "atom");
+            String url =
+                    config
+                            .getProperty(feedID + ".url",
+                                    "http://search.twitter.com/search.atom?q=onedotzero");
+            String hexCol = config.getProperty(feedID + ".col", "ffffff");
+            FeedConfiguration fc = null;
+            if (id != null && type != null && url != null && hexCol != null) {
+                TColor col = TColor.newHex(hexCol);
+                if (url.indexOf("http://") == -1) {
+                    File f = new File(url);
+                    if (!f.isAbsolute()) {
+                        f = new File(baseDir, url);
+                    }
+                    url = f.toURI().toString();
+                }
+                if (type.equalsIgnoreCase("atom")) {
+                    fc = feedPool.addAtomFeed(id, url, col);
+                } else if (type.equalsIgnoreCase("rss")) {
+                    fc = feedPool.addRSSFeed(id, url, col);
+                }
+            }
+            if (fc != null) {
+                fc.isEnabled = config.getBoolean(feedID + ".enabled", true);
+            } else {
+                logger.warning("feed #" + i
+                        + " config invalid, ignoring this feed");
+            }
+        }
+    }
+
+    /**
+     * Creates & configures the pole manager. Requires the alphabet to be
+     * loaded.
+     */
+    public void initPoleManager() {
+        poles = new PoleManager(alphabet, worldBounds);
+        poles.setPositionStrategy(new RandomXPolePositioning());
+        poles.setMaxLetterHitcount(config.getInt(
+                "defaults.poles.letters.maxhitcount", 30));
+        poles.setMaxExternalPoleHitcount(config.getInt(
+                "defaults.poles.external.maxhitcount", 60));
+        poles.setFieldAccuracy(config.getFloat(
+                "defaults.poles.field.accuracy", 0));
+        poles.setFieldLineCache(config.getInt(
+                "defaults.poles.fieldcache.size", 0), config.getInt(
+                "defaults.poles.fieldcache.dirresolution", 8));
+        poles.setCentreExclusion(centreExclusion);
+    }
+
+    /**
+     * Creates a new constellation of poles matching the letters of the given
+     * message lines. Currently active ribbons are retired and new ones
+     * triggered.
+     * 
+     * @param lines
+     *            message lines
+     */
+    public void initPolesAndRibbonsForMessage(List<MessageLine> lines) {
+        ribbonFactory.reset();
+        poles.setCentreExclusionZ(centreExclusion.z);
+        poles.init(numPoles);
+        if (customPoles != null) {
+            poles.addExternalPoles(customPoles.points);
+        }
+        for (MessageLine line : lines) {
+            poles.addMessageAt(line.text, line.offset, line.scale);
+        }
+        poles.processGroups();
+        sequenceID = 0;
+        for (Ribbon r : ribbons) {
+            r.retire();
+        }
+        // retired ribbons go first, followed by existing old ones
+        RibbonStore or = ribbons;
+        or.addAll(oldRibbons);
+        oldRibbons.clear();
+        ribbons = oldRibbons;
+        oldRibbons = or;
+        resetRibbons();
+    }
+
+    /**
+     * Clears all active (not retired) ribbons.
+     */
+    public void resetRibbons() {
+        ribbonFactory.reset();
+        Ribbon.configureWidth(ribbonWidth, letterScale);
+        for (Ribbon r : ribbons) {
+            expireRibbon(r);
+        }
+        ribbons.clear();
+        poleReleases.flush();
+        if (poles != null) {
+            poles.clearHitCounts();
+        }
+    }
+
+    /**
+     * Advances the simulation by a single step.
+     * 
+     * @param doUpdate
+     *            if false, ribbons don't animate and no new ones are added
+     * @param displaceDecay
+     *            decay factor for ribbon displacements
+     */
+    public void update(boolean doUpdate, float displaceDecay) {
+        sequenceID++;
+        if (doUpdate) {
+            for (int i = 0; i < numNewRibbons
+                    && getNumRibbonsPending() < maxRibbonCount; i++) {
+                float r = MathUtils.random(SimClock.getRandom(), 1f);
+                if (r < newRibbonChance) {
+                    addRibbon();
+                }
+            }
+        }
+        ribbonFactory.drainTo(ribbons, maxRibbonCount);
+        updateRibbons(oldRibbons, doUpdate, displaceDecay);
+        updateRibbons(ribbons, doUpdate, displaceDecay);
+        poleReleases.flush();
+    }
+
+    /**
+     * Updates the given list of ribbons (in parallel, see
+     * {@link RibbonUpdater}) and expires finished ones.
+     */
+    protected void updateRibbons(RibbonStore list, boolean doUpdate,
+            float displaceDecay) {
+        int num =
+                ribbonUpdater.update(list, sequenceID, doUpdate, displaceDecay);
+        if (num > 0) {
+            list.removeExpired(expiredTmp);
+            for (Ribbon r : expiredTmp) {
+                expireRibbon(r);
+            }
+            expiredTmp.clear();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * <p>
+ * Array backed list of ribbons with support for bulk updates. Instead of
+ * removing expired ribbons one by one (which shifts the remaining elements
+ * each time and makes retiring all ribbons after a message change a quadratic
+ * operation), ribbons are only flagged during the update (see
+ * {@link RibbonUpdater}) and then removed in a single compaction pass by
+ * {@link #removeExpired(List)}. The order of the remaining ribbons is
+ * preserved, so they're still drawn in order of creation.
+ * </p>
+ * 
+ * <p>
+ * The flags of different ribbons can be set concurrently, all other methods
+ * must only be used by a single thread.
+ * </p>
+ */
+public class RibbonStore extends AbstractList<Ribbon> implements RandomAccess {
+
+    protected Ribbon[] ribbons;
+    protected boolean[] isExpired;
+    protected int size;
+
+    public RibbonStore() {
+        this(64);
+    }
+
+    /**
+     * @param capacity
+     *            initial capacity
+     */
+    public RibbonStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        ribbons = new Ribbon[capacity];
+        isExpired = new boolean[capacity];
+    }
+
+    @Override
+    public void add(int index, Ribbon r) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+        ensureCapacity(size + 1);
+        System.arraycopy(ribbons, index, ribbons, index + 1, size - index);
+        System.arraycopy(isExpired, index, isExpired, index + 1, size - index);
+        ribbons[index] = r;
+        isExpired[index] = false;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Ribbon> c) {
+        ensureCapacity(size + c.size());
+        for (Ribbon r : c) {
+            ribbons[size] = r;
+            isExpired[size++] = false;
+        }
+        modCount++;
+        return c.size() > 0;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            ribbons[i] = null;
+        }
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Grows the backing arrays (if needed) to hold at least the given number
+     * of ribbons.
+     * 
+     * @param capacity
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > ribbons.length) {
+            int newSize = Math.max(ribbons.length * 2, capacity);
+            Ribbon[] newRibbons = new Ribbon[newSize];
+            System.arraycopy(ribbons, 0, newRibbons, 0, size);
+            ribbons = newRibbons;
+            boolean[] newFlags = new boolean[newSize];
+            System.arraycopy(isExpired, 0, newFlags, 0, size);
+            isExpired = newFlags;
+        }
+    }
+
+    @Override
+    public Ribbon get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+        return ribbons[index];
+    }
+
+    /**
+     * @param index
+     * @return true, if the ribbon at the given index has been flagged
+     */
+    public boolean isExpired(int index) {
+        return isExpired[index];
+    }
+
+    @Override
+    public Ribbon remove(int index) {
+        Ribbon r = get(index);
+        int num = size - index - 1;
+        System.arraycopy(ribbons, index + 1, ribbons, index, num);
+        System.arraycopy(isExpired, index + 1, isExpired, index, num);
+        ribbons[--size] = null;
+        modCount++;
+        return r;
+    }
+
+    /**
+     * Removes all flagged ribbons in a single pass, preserving the order of
+     * the remaining ones.
+     * 
+     * @param expired
+     *            list to add the removed ribbons to (or null)
+     * @return number of ribbons removed
+     */
+    public int removeExpired(List<Ribbon> expired) {
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            Ribbon r = ribbons[i];
+            if (isExpired[i]) {
+                if (expired != null) {
+                    expired.add(r);
+                }
+            } else {
+                ribbons[j] = r;
+                isExpired[j++] = false;
+            }
+        }
+        int num = size - j;
+        if (num > 0) {
+            for (int i = j; i < size; i++) {
+                ribbons[i] = null;
+            }
+            size = j;
+            modCount++;
+        }
+        return num;
+    }
+
+    @Override
+    public Ribbon set(int index, Ribbon r) {
+        Ribbon old = get(index);
+        ribbons[index] = r;
+        isExpired[index] = false;
+        return old;
+    }
+
+    /**
+     * Flags the ribbon at the given index for removal by
+     * {@link #removeExpired(List)}.
+     * 
+     * @param index
+     * @param state
+     */
+    public void setExpired(int index, boolean state) {
+        isExpired[index] = state;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+/**
+ * Receiver of the triangle strip geometry produced by
+ * {@link Ribbon#draw(RibbonStripSink)}. Each strip consists of a sequence of
+ * vertex pairs (top & bottom edge of the ribbon) sharing the same color and U
+ * texture coordinate. Implementations either send the geometry straight to
+ * OpenGL (immediate mode) or collect it for batched rendering (see
+ * {@link RibbonBatch}).
+ */
+public interface RibbonStripSink {
+
+    /**
+     * Starts a new triangle strip using the given texture.
+     * 
+     * @param tex
+     *            ribbon texture
+     */
+    public void beginStrip(Texture tex);
+
+    /**
+     * Adds a pair of vertices to the current strip. The top vertex uses the V
+     * texture coordinate {@link Ribbon#V_TOP}, the bottom one
+     * {@link Ribbon#V_BOTTOM}. Implementations are responsible for mapping
+     * texture coordinates into the area of the strip's texture (see
+     * {@link Texture#mapU(float)}).
+     * 
+     * @param r
+     *            red
+     * @param g
+     *            green
+     * @param b
+     *            blue
+     * @param a
+     *            alpha
+     * @param u
+     *            U texture coordinate
+     * @param x
+     *            X coordinate of both vertices
+     * @param yTop
+     *            Y coordinate of the top vertex
+     * @param yBottom
+     *            Y coordinate of the bottom vertex
+     * @param z
+     *            Z coordinate of both vertices
+     */
+    public void addVertexPair(float r, float g, float b, float a, float u,
+            float x, float yTop, float yBottom, float z);
+
+    /**
+     * Completes the current strip.
+     */
+    public void endStrip();
+}
@@ -0,0 +1,197 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Updates all ribbons of a {@link RibbonStore} in parallel. The store is split
+ * into contiguous chunks, which are updated by a pool of worker threads and
+ * the calling thread. Ribbons which finished scrolling are flagged as expired
+ * and can then be removed in one go with
+ * {@link RibbonStore#removeExpired(java.util.List)}.
+ * </p>
+ * 
+ * <p>
+ * Since {@link Ribbon#update(int, boolean, float)} only modifies the state of
+ * the ribbon itself, results are identical to a sequential update. Small
+ * stores (less than 2x the min. chunk size) and updaters without threads are
+ * processed on the calling thread only.
+ * </p>
+ */
+public class RibbonUpdater {
+
+    /**
+     * Updates a range of ribbons.
+     */
+    protected class Chunk implements Runnable {
+
+        protected RibbonStore store;
+        protected int from, to;
+
+        public void run() {
+            update(store, from, to);
+        }
+    }
+
+    protected static final Logger logger =
+            Logger.getLogger(RibbonUpdater.class.getName());
+
+    protected final ExecutorService executor;
+    protected final Chunk[] chunks;
+    protected final Future<?>[] futures;
+    protected final int minChunkSize;
+
+    protected int currFrame;
+    protected boolean doUpdate;
+    protected float decay;
+
+    /**
+     * Creates a new updater.
+     * 
+     * @param numThreads
+     *            number of worker threads (0 = update on calling thread)
+     * @param minChunkSize
+     *            min. number of ribbons per chunk
+     */
+    public RibbonUpdater(int numThreads, int minChunkSize) {
+        this.minChunkSize = Math.max(minChunkSize, 1);
+        if (numThreads > 0) {
+            executor =
+                    Executors.newFixedThreadPool(numThreads,
+                            new ThreadFactory() {
+
+                                private int id;
+
+                                public Thread newThread(Runnable r) {
+                                    Thread t =
+                                            new Thread(r, "ribbonupdate-"
+                                                    + (id++));
+                                    t.setDaemon(true);
+                                    return t;
+                                }
+                            });
+        } else {
+            executor = null;
+        }
+        chunks = new Chunk[numThreads + 1];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk();
+        }
+        futures = new Future<?>[numThreads];
+        logger.info("ribbon update threads: " + numThreads + " min chunk: "
+                + this.minChunkSize);
+    }
+
+    /**
+     * Stops all worker threads.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Updates all ribbons in the given store and flags the ones which have
+     * scrolled out. Blocks until all chunks are done. If the calling thread
+     * is interrupted while waiting, the update is abandoned (with the
+     * interrupt flag restored) and no ribbons are reported as expired.
+     * 
+     * @param store
+     *            ribbons to update
+     * @param currFrame
+     *            current frame/sequence number
+     * @param doUpdate
+     *            true, if ribbons should scroll
+     * @param decay
+     *            displacement decay factor
+     * @return number of ribbons flagged as expired (0 if interrupted)
+     */
+    public int update(RibbonStore store, int currFrame, boolean doUpdate,
+            float decay) {
+        this.currFrame = currFrame;
+        this.doUpdate = doUpdate;
+        this.decay = decay;
+        int size = store.size();
+        int numChunks = Math.min(chunks.length, size / minChunkSize);
+        if (numChunks < 2) {
+            update(store, 0, size);
+        } else {
+            int chunkSize = (size + numChunks - 1) / numChunks;
+            for (int i = 0; i < numChunks; i++) {
+                Chunk c = chunks[i];
+                c.store = store;
+                c.from = i * chunkSize;
+                c.to = Math.min(c.from + chunkSize, size);
+            }
+            for (int i = 1; i < numChunks; i++) {
+                futures[i - 1] = executor.submit(chunks[i]);
+            }
+            chunks[0].run();
+            try {
+                for (int i = 1; i < numChunks; i++) {
+                    futures[i - 1].get();
+                    futures[i - 1] = null;
+                }
+            } catch (InterruptedException e) {
+                // chunks still queued are dropped, so the expiry flags are
+                // incomplete & must not be used for compaction
+                for (int i = 1; i < numChunks; i++) {
+                    if (futures[i - 1] != null) {
+                        futures[i - 1].cancel(false);
+                        futures[i - 1] = null;
+                    }
+                }
+                Thread.currentThread().interrupt();
+                return 0;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                for (int i = 0; i < numChunks; i++) {
+                    chunks[i].store = null;
+                }
+            }
+        }
+        int numExpired = 0;
+        for (int i = 0; i < size; i++) {
+            if (store.isExpired(i)) {
+                numExpired++;
+            }
+        }
+        return numExpired;
+    }
+
+    /**
+     * Updates the given range of ribbons.
+     */
+    protected void update(RibbonStore store, int from, int to) {
+        for (int i = from; i < to; i++) {
+            store.setExpired(i, !store.get(i)
+                    .update(currFrame, doUpdate, decay));
+        }
+    }
+}
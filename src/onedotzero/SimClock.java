@@ -0,0 +1,114 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Global time & random number source of the simulation (pole placement,
+ * ribbon behaviour, feed message selection, pole usage time stamps). By
+ * default it simply wraps the system clock and an unseeded RNG.
+ * </p>
+ * 
+ * <p>
+ * For deterministic offline rendering (see {@link OfflineRenderer}), the clock
+ * can be switched to simulated mode, in which time only advances by explicit
+ * calls to {@link #advance(long)}. Each query of {@link #nanoTime()} also
+ * advances the clock by 1ns, so that time stamps stay unique and ordered by
+ * their call sequence, just like with the real clock. Together with a seeded
+ * RNG, repeated runs then produce identical results, as long as all updates
+ * happen in the same order (i.e. on a single thread).
+ * </p>
+ */
+public class SimClock {
+
+    /**
+     * Initial time of the simulated clock in nanoseconds
+     */
+    public static final long START_TIME = 1000000000L;
+
+    protected static final Random rnd = new Random();
+    protected static final AtomicLong simTime = new AtomicLong(START_TIME);
+    protected static volatile boolean isSimulated;
+
+    /**
+     * Advances the simulated clock. Has no effect in real time mode.
+     * 
+     * @param nanos
+     *            time step in nanoseconds
+     */
+    public static void advance(long nanos) {
+        simTime.addAndGet(nanos);
+    }
+
+    /**
+     * @return current time in milliseconds (simulated or
+     *         {@link System#currentTimeMillis()})
+     */
+    public static long currentTimeMillis() {
+        return isSimulated ? simTime.get() / 1000000 : System
+                .currentTimeMillis();
+    }
+
+    /**
+     * @return shared random number generator
+     */
+    public static Random getRandom() {
+        return rnd;
+    }
+
+    /**
+     * @return true, if in simulated mode
+     */
+    public static boolean isSimulated() {
+        return isSimulated;
+    }
+
+    /**
+     * @return current time in nanoseconds (simulated or
+     *         {@link System#nanoTime()})
+     */
+    public static long nanoTime() {
+        return isSimulated ? simTime.getAndIncrement() : System.nanoTime();
+    }
+
+    /**
+     * Reseeds the shared random number generator.
+     * 
+     * @param seed
+     */
+    public static void setSeed(long seed) {
+        rnd.setSeed(seed);
+    }
+
+    /**
+     * Switches between simulated and real time. The simulated clock is reset
+     * to {@link #START_TIME}.
+     * 
+     * @param state
+     *            true, to use simulated time
+     */
+    public static void setSimulated(boolean state) {
+        simTime.set(START_TIME);
+        isSimulated = state;
+    }
+}
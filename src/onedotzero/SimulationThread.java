@@ -0,0 +1,161 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Runs the simulation at a fixed tick rate independent of the render loop, so
+ * slow frames don't slow down the animation and simulation work doesn't add
+ * to the frame time. Should a tick take longer than its time slot, up to
+ * {@link #MAX_CATCHUP_TICKS} ticks are executed back to back to catch up,
+ * beyond that ticks are skipped.
+ * </p>
+ * 
+ * <p>
+ * In synchronous mode the thread is idle and the owner is responsible to call
+ * {@link #step()} itself, e.g. once per frame while exporting an image
+ * sequence. Ticks never overlap, regardless of the calling thread.
+ * </p>
+ */
+public class SimulationThread extends Thread {
+
+    /**
+     * Max. number of ticks executed in a row when falling behind
+     */
+    public static final int MAX_CATCHUP_TICKS = 5;
+
+    protected static final Logger logger =
+            Logger.getLogger(SimulationThread.class.getName());
+
+    protected final Runnable simulation;
+    protected final float rate;
+    protected final long period;
+
+    protected volatile boolean isRunning = true;
+    protected volatile boolean isSynchronous;
+
+    // single writer each (ticks under the step lock), so readers don't need
+    // to synchronize
+    protected volatile long numTicks;
+    protected volatile long numSkipped;
+
+    /**
+     * @param simulation
+     *            executes a single simulation step
+     * @param rate
+     *            ticks per second
+     */
+    public SimulationThread(Runnable simulation, float rate) {
+        super("simulation");
+        this.simulation = simulation;
+        this.rate = rate;
+        this.period = (long) (1e9 / rate);
+        setDaemon(true);
+        logger.info("simulation tick rate: " + rate);
+    }
+
+    /**
+     * @return number of ticks executed so far
+     */
+    public long getNumTicks() {
+        return numTicks;
+    }
+
+    /**
+     * @return number of ticks skipped because the simulation fell behind
+     */
+    public long getNumSkipped() {
+        return numSkipped;
+    }
+
+    /**
+     * @return ticks per second
+     */
+    public float getRate() {
+        return rate;
+    }
+
+    /**
+     * @return true, if ticks are triggered externally
+     */
+    public boolean isSynchronous() {
+        return isSynchronous;
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime();
+        while (isRunning) {
+            long now = System.nanoTime();
+            long behind = (now - next) / period;
+            if (behind > MAX_CATCHUP_TICKS) {
+                numSkipped += behind - MAX_CATCHUP_TICKS;
+                next += (behind - MAX_CATCHUP_TICKS) * period;
+            }
+            while (next <= now && isRunning) {
+                if (!isSynchronous) {
+                    step();
+                }
+                next += period;
+            }
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Enables or disables synchronous mode. See class description.
+     * 
+     * @param state
+     */
+    public void setSynchronous(boolean state) {
+        isSynchronous = state;
+    }
+
+    /**
+     * Stops the thread after the current tick.
+     */
+    public void shutdown() {
+        isRunning = false;
+        interrupt();
+    }
+
+    /**
+     * Executes a single simulation step. Errors are logged, but don't stop the
+     * simulation.
+     */
+    public synchronized void step() {
+        try {
+            simulation.run();
+        } catch (RuntimeException e) {
+            logger.severe("simulation step failed: " + e);
+            e.printStackTrace();
+        }
+        numTicks++;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import processing.core.PFont;
+
+/**
+ * <p>
+ * Single line text measurement for a {@link PFont} at its default size. Glyph
+ * advances (and kerning pairs, if the font defines any) of the Latin-1 range
+ * are looked up once and stored in tables, other characters are measured via
+ * the font directly. Widths are accumulated in the same order as
+ * {@link processing.core.PGraphics#textWidth(String)} does, so results are
+ * identical to measuring with the renderer.
+ * </p>
+ * 
+ * <p>
+ * {@link #truncate(String, float, String)} computes all prefix widths of a
+ * string in a single pass and then uses a binary search to find the longest
+ * prefix fitting the available width, instead of repeatedly measuring the
+ * entire string while removing one character at a time. Instances are
+ * immutable and can be shared between threads, use {@link #forFont(PFont)} to
+ * obtain the shared instance of a font.
+ * </p>
+ */
+public class TextLayout {
+
+    public static final int TABLE_SIZE = 256;
+
+    private static final Map<PFont, TextLayout> layouts =
+            new WeakHashMap<PFont, TextLayout>();
+
+    /**
+     * Returns the shared layout instance for the given font, creating it if
+     * necessary.
+     * 
+     * @param font
+     * @return layout
+     */
+    public static synchronized TextLayout forFont(PFont font) {
+        TextLayout layout = layouts.get(font);
+        if (layout == null) {
+            layout = new TextLayout(font);
+            layouts.put(font, layout);
+        }
+        return layout;
+    }
+
+    protected final PFont font;
+    protected final float[] advances = new float[TABLE_SIZE];
+
+    /**
+     * Kerning pairs indexed by (prev * TABLE_SIZE + c) or null, if the font
+     * doesn't use kerning.
+     */
+    protected float[] kerning;
+
+    public TextLayout(PFont font) {
+        this.font = font;
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            advances[i] = font.width((char) i) * font.size;
+        }
+        float[] k = new float[TABLE_SIZE * TABLE_SIZE];
+        boolean hasKerning = false;
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            for (int j = 0; j < TABLE_SIZE; j++) {
+                float kern = font.kern((char) i, (char) j) * font.size;
+                if (kern != 0) {
+                    k[i * TABLE_SIZE + j] = kern;
+                    hasKerning = true;
+                }
+            }
+        }
+        if (hasKerning) {
+            kerning = k;
+        }
+    }
+
+    /**
+     * Adds the advance of the given character (incl. kerning to the previous
+     * one) to the current width.
+     */
+    private float advance(float w, char prev, char c) {
+        if (kerning != null && prev < TABLE_SIZE && c < TABLE_SIZE) {
+            w += kerning[prev * TABLE_SIZE + c];
+        }
+        return w + getAdvance(c);
+    }
+
+    /**
+     * @param c
+     * @return horizontal advance of the given character in pixels
+     */
+    public float getAdvance(char c) {
+        return c < TABLE_SIZE ? advances[c] : font.width(c) * font.size;
+    }
+
+    /**
+     * @return font used
+     */
+    public PFont getFont() {
+        return font;
+    }
+
+    /**
+     * Computes the widths of all prefixes of the given string in a single
+     * pass. The element at index i is the width of the first i characters, the
+     * last element the width of the entire string.
+     * 
+     * @param txt
+     * @return array of txt.length() + 1 prefix widths
+     */
+    public float[] getPrefixWidths(String txt) {
+        int num = txt.length();
+        float[] widths = new float[num + 1];
+        float w = 0;
+        char prev = 0;
+        for (int i = 0; i < num; i++) {
+            char c = txt.charAt(i);
+            w = advance(w, prev, c);
+            widths[i + 1] = w;
+            prev = c;
+        }
+        return widths;
+    }
+
+    /**
+     * Computes the width of the given string in pixels, same as
+     * {@link processing.core.PGraphics#textWidth(String)} for a single line.
+     * 
+     * @param txt
+     * @return width
+     */
+    public float getWidth(String txt) {
+        float w = 0;
+        char prev = 0;
+        for (int i = 0, num = txt.length(); i < num; i++) {
+            char c = txt.charAt(i);
+            w = advance(w, prev, c);
+            prev = c;
+        }
+        return w;
+    }
+
+    /**
+     * Computes the width of the first len characters of txt followed by the
+     * suffix, based on the given prefix widths.
+     */
+    private float getWidthWithSuffix(String txt, float[] prefixWidths,
+            int len, String suffix) {
+        float w = prefixWidths[len];
+        char prev = len > 0 ? txt.charAt(len - 1) : 0;
+        for (int i = 0, num = suffix.length(); i < num; i++) {
+            char c = suffix.charAt(i);
+            w = advance(w, prev, c);
+            prev = c;
+        }
+        return w;
+    }
+
+    /**
+     * Shortens the given string to the longest prefix which, followed by the
+     * suffix, still fits the given width. Strings already fitting are returned
+     * unchanged.
+     * 
+     * @param txt
+     * @param maxWidth
+     *            available width in pixels
+     * @param suffix
+     *            string to append to truncated strings (e.g. an ellipsis)
+     * @return truncated string
+     */
+    public String truncate(String txt, float maxWidth, String suffix) {
+        if (getWidth(txt) <= maxWidth) {
+            return txt;
+        }
+        float[] prefixWidths = getPrefixWidths(txt);
+        // widths are monotonic, find last prefix fitting incl. suffix
+        int low = 0;
+        int high = txt.length() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            float w = getWidthWithSuffix(txt, prefixWidths, mid, suffix);
+            if (w <= maxWidth) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return txt.substring(0, low) + suffix;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.util.Arrays;
+
+import processing.core.PConstants;
+import processing.core.PFont;
+import processing.core.PImage;
+
+/**
+ * <p>
+ * CPU based renderer for single line message strips, drawing the glyph
+ * bitmaps of a {@link PFont} directly into a pixel buffer. The layout matches
+ * the one produced by {@link TextureManager} using a P3D offscreen renderer
+ * (white text on black background, left indent, baseline offset & truncation
+ * with ellipsis), but doesn't require an OpenGL context. All methods are thread
+ * safe as long as the font isn't modified.
+ * </p>
+ * 
+ * <p>
+ * Glyphs are placed at whole pixel positions and composited using the glyph
+ * coverage as alpha.
+ * </p>
+ */
+public class TextRasterizer {
+
+    protected final PFont font;
+    protected final TextLayout layout;
+    protected final int width, height;
+
+    /**
+     * @param font
+     *            font with glyph bitmaps (e.g. loaded from a .vlw file)
+     * @param width
+     *            image width
+     * @param height
+     *            image height
+     */
+    public TextRasterizer(PFont font, int width, int height) {
+        this.font = font;
+        this.layout = TextLayout.forFont(font);
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Draws a single glyph at the given pen position.
+     */
+    private void drawChar(int[] pixels, char c, float x, float y) {
+        int idx = font.index(c);
+        if (idx == -1) {
+            return;
+        }
+        PImage glyph = font.images[idx];
+        int gw = font.width[idx];
+        int gh = font.height[idx];
+        int x1 = Math.round(x + font.leftExtent[idx]);
+        int y1 = Math.round(y - font.topExtent[idx]);
+        int gxMin = Math.max(0, -x1);
+        int gxMax = Math.min(gw, width - x1);
+        int gyMax = Math.min(gh, height - y1);
+        for (int gy = Math.max(0, -y1); gy < gyMax; gy++) {
+            int src = gy * glyph.width;
+            int dest = (y1 + gy) * width + x1;
+            for (int gx = gxMin; gx < gxMax; gx++) {
+                int a = glyph.pixels[src + gx] & 0xff;
+                if (a > 0) {
+                    int v = pixels[dest + gx] & 0xff;
+                    v += (255 - v) * a / 255;
+                    pixels[dest + gx] = 0xff000000 | v << 16 | v << 8 | v;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return font used
+     */
+    public PFont getFont() {
+        return font;
+    }
+
+    /**
+     * Computes the width of the given string in pixels, same as
+     * {@link processing.core.PGraphics#textWidth(String)} for a single line
+     * using the font's default size.
+     * 
+     * @param txt
+     * @return width
+     */
+    public float getWidth(String txt) {
+        return layout.getWidth(txt);
+    }
+
+    /**
+     * Renders the given message into a new image, truncating it with an
+     * ellipsis if it doesn't fit the available width.
+     * 
+     * @param txt
+     *            message
+     * @return image
+     */
+    public PImage rasterize(String txt) {
+        txt = truncate(txt);
+        PImage img = new PImage(width, height, PConstants.ARGB);
+        int[] pixels = img.pixels;
+        Arrays.fill(pixels, 0xff000000);
+        float x = TextureManager.INDENT;
+        float y = height - TextureManager.BASELINE;
+        for (int i = 0, num = txt.length(); i < num; i++) {
+            char c = txt.charAt(i);
+            drawChar(pixels, c, x, y);
+            x += layout.getAdvance(c);
+        }
+        return img;
+    }
+
+    /**
+     * Shortens the given message to fit the available width (minus indent on
+     * both sides) and appends an ellipsis, if necessary.
+     * 
+     * @param txt
+     * @return message as it will be rendered
+     */
+    public String truncate(String txt) {
+        return layout.truncate(txt, width - TextureManager.INDENT * 2,
+                TextureManager.ELLIPSE);
+    }
+}
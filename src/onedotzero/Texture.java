@@ -20,6 +20,9 @@
 package onedotzero;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import javax.media.opengl.GL;
@@ -32,23 +35,38 @@ import toxi.math.MathUtils;
 import com.sun.opengl.util.BufferUtil;
 
 /**
- * Simple OpenGL texture buffer wrapper. Supports both RGB & RGBA textures.
- * Hardcoded behaviour for mipmaps & disabled texture repeat.
+ * Simple OpenGL texture buffer wrapper. Supports RGB, RGBA & single channel
+ * luminance textures, with or without mipmaps (built on the CPU by a shared
+ * {@link MipmapBuilder}). Hardcoded behaviour for disabled texture repeat.
+ * Subclasses can represent a sub-region of a shared texture object (see
+ * {@link AtlasTexture}), in which case texture coordinates need to be mapped
+ * using {@link #mapU(float)} & {@link #mapV(float)}.
  */
 public class Texture {
 
     protected static final Logger logger =
             Logger.getLogger(Texture.class.getName());
 
+    protected static MipmapBuilder mipmapBuilder = new MipmapBuilder(1);
+
     protected GL gl;
     protected GLU glu;
 
     protected final int id;
-    protected final boolean hasAlpha;
+    /**
+     * Pixel format: GL_RGB, GL_RGBA or GL_LUMINANCE
+     */
+    protected final int format;
+    protected final boolean hasMipmaps;
 
     protected final int width, height;
     protected final Vec2D maxUV;
 
+    /**
+     * Number of users (e.g. ribbons) currently holding on to this texture
+     */
+    protected final AtomicInteger refCount = new AtomicInteger();
+
     /**
      * Creates a new OpenGL texture object from the given PImage.
      * 
@@ -62,39 +80,177 @@ public class Texture {
      *            true, if the texture should have an alpha channel
      */
     public Texture(GL gl, GLU glu, PImage img, boolean hasAlpha) {
+        this(gl, glu, img, hasAlpha, true);
+    }
+
+    /**
+     * Creates a new OpenGL texture object from the given PImage.
+     * 
+     * @param gl
+     *            JOGL GL instance
+     * @param glu
+     *            JOGL GLU instance
+     * @param img
+     *            source texture bitmap
+     * @param hasAlpha
+     *            true, if the texture should have an alpha channel
+     * @param hasMipmaps
+     *            true, if mipmaps should be built
+     */
+    public Texture(GL gl, GLU glu, PImage img, boolean hasAlpha,
+            boolean hasMipmaps) {
+        this(gl, glu, img, hasAlpha ? GL.GL_RGBA : GL.GL_RGB, hasMipmaps);
+    }
+
+    /**
+     * Creates a new OpenGL texture object from the given PImage, using the
+     * given pixel format. For GL_LUMINANCE, the image is converted to
+     * grayscale.
+     * 
+     * @param gl
+     *            JOGL GL instance
+     * @param glu
+     *            JOGL GLU instance
+     * @param img
+     *            source texture bitmap
+     * @param format
+     *            GL_RGB, GL_RGBA or GL_LUMINANCE
+     * @param hasMipmaps
+     *            true, if mipmaps should be built
+     */
+    public Texture(GL gl, GLU glu, PImage img, int format, boolean hasMipmaps) {
         this.gl = gl;
         this.glu = glu;
-        this.hasAlpha = hasAlpha;
+        this.format = format;
+        this.hasMipmaps = hasMipmaps;
         id = generateTextureID(gl);
         width = MathUtils.ceilPowerOf2(img.width);
         height = MathUtils.ceilPowerOf2(img.height);
         maxUV =
                 new Vec2D((float) img.width / width, 1 - (float) img.height
                         / height);
-        gl.glBindTexture(GL.GL_TEXTURE_2D, id);
-        ByteBuffer buffer = getTextureByteBuffer(img);
-        gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, hasAlpha ? GL.GL_RGBA : GL.GL_RGB,
-                width, height, 0, hasAlpha ? GL.GL_RGBA : GL.GL_RGB,
-                GL.GL_UNSIGNED_BYTE, buffer);
-        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER,
-                GL.GL_LINEAR);
-        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER,
-                GL.GL_LINEAR);
-        glu.gluBuild2DMipmaps(GL.GL_TEXTURE_2D, 4, width, height, hasAlpha
-                ? GL.GL_RGBA
-                : GL.GL_RGB, GL.GL_UNSIGNED_BYTE, buffer);
+        ByteBuffer pixels = getTextureByteBuffer(img);
+        upload(hasMipmaps ? mipmapBuilder.build(pixels, width, height,
+                getBytesPerPixel(format)) : new ByteBuffer[] { pixels });
+    }
+
+    /**
+     * Creates a new OpenGL texture object from the given pixel buffers, which
+     * need to be in the format produced by
+     * {@link #getTextureByteBuffer(PImage, int, int, int)}. This allows
+     * the pixel conversion and mipmap creation to be done on another thread.
+     * 
+     * @param gl
+     *            JOGL GL instance
+     * @param glu
+     *            JOGL GLU instance
+     * @param levels
+     *            pixel buffers of all mipmap levels (see
+     *            {@link MipmapBuilder#build(ByteBuffer, int, int, int)}) or
+     *            only the base level for a texture without mipmaps
+     * @param width
+     *            texture width (power of 2)
+     * @param height
+     *            texture height (power of 2)
+     * @param format
+     *            pixel format of the buffers (GL_RGB, GL_RGBA or
+     *            GL_LUMINANCE)
+     */
+    public Texture(GL gl, GLU glu, ByteBuffer[] levels, int width,
+            int height, int format) {
+        this.gl = gl;
+        this.glu = glu;
+        this.format = format;
+        this.hasMipmaps = levels.length > 1;
+        this.width = width;
+        this.height = height;
+        id = generateTextureID(gl);
+        maxUV = new Vec2D(1, 0);
+        upload(levels);
+    }
+
+    /**
+     * Creates a new OpenGL texture of the given size with the given number of
+     * (uninitialized) mipmap levels. The contents of all levels need to be
+     * uploaded by the caller via glTexSubImage2D().
+     * 
+     * @param gl
+     *            JOGL GL instance
+     * @param width
+     *            texture width (power of 2)
+     * @param height
+     *            texture height (power of 2)
+     * @param format
+     *            GL_RGB, GL_RGBA or GL_LUMINANCE
+     * @param numLevels
+     *            number of mipmap levels incl. the base level
+     */
+    protected Texture(GL gl, int width, int height, int format,
+            int numLevels) {
+        this.gl = gl;
+        this.format = format;
+        this.hasMipmaps = numLevels > 1;
+        this.width = width;
+        this.height = height;
+        id = generateTextureID(gl);
+        maxUV = new Vec2D(1, 0);
+        upload(new ByteBuffer[numLevels]);
+    }
+
+    /**
+     * Creates a texture without an underlying OpenGL texture object, e.g. for
+     * software rendering. Subclasses need to override {@link #bind()} and
+     * {@link #delete()}.
+     * 
+     * @param width
+     *            texture width
+     * @param height
+     *            texture height
+     * @param format
+     *            GL_RGB, GL_RGBA or GL_LUMINANCE
+     */
+    protected Texture(int width, int height, int format) {
+        this.format = format;
+        this.hasMipmaps = false;
+        this.width = width;
+        this.height = height;
+        id = 0;
+        maxUV = new Vec2D(1, 0);
+    }
+
+    /**
+     * Creates a new texture instance representing a region of the given
+     * parent texture. Both share the same OpenGL texture object.
+     * 
+     * @param parent
+     *            parent texture
+     * @param width
+     *            region width
+     * @param height
+     *            region height
+     */
+    protected Texture(Texture parent, int width, int height) {
+        this.gl = parent.gl;
+        this.glu = parent.glu;
+        this.format = parent.format;
+        this.hasMipmaps = parent.hasMipmaps;
+        this.id = parent.id;
+        this.width = width;
+        this.height = height;
+        maxUV = new Vec2D(1, 0);
     }
 
     /**
      * Binds/activates the texture and sets texture filters to mag=linear,
-     * min=linear_mipmap_linear, turns of texture repeat
+     * min=linear_mipmap_linear (or linear without mipmaps), turns of texture
+     * repeat
      */
     public void bind() {
         gl.glBindTexture(GL.GL_TEXTURE_2D, id);
         gl.glTexParameterf(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER,
                 GL.GL_LINEAR);
         gl.glTexParameterf(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER,
-                GL.GL_LINEAR_MIPMAP_LINEAR);
+                hasMipmaps ? GL.GL_LINEAR_MIPMAP_LINEAR : GL.GL_LINEAR);
         gl.glTexParameterf(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S,
                 GL.GL_CLAMP_TO_EDGE);
         gl.glTexParameterf(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T,
@@ -122,6 +278,48 @@ public class Texture {
         return tmp[0];
     }
 
+    /**
+     * Returns the texture owning the OpenGL texture object used by this
+     * instance. Textures with the same base texture can be rendered without
+     * rebinding.
+     * 
+     * @return base texture (this instance, unless it's a region of another
+     *         texture)
+     */
+    public Texture getBaseTexture() {
+        return this;
+    }
+
+    /**
+     * @param format
+     *            GL_RGB, GL_RGBA or GL_LUMINANCE
+     * @return number of bytes per pixel for the given format
+     */
+    public static int getBytesPerPixel(int format) {
+        if (format == GL.GL_RGBA) {
+            return 4;
+        } else if (format == GL.GL_RGB) {
+            return 3;
+        } else if (format == GL.GL_LUMINANCE) {
+            return 1;
+        }
+        throw new IllegalArgumentException("unsupported format: " + format);
+    }
+
+    /**
+     * @return pixel format (GL_RGB, GL_RGBA or GL_LUMINANCE)
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * @return texture height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
     /**
      * Returns the max. UV coordinate actually occupied by the image. This is
      * only interesting when the original image wasn't of powers-of-two
@@ -133,6 +331,23 @@ public class Texture {
         return maxUV.copy();
     }
 
+    /**
+     * Returns the min. UV coordinate of the texture's area within the OpenGL
+     * texture object.
+     * 
+     * @return the minUV
+     */
+    public Vec2D getMinUV() {
+        return new Vec2D();
+    }
+
+    /**
+     * @return the builder used for mipmaps of textures created from images
+     */
+    public static MipmapBuilder getMipmapBuilder() {
+        return mipmapBuilder;
+    }
+
     /**
      * Converts the given image into an RGB or RGBA ordered {@link ByteBuffer}.
      * 
@@ -141,24 +356,217 @@ public class Texture {
      * @return byte buffer
      */
     protected ByteBuffer getTextureByteBuffer(PImage img) {
-        int bytesPerPixel = hasAlpha ? 4 : 3;
-        ByteBuffer rgbaBuffer =
-                BufferUtil.newByteBuffer(width * height * bytesPerPixel);
-        for (int y = height - 1; y >= 0; y--) {
-            for (int x = 0, idx = y * img.width; x < width; x++) {
-                int c =
-                        (y < img.height && x < img.width)
-                                ? img.pixels[idx++]
-                                : 0;
-                rgbaBuffer.put((byte) (c >> 16 & 0xff));
-                rgbaBuffer.put((byte) (c >> 8 & 0xff));
-                rgbaBuffer.put((byte) (c & 0xff));
-                if (hasAlpha) {
-                    rgbaBuffer.put((byte) (c >>> 24 & 0xff));
+        return getTextureByteBuffer(img, width, height, format);
+    }
+
+    /**
+     * Converts the given image into an RGB or RGBA ordered {@link ByteBuffer}
+     * of the given size (in bottom-up row order). Areas outside the image are
+     * filled with black. Rows are converted into a temporary array and then
+     * copied in bulk, for RGBA via an {@link IntBuffer} view of the native
+     * byte order buffer.
+     * 
+     * @param img
+     *            texture image
+     * @param width
+     *            buffer width
+     * @param height
+     *            buffer height
+     * @param hasAlpha
+     *            true, if the buffer should include alpha
+     * @return byte buffer
+     */
+    public static ByteBuffer getTextureByteBuffer(PImage img, int width,
+            int height, boolean hasAlpha) {
+        return getTextureByteBuffer(img, width, height, hasAlpha
+                ? GL.GL_RGBA
+                : GL.GL_RGB);
+    }
+
+    /**
+     * Converts the given image into a {@link ByteBuffer} of the given size &
+     * pixel format (in bottom-up row order). Areas outside the image are
+     * filled with black. For GL_LUMINANCE, pixels are converted to grayscale
+     * using the weights 0.3, 0.59, 0.11 (gray pixels keep their exact value).
+     * 
+     * @param img
+     *            texture image
+     * @param width
+     *            buffer width
+     * @param height
+     *            buffer height
+     * @param format
+     *            GL_RGB, GL_RGBA or GL_LUMINANCE
+     * @return byte buffer
+     */
+    public static ByteBuffer getTextureByteBuffer(PImage img, int width,
+            int height, int format) {
+        ByteBuffer buffer =
+                BufferUtil.newByteBuffer(width * height
+                        * getBytesPerPixel(format));
+        int w = Math.min(width, img.width);
+        int h = Math.min(height, img.height);
+        if (format == GL.GL_RGBA) {
+            IntBuffer ints = buffer.asIntBuffer();
+            boolean isLittleEndian =
+                    buffer.order() == ByteOrder.LITTLE_ENDIAN;
+            int[] row = new int[width];
+            for (int y = height - 1; y >= 0; y--) {
+                if (y < h) {
+                    for (int x = 0, idx = y * img.width; x < w; x++) {
+                        int c = img.pixels[idx++];
+                        // ARGB -> bytes in R, G, B, A order
+                        row[x] =
+                                isLittleEndian ? (c & 0xff00ff00)
+                                        | (c >> 16 & 0xff) | (c & 0xff) << 16
+                                        : c << 8 | c >>> 24;
+                    }
+                    ints.put(row);
+                } else {
+                    ints.position(ints.position() + width);
+                }
+            }
+        } else if (format == GL.GL_LUMINANCE) {
+            byte[] row = new byte[width];
+            for (int y = height - 1; y >= 0; y--) {
+                if (y < h) {
+                    for (int x = 0, idx = y * img.width; x < w; x++) {
+                        int c = img.pixels[idx++];
+                        int lum =
+                                77 * (c >> 16 & 0xff) + 151 * (c >> 8 & 0xff)
+                                        + 28 * (c & 0xff);
+                        row[x] = (byte) (lum >> 8);
+                    }
+                    buffer.put(row);
+                } else {
+                    buffer.position(buffer.position() + width);
+                }
+            }
+        } else {
+            byte[] row = new byte[width * 3];
+            for (int y = height - 1; y >= 0; y--) {
+                if (y < h) {
+                    for (int x = 0, i = 0, idx = y * img.width; x < w; x++) {
+                        int c = img.pixels[idx++];
+                        row[i++] = (byte) (c >> 16);
+                        row[i++] = (byte) (c >> 8);
+                        row[i++] = (byte) c;
+                    }
+                    buffer.put(row);
+                } else {
+                    buffer.position(buffer.position() + row.length);
                 }
             }
         }
-        rgbaBuffer.flip();
-        return rgbaBuffer;
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * @return number of current users of this texture
+     */
+    public int getRefCount() {
+        return refCount.get();
+    }
+
+    /**
+     * Returns the approx. amount of video memory used by this texture,
+     * including mipmaps.
+     * 
+     * @return size in bytes
+     */
+    public int getSizeInBytes() {
+        int size = width * height * getBytesPerPixel(format);
+        return hasMipmaps ? size * 4 / 3 : size;
+    }
+
+    /**
+     * @return true, if the texture uses mipmaps
+     */
+    public boolean hasMipmaps() {
+        return hasMipmaps;
+    }
+
+    /**
+     * @return texture width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Maps a U texture coordinate (0.0 .. 1.0) of this texture into the UV
+     * space of the underlying OpenGL texture object.
+     * 
+     * @param u
+     * @return mapped U coordinate
+     */
+    public float mapU(float u) {
+        return u;
+    }
+
+    /**
+     * Maps a V texture coordinate (0.0 .. 1.0) of this texture into the UV
+     * space of the underlying OpenGL texture object.
+     * 
+     * @param v
+     * @return mapped V coordinate
+     */
+    public float mapV(float v) {
+        return v;
+    }
+
+    /**
+     * Signals that the texture is not used by the caller anymore. Must be
+     * called exactly once for each call to {@link #retain()}. Thread safe.
+     */
+    public void release() {
+        refCount.decrementAndGet();
+    }
+
+    /**
+     * Registers a new user of this texture. Textures in use are never evicted
+     * by the {@link TextureManager}. Thread safe.
+     * 
+     * @return itself
+     */
+    public Texture retain() {
+        refCount.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Replaces the builder used for mipmaps of textures created from images,
+     * e.g. to use more threads. The previous builder is shut down.
+     * 
+     * @param builder
+     */
+    public static void setMipmapBuilder(MipmapBuilder builder) {
+        mipmapBuilder.shutdown();
+        mipmapBuilder = builder;
+    }
+
+    /**
+     * Uploads the given pixels of each mipmap level, without any further
+     * processing by OpenGL.
+     * 
+     * @param levels
+     *            pixel buffers, starting with the base level
+     */
+    protected void upload(ByteBuffer[] levels) {
+        gl.glBindTexture(GL.GL_TEXTURE_2D, id);
+        gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
+        for (int i = 0; i < levels.length; i++) {
+            gl.glTexImage2D(GL.GL_TEXTURE_2D, i, format, Math.max(
+                    width >> i, 1), Math.max(height >> i, 1), 0, format,
+                    GL.GL_UNSIGNED_BYTE, levels[i]);
+        }
+        gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 4);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAX_LEVEL,
+                levels.length - 1);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER,
+                GL.GL_LINEAR);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER,
+                GL.GL_LINEAR);
     }
 }
\ No newline at end of file
@@ -0,0 +1,289 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.media.opengl.GL;
+
+import processing.core.PImage;
+import toxi.math.MathUtils;
+
+import com.sun.opengl.util.BufferUtil;
+
+/**
+ * <p>
+ * Packs equally sized image strips (e.g. rendered messages) into the rows of
+ * a few large shared OpenGL textures (pages). Each strip is represented by an
+ * {@link AtlasTexture}, which maps texture coordinates into its row. Rows of
+ * deleted textures are reused for new strips, new pages are only created once
+ * all existing ones are full. This way the number of texture objects (and
+ * texture binds during rendering) doesn't grow with the number of strips.
+ * </p>
+ * 
+ * <p>
+ * Page mipmaps (if enabled) are limited to {@link #MAX_MIP_LEVEL} levels
+ * below the base and are uploaded per row along with the strip, so adding a
+ * strip never touches the rest of the page. Rows are separated by empty
+ * gutters of 2^levels pixels, which keeps the rows aligned in all levels and
+ * leaves at least one empty texel between rows even in the smallest level,
+ * so linear filtering never mixes adjacent strips. Must only be used from the
+ * GL thread.
+ * </p>
+ */
+public class TextureAtlas {
+
+    /**
+     * Max. number of mipmap levels below the base level of atlas pages
+     */
+    public static final int MAX_MIP_LEVEL = 3;
+
+    protected static final Logger logger =
+            Logger.getLogger(TextureAtlas.class.getName());
+
+    protected final GL gl;
+    protected final int pageWidth, pageHeight;
+    protected final int rowHeight;
+    protected final int rowPitch;
+    protected final int rowsPerPage;
+    protected final int format;
+    protected final int numLevels;
+    protected final ByteBuffer gutter;
+
+    protected final List<Texture> pages = new ArrayList<Texture>();
+    protected final BitSet usedRows = new BitSet();
+
+    /**
+     * Creates a new atlas. Pages are allocated lazily. The page height is
+     * limited to the max. texture size supported by the OpenGL driver.
+     * 
+     * @param gl
+     *            JOGL GL instance
+     * @param pageWidth
+     *            width of pages and strips (power of 2)
+     * @param pageHeight
+     *            height of pages (power of 2)
+     * @param rowHeight
+     *            height of strips (power of 2)
+     * @param hasAlpha
+     *            true, if textures should have an alpha channel
+     */
+    public TextureAtlas(GL gl, int pageWidth, int pageHeight, int rowHeight,
+            boolean hasAlpha) {
+        this(gl, pageWidth, pageHeight, rowHeight, hasAlpha
+                ? GL.GL_RGBA
+                : GL.GL_RGB, true);
+    }
+
+    /**
+     * Creates a new atlas. Pages are allocated lazily. The page height is
+     * limited to the max. texture size supported by the OpenGL driver.
+     * 
+     * @param gl
+     *            JOGL GL instance
+     * @param pageWidth
+     *            width of pages and strips (power of 2)
+     * @param pageHeight
+     *            height of pages (power of 2)
+     * @param rowHeight
+     *            height of strips (power of 2)
+     * @param format
+     *            pixel format of pages (GL_RGB, GL_RGBA or GL_LUMINANCE)
+     * @param hasMipmaps
+     *            true, if pages should use mipmaps (see
+     *            {@link #MAX_MIP_LEVEL})
+     */
+    public TextureAtlas(GL gl, int pageWidth, int pageHeight, int rowHeight,
+            int format, boolean hasMipmaps) {
+        this.gl = gl;
+        int[] maxSize = new int[1];
+        gl.glGetIntegerv(GL.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+        if (maxSize[0] > 0 && pageHeight > maxSize[0]) {
+            logger.warning("atlas page height limited to " + maxSize[0]);
+            pageHeight = maxSize[0];
+        }
+        int maxLevel = 0;
+        if (hasMipmaps) {
+            while (maxLevel < MAX_MIP_LEVEL
+                    && rowHeight >> (maxLevel + 1) > 0) {
+                maxLevel++;
+            }
+        }
+        int gutterHeight = 1 << maxLevel;
+        this.pageWidth = pageWidth;
+        this.rowHeight = rowHeight;
+        this.rowPitch = rowHeight + gutterHeight;
+        this.pageHeight =
+                Math.max(pageHeight, MathUtils.ceilPowerOf2(rowPitch));
+        this.rowsPerPage = this.pageHeight / rowPitch;
+        this.format = format;
+        this.numLevels = maxLevel + 1;
+        this.gutter =
+                BufferUtil.newByteBuffer(pageWidth * gutterHeight
+                        * Texture.getBytesPerPixel(format));
+        logger.info("texture atlas: " + pageWidth + "x" + this.pageHeight
+                + ", " + rowsPerPage + " rows per page");
+    }
+
+    /**
+     * Copies the given image into a free row and returns a texture instance
+     * for this region. Images larger than the row size are cropped.
+     * 
+     * @param img
+     *            strip image
+     * @return atlas texture
+     */
+    public AtlasTexture add(PImage img) {
+        return add(buildLevels(Texture.getTextureByteBuffer(img, pageWidth,
+                rowHeight, format)));
+    }
+
+    /**
+     * Copies the given pixel buffer into a free row and returns a texture
+     * instance for this region. The buffer needs to be of the page width &
+     * row height and in the format produced by
+     * {@link Texture#getTextureByteBuffer(PImage, int, int, int)}. Mipmaps
+     * are computed on the calling thread.
+     * 
+     * @param buffer
+     *            pixel buffer in the atlas format
+     * @return atlas texture
+     */
+    public AtlasTexture add(ByteBuffer buffer) {
+        return add(buildLevels(buffer));
+    }
+
+    /**
+     * Copies the given mipmap levels of a strip into a free row and returns a
+     * texture instance for this region. The levels need to be built via
+     * {@link #buildLevels(ByteBuffer)}, which can be done on another thread.
+     * 
+     * @param levels
+     *            pixel buffers of all mipmap levels used by the atlas
+     * @return atlas texture
+     */
+    public AtlasTexture add(ByteBuffer[] levels) {
+        int slot = usedRows.nextClearBit(0);
+        int pageID = slot / rowsPerPage;
+        if (pageID == pages.size()) {
+            pages.add(new Texture(gl, pageWidth, pageHeight, format,
+                    numLevels));
+            logger.info("new atlas page: " + pageID);
+        }
+        Texture page = pages.get(pageID);
+        int y = (slot % rowsPerPage) * rowPitch;
+        gl.glBindTexture(GL.GL_TEXTURE_2D, page.id);
+        gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
+        for (int i = 0; i < numLevels; i++) {
+            int w = Math.max(pageWidth >> i, 1);
+            int h = rowHeight >> i;
+            gl.glTexSubImage2D(GL.GL_TEXTURE_2D, i, 0, y >> i, w, h, format,
+                    GL.GL_UNSIGNED_BYTE, levels[i]);
+            // clear gutter below the row
+            gl.glTexSubImage2D(GL.GL_TEXTURE_2D, i, 0, (y >> i) + h, w,
+                    (rowPitch >> i) - h, format, GL.GL_UNSIGNED_BYTE, gutter);
+        }
+        gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 4);
+        usedRows.set(slot);
+        return new AtlasTexture(this, page, slot, y, pageWidth, rowHeight);
+    }
+
+    /**
+     * Computes the mipmap levels of a strip as needed by
+     * {@link #add(ByteBuffer[])}. Can be called from any thread.
+     * 
+     * @param buffer
+     *            pixel buffer in the atlas format
+     * @return pixel buffers of all levels used by the atlas
+     */
+    public ByteBuffer[] buildLevels(ByteBuffer buffer) {
+        if (numLevels == 1) {
+            return new ByteBuffer[] { buffer };
+        }
+        return Texture.getMipmapBuilder().build(buffer, pageWidth, rowHeight,
+                Texture.getBytesPerPixel(format), numLevels);
+    }
+
+    /**
+     * Deletes all pages from OpenGL. All textures handed out previously become
+     * invalid.
+     */
+    public void delete() {
+        for (Texture page : pages) {
+            page.delete();
+        }
+        pages.clear();
+        usedRows.clear();
+    }
+
+    /**
+     * @return total number of rows in all existing pages
+     */
+    public int getCapacity() {
+        return pages.size() * rowsPerPage;
+    }
+
+    /**
+     * @return number of mipmap levels of pages incl. the base level
+     */
+    public int getNumLevels() {
+        return numLevels;
+    }
+
+    /**
+     * @return number of pages (OpenGL textures) allocated
+     */
+    public int getNumPages() {
+        return pages.size();
+    }
+
+    /**
+     * @return number of rows currently in use
+     */
+    public int getNumUsedRows() {
+        return usedRows.cardinality();
+    }
+
+    /**
+     * @return number of rows per page
+     */
+    public int getRowsPerPage() {
+        return rowsPerPage;
+    }
+
+    /**
+     * Marks the row of the given texture as free.
+     * 
+     * @param tex
+     */
+    protected void release(AtlasTexture tex) {
+        usedRows.clear(tex.slot);
+    }
+
+    @Override
+    public String toString() {
+        return "atlas pages: " + pages.size() + " rows: " + getNumUsedRows()
+                + "/" + getCapacity();
+    }
+}
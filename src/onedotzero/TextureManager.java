@@ -19,7 +19,15 @@
 
 package onedotzero;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
 
 import javax.media.opengl.GL;
 import javax.media.opengl.glu.GLU;
@@ -28,34 +36,184 @@ import processing.core.PApplet;
 import processing.core.PConstants;
 import processing.core.PFont;
 import processing.core.PGraphics;
+import processing.core.PImage;
 
 /**
+ * <p>
  * The texture manager produces {@link Texture} instances from given strings,
  * using a P3D offscreen renderer. All textures are generated lazily on demand
- * and kept in {@link HashMap} to avoid the creation of duplicates.
+ * and cached to avoid the creation of duplicates. In atlas mode, textures are
+ * packed into the rows of shared {@link TextureAtlas} pages instead of using
+ * an individual OpenGL texture each.
+ * </p>
+ * 
+ * <p>
+ * The cache is limited to a max. size in bytes of video memory. Once this
+ * limit is exceeded, the least recently requested textures are deleted. Every
+ * texture handed out by {@link #getTextureFor(String)} is retained for the
+ * caller and is never evicted until released again (see
+ * {@link Texture#release()}), so textures of ribbons still on screen stay
+ * valid. Must only be used from the GL thread.
+ * </p>
+ * 
+ * <p>
+ * In async mode (see {@link #setAsync(int, float)}), messages are rendered by
+ * background threads using a {@link TextRasterizer} instead. New textures are
+ * handed out as {@link AsyncTexture} handles showing a blank placeholder until
+ * the GL thread has uploaded the actual pixels during one of the next calls to
+ * {@link #update()}. Uploads are limited to a time budget per frame. If
+ * rendering fails, the handle is removed from the cache again, so the message
+ * is rendered anew when it's requested the next time.
+ * </p>
  */
 public class TextureManager {
 
+    /**
+     * Rendered pixels waiting for upload (null, if rendering failed).
+     */
+    protected static class Upload {
+
+        protected final String txt;
+        protected final AsyncTexture tex;
+        protected final ByteBuffer[] levels;
+
+        protected Upload(String txt, AsyncTexture tex, ByteBuffer[] levels) {
+            this.txt = txt;
+            this.tex = tex;
+            this.levels = levels;
+        }
+    }
+
+    /**
+     * Background job rendering a single message.
+     */
+    protected class RasterJob implements Runnable {
+
+        protected final String txt;
+        protected final AsyncTexture tex;
+
+        protected RasterJob(String txt, AsyncTexture tex) {
+            this.txt = txt;
+            this.tex = tex;
+        }
+
+        public void run() {
+            try {
+                PImage img = rasterizer.rasterize(txt);
+                ByteBuffer pixels =
+                        Texture.getTextureByteBuffer(img, texWidth, texHeight,
+                                FORMAT);
+                ByteBuffer[] levels;
+                if (atlas != null) {
+                    levels = atlas.buildLevels(pixels);
+                } else if (hasMipmaps) {
+                    levels =
+                            Texture.getMipmapBuilder().build(pixels,
+                                    texWidth, texHeight,
+                                    Texture.getBytesPerPixel(FORMAT));
+                } else {
+                    levels = new ByteBuffer[] { pixels };
+                }
+                uploads.offer(new Upload(txt, tex, levels));
+            } catch (RuntimeException e) {
+                logger.warning("couldn't render message: " + txt + " " + e);
+                uploads.offer(new Upload(txt, tex, null));
+            }
+        }
+    }
+
     public static final String ELLIPSE = "...";
     public static final int INDENT = 128;
     public static final int BASELINE = 10;
 
+    /**
+     * Pixel format of message textures. Since messages are rendered white on
+     * black and tinted via the vertex color, a single luminance channel is
+     * sufficient and renders identically to RGBA (alpha is always 1).
+     */
+    public static final int FORMAT = GL.GL_LUMINANCE;
+
     public int texWidth = 4096;
     public int texHeight = 64;
 
-    protected HashMap<String, Texture> textures =
-            new HashMap<String, Texture>();
+    protected static final Logger logger =
+            Logger.getLogger(TextureManager.class.getName());
+
+    protected LinkedHashMap<String, Texture> textures =
+            new LinkedHashMap<String, Texture>(16, 0.75f, true);
+
+    protected long maxCacheSize = Long.MAX_VALUE;
+    protected long cacheSize;
+    protected long hits;
+    protected long misses;
+    protected long evictions;
+
+    protected TextureAtlas atlas;
+    protected final boolean hasMipmaps;
+
+    protected ExecutorService executor;
+    protected TextRasterizer rasterizer;
+    protected final ConcurrentLinkedQueue<Upload> uploads =
+            new ConcurrentLinkedQueue<Upload>();
+    protected Texture placeholder;
+    protected long uploadBudget;
 
     protected PApplet app;
     protected PFont font;
+    protected TextLayout layout;
     protected GL gl;
     protected static GLU glu = new GLU();
 
     public TextureManager(PApplet app, GL gl, PFont font, int texWidth) {
+        this(app, gl, font, texWidth, 0);
+    }
+
+    /**
+     * @param app
+     *            parent applet
+     * @param gl
+     *            JOGL GL instance
+     * @param font
+     *            message font
+     * @param texWidth
+     *            texture width
+     * @param atlasHeight
+     *            page height of the texture atlas (0 = atlas mode disabled)
+     */
+    public TextureManager(PApplet app, GL gl, PFont font, int texWidth,
+            int atlasHeight) {
+        this(app, gl, font, texWidth, atlasHeight, true);
+    }
+
+    /**
+     * @param app
+     *            parent applet
+     * @param gl
+     *            JOGL GL instance
+     * @param font
+     *            message font
+     * @param texWidth
+     *            texture width
+     * @param atlasHeight
+     *            page height of the texture atlas (0 = atlas mode disabled)
+     * @param hasMipmaps
+     *            true, if message textures should use mipmaps (disabling them
+     *            saves memory & upload time at the cost of aliasing for
+     *            distant ribbons)
+     */
+    public TextureManager(PApplet app, GL gl, PFont font, int texWidth,
+            int atlasHeight, boolean hasMipmaps) {
         this.app = app;
         this.gl = gl;
         this.font = font;
+        this.layout = TextLayout.forFont(font);
         this.texWidth = texWidth;
+        this.hasMipmaps = hasMipmaps;
+        if (atlasHeight > 0) {
+            atlas =
+                    new TextureAtlas(gl, texWidth, atlasHeight, texHeight,
+                            FORMAT, hasMipmaps);
+        }
     }
 
     private Texture createTexture(String txt) {
@@ -64,29 +222,240 @@ public class TextureManager {
         g.background(0);
         g.fill(255);
         g.textFont(font);
-        boolean isTruncated = false;
-        if (g.textWidth(txt) > texWidth - INDENT * 2) {
-            while (g.textWidth(txt + ELLIPSE) > texWidth - INDENT * 2) {
-                txt = txt.substring(0, txt.length() - 1);
-                isTruncated = true;
-            }
-        }
-        if (isTruncated) {
-            txt += ELLIPSE;
-        }
+        txt = layout.truncate(txt, texWidth - INDENT * 2, ELLIPSE);
         g.text(txt, INDENT, texHeight - BASELINE);
         g.endDraw();
         g.loadPixels();
-        Texture tex = new Texture(gl, glu, g, true);
+        Texture tex;
+        if (atlas != null) {
+            tex = atlas.add(g);
+        } else {
+            tex = new Texture(gl, glu, g, FORMAT, hasMipmaps);
+        }
         return tex;
     }
 
+    /**
+     * Deletes least recently used textures not in use until the cache size is
+     * within its limit again.
+     */
+    protected void evict() {
+        for (Iterator<Map.Entry<String, Texture>> i =
+                textures.entrySet().iterator(); i.hasNext()
+                && cacheSize > maxCacheSize;) {
+            Texture tex = i.next().getValue();
+            if (tex.getRefCount() <= 0) {
+                i.remove();
+                cacheSize -= tex.getSizeInBytes();
+                tex.delete();
+                evictions++;
+            }
+        }
+        if (cacheSize > maxCacheSize) {
+            logger.fine("texture cache over limit, all textures in use: "
+                    + this);
+        }
+    }
+
+    /**
+     * @return texture atlas or null, if atlas mode is disabled
+     */
+    public TextureAtlas getAtlas() {
+        return atlas;
+    }
+
+    /**
+     * @return current cache size in bytes
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @return number of textures evicted from the cache
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return ratio of cache hits to the total number of requests
+     */
+    public float getHitRate() {
+        long total = hits + misses;
+        return total > 0 ? (float) hits / total : 0;
+    }
+
+    /**
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return max. cache size in bytes
+     */
+    public long getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    /**
+     * @return number of cache misses (i.e. textures created)
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of cached textures
+     */
+    public int getNumTextures() {
+        return textures.size();
+    }
+
+    /**
+     * Returns the texture for the given string, creating it if necessary. The
+     * texture is retained on behalf of the caller and must be released via
+     * {@link Texture#release()} once it's not used anymore.
+     * 
+     * @param txt
+     * @return retained texture
+     */
     public Texture getTextureFor(String txt) {
         Texture tex = textures.get(txt);
         if (tex == null) {
-            tex = createTexture(txt);
+            if (executor != null) {
+                AsyncTexture at =
+                        new AsyncTexture(placeholder, texWidth, texHeight);
+                executor.execute(new RasterJob(txt, at));
+                tex = at;
+            } else {
+                tex = createTexture(txt);
+            }
             textures.put(txt, tex);
+            cacheSize += tex.getSizeInBytes();
+            misses++;
+        } else {
+            hits++;
+        }
+        tex.retain();
+        if (cacheSize > maxCacheSize) {
+            evict();
         }
         return tex;
     }
+
+    /**
+     * @return number of rendered textures waiting for upload
+     */
+    public int getNumPendingUploads() {
+        return uploads.size();
+    }
+
+    /**
+     * Enables or disables async mode. Only affects textures created
+     * afterwards.
+     * 
+     * @param numThreads
+     *            number of background threads (0 = render synchronously using
+     *            a P3D offscreen renderer)
+     * @param uploadBudget
+     *            max. time (in milliseconds) spent on texture uploads per
+     *            call to {@link #update()} (at least one upload is done per
+     *            call, if any are pending)
+     */
+    public void setAsync(int numThreads, float uploadBudget) {
+        shutdown();
+        if (numThreads > 0) {
+            if (placeholder == null) {
+                placeholder = new Texture(gl, glu, new PImage(16, 16), FORMAT,
+                                hasMipmaps);
+            }
+            rasterizer = new TextRasterizer(font, texWidth, texHeight);
+            executor =
+                    Executors.newFixedThreadPool(numThreads,
+                            new ThreadFactory() {
+
+                                private int id;
+
+                                public Thread newThread(Runnable r) {
+                                    Thread t =
+                                            new Thread(r, "textrasterizer-"
+                                                    + (id++));
+                                    t.setDaemon(true);
+                                    return t;
+                                }
+                            });
+        }
+        this.uploadBudget = (long) (uploadBudget * 1000000);
+        logger.info("text rasterizer threads: " + numThreads
+                + " upload budget: " + uploadBudget + "ms");
+    }
+
+    /**
+     * Sets the max. amount of video memory used by cached textures. Since
+     * textures in use are never evicted, the limit can be exceeded
+     * temporarily.
+     * 
+     * @param maxBytes
+     *            cache size in bytes
+     */
+    public void setMaxCacheSize(long maxBytes) {
+        maxCacheSize = maxBytes;
+        if (cacheSize > maxCacheSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Stops all background threads. Messages not yet rendered will keep their
+     * placeholder texture.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "textures: " + textures.size() + " size: " + (cacheSize >> 10)
+                + "/" + (maxCacheSize >> 10) + " KB hits: " + hits
+                + " misses: " + misses + " rate: " + getHitRate()
+                + " evictions: " + evictions;
+    }
+
+    /**
+     * Uploads textures rendered in the background (if any) until the upload
+     * time budget is used up. Must be called once per frame from the GL
+     * thread when async mode is enabled.
+     */
+    public void update() {
+        long deadline = System.nanoTime() + uploadBudget;
+        Upload u;
+        while ((u = uploads.poll()) != null) {
+            if (u.levels == null) {
+                // failed, ribbons keep the placeholder but it isn't reused
+                if (textures.get(u.txt) == u.tex) {
+                    textures.remove(u.txt);
+                    cacheSize -= u.tex.getSizeInBytes();
+                }
+            } else if (!u.tex.isDeleted) {
+                Texture tex;
+                if (atlas != null) {
+                    tex = atlas.add(u.levels);
+                } else {
+                    tex =
+                            new Texture(gl, glu, u.levels, texWidth,
+                                    texHeight, FORMAT);
+                }
+                u.tex.setTarget(tex);
+            }
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+    }
 }
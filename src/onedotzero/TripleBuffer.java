@@ -0,0 +1,114 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Lock-free triple buffer for handing over data from a single producer to a
+ * single consumer thread, e.g. per frame snapshots of the simulation to the
+ * render thread. The producer fills the write buffer and publishes it, the
+ * consumer always acquires the most recently published buffer. Neither side
+ * ever waits for the other: if the producer is faster, intermediate buffers
+ * are simply overwritten, if the consumer is faster, it keeps the buffer it
+ * already has.
+ * </p>
+ * 
+ * <p>
+ * The index of the spare buffer (the one not owned by either side) and a flag
+ * indicating whether it contains unread data are swapped atomically.
+ * </p>
+ * 
+ * @param <T>
+ *            buffer type
+ */
+public class TripleBuffer<T> {
+
+    protected static final int DIRTY = 1;
+
+    protected final Object[] buffers;
+    protected final AtomicInteger spare;
+    protected int writeIndex;
+    protected int readIndex;
+
+    /**
+     * @param a
+     *            initial read buffer
+     * @param b
+     *            initial write buffer
+     * @param c
+     *            initial spare buffer
+     */
+    public TripleBuffer(T a, T b, T c) {
+        buffers = new Object[] { a, b, c };
+        readIndex = 0;
+        writeIndex = 1;
+        spare = new AtomicInteger(2 << 1);
+    }
+
+    /**
+     * Returns the most recently published buffer. If nothing new has been
+     * published since the last call, the same buffer is returned again. The
+     * buffer stays owned by the consumer until the next call. Must only be
+     * called from the consumer thread.
+     * 
+     * @return read buffer
+     */
+    public T acquire() {
+        if ((spare.get() & DIRTY) != 0) {
+            readIndex = spare.getAndSet(readIndex << 1) >> 1;
+        }
+        return getReadBuffer();
+    }
+
+    /**
+     * @return buffer currently owned by the consumer
+     */
+    @SuppressWarnings("unchecked")
+    public T getReadBuffer() {
+        return (T) buffers[readIndex];
+    }
+
+    /**
+     * @return buffer currently owned by the producer
+     */
+    @SuppressWarnings("unchecked")
+    public T getWriteBuffer() {
+        return (T) buffers[writeIndex];
+    }
+
+    /**
+     * @return true, if a buffer has been published which hasn't been acquired
+     *         yet
+     */
+    public boolean hasUpdate() {
+        return (spare.get() & DIRTY) != 0;
+    }
+
+    /**
+     * Publishes the current write buffer and swaps in the spare one, which
+     * must be completely overwritten by the producer. Must only be called from
+     * the producer thread.
+     */
+    public void publish() {
+        writeIndex = spare.getAndSet(writeIndex << 1 | DIRTY) >> 1;
+    }
+}
@@ -25,6 +25,7 @@ import java.net.URL;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 
+import onedotzero.SimClock;
 import toxi.data.feeds.AtomFeed;
 import toxi.data.feeds.util.EntityStripper;
 import toxi.math.MathUtils;
@@ -49,8 +50,8 @@ public class AtomMessageProvider implements MessageProvider {
      */
     @Override
     public String getMessage() {
-        return EntityStripper.flattenXML(feed.entries.get(MathUtils
-                .random(feed.entries.size())).title);
+        return EntityStripper.flattenXML(feed.entries.get(MathUtils.random(
+                SimClock.getRandom(), feed.entries.size())).title);
     }
 
     @Override
@@ -25,6 +25,7 @@ import java.util.Iterator;
 import java.util.logging.Logger;
 
 import onedotzero.ODZApp;
+import onedotzero.SimClock;
 import onedotzero.poles.ParticlePole3D;
 import toxi.color.TColor;
 import toxi.math.MathUtils;
@@ -177,7 +178,9 @@ public class FeedPool implements Iterable<FeedPool.FeedConfiguration> {
     public FeedConfiguration getRandomActiveFeed() {
         FeedConfiguration f = null;
         while (f == null || !f.isEnabled) {
-            f = feedList.get(MathUtils.random(feedList.size()));
+            f =
+                    feedList.get(MathUtils.random(SimClock.getRandom(),
+                            feedList.size()));
         }
         return f;
     }
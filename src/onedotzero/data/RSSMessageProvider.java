@@ -25,6 +25,7 @@ import java.net.URL;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 
+import onedotzero.SimClock;
 import toxi.data.feeds.RSSFeed;
 import toxi.math.MathUtils;
 
@@ -49,7 +50,8 @@ public class RSSMessageProvider implements MessageProvider {
     @Override
     public String getMessage() {
         return feed.channel.items.get(
-                MathUtils.random(feed.channel.items.size())).getTitlePlain();
+                MathUtils.random(SimClock.getRandom(), feed.channel.items
+                        .size())).getTitlePlain();
     }
 
     @Override
@@ -29,6 +29,7 @@ import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlTransient;
 
+import onedotzero.SimClock;
 import toxi.math.MathUtils;
 
 /**
@@ -76,7 +77,9 @@ public class UserMessageProvider implements MessageProvider {
     public String getMessage() {
         String msg = null;
         if (messages.size() > 0) {
-            msg = messages.get(MathUtils.random(messages.size())).message;
+            msg =
+                    messages.get(MathUtils.random(SimClock.getRandom(),
+                            messages.size())).message;
         } else {
             msg = "@onedotzero you guys rock!";
         }
@@ -0,0 +1,221 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.export;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.logging.Logger;
+
+import javax.media.opengl.GL;
+
+import com.sun.opengl.util.BufferUtil;
+
+/**
+ * <p>
+ * Double buffered asynchronous frame buffer readback using pixel buffer
+ * objects (PBO). Each call to {@link #read(int, int[])} starts the transfer of
+ * the current frame into one PBO and maps the other one, which holds the frame
+ * requested during the previous call. That way the GPU can transfer the pixels
+ * in the background and the render thread doesn't need to wait for
+ * glReadPixels() to complete. As a consequence, frames are delivered with a
+ * delay of one frame and {@link #flush(int[])} needs to be called to retrieve
+ * the last pending frame.
+ * </p>
+ * 
+ * <p>
+ * Pixels are requested as BGRA with reversed 8-bit components, which matches
+ * the packed ARGB integer format of Processing on all platforms, so only the
+ * vertical flip is required. If PBOs are not supported by the driver, frames
+ * are read synchronously instead. Must only be used from the GL thread.
+ * </p>
+ */
+public class AsyncReadback {
+
+    protected static final Logger logger =
+            Logger.getLogger(AsyncReadback.class.getName());
+
+    protected final GL gl;
+    protected final int width, height;
+
+    protected final int[] pbos;
+    protected IntBuffer syncBuffer;
+
+    /**
+     * Index of the PBO to read the next frame into
+     */
+    protected int current;
+    protected boolean isPending;
+    protected int pendingID;
+
+    /**
+     * Creates a new readback for frames of the given size.
+     * 
+     * @param gl
+     *            JOGL GL instance
+     * @param width
+     *            frame width
+     * @param height
+     *            frame height
+     */
+    public AsyncReadback(GL gl, int width, int height) {
+        this.gl = gl;
+        this.width = width;
+        this.height = height;
+        if (isSupported(gl)) {
+            pbos = new int[2];
+            gl.glGenBuffers(2, pbos, 0);
+            for (int i = 0; i < 2; i++) {
+                gl.glBindBuffer(GL.GL_PIXEL_PACK_BUFFER, pbos[i]);
+                gl.glBufferData(GL.GL_PIXEL_PACK_BUFFER, width * height * 4,
+                        null, GL.GL_STREAM_READ);
+            }
+            gl.glBindBuffer(GL.GL_PIXEL_PACK_BUFFER, 0);
+            logger.info("using PBO readback: " + width + "x" + height);
+        } else {
+            pbos = null;
+            syncBuffer = BufferUtil.newIntBuffer(width * height);
+            logger.warning("PBOs not supported, using synchronous readback");
+        }
+    }
+
+    /**
+     * Copies the given bottom-up pixel rows into the destination array in
+     * top-down order.
+     */
+    protected void copyFlipped(IntBuffer src, int[] dest) {
+        for (int y = height - 1, offset = 0; y >= 0; y--, offset += width) {
+            src.position(y * width);
+            src.get(dest, offset, width);
+        }
+    }
+
+    /**
+     * Deletes the PBOs. Pending frames are lost.
+     */
+    public void delete() {
+        if (pbos != null) {
+            gl.glDeleteBuffers(2, pbos, 0);
+        }
+        isPending = false;
+    }
+
+    /**
+     * Retrieves the last pending frame (if any) without starting a new
+     * transfer.
+     * 
+     * @param pixels
+     *            destination array (width * height)
+     * @return frame ID of the retrieved frame or -1, if none was pending
+     */
+    public int flush(int[] pixels) {
+        if (!isPending) {
+            return -1;
+        }
+        isPending = false;
+        return mapFrame(1 - current, pixels) ? pendingID : -1;
+    }
+
+    /**
+     * @return frame height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return frame width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return true, if a frame is still in transfer
+     */
+    public boolean isPending() {
+        return isPending;
+    }
+
+    /**
+     * Checks if the given GL context supports pixel buffer objects.
+     * 
+     * @param gl
+     * @return true, if supported
+     */
+    public static boolean isSupported(GL gl) {
+        return (gl.isExtensionAvailable("GL_ARB_pixel_buffer_object") || gl
+                .isExtensionAvailable("GL_EXT_pixel_buffer_object"))
+                && gl.isFunctionAvailable("glMapBuffer");
+    }
+
+    /**
+     * Maps the given PBO and copies its contents into the pixel array.
+     */
+    protected boolean mapFrame(int pboID, int[] pixels) {
+        gl.glBindBuffer(GL.GL_PIXEL_PACK_BUFFER, pbos[pboID]);
+        ByteBuffer mapped =
+                gl.glMapBuffer(GL.GL_PIXEL_PACK_BUFFER, GL.GL_READ_ONLY);
+        boolean isMapped = mapped != null;
+        if (isMapped) {
+            copyFlipped(mapped.order(ByteOrder.nativeOrder()).asIntBuffer(),
+                    pixels);
+            gl.glUnmapBuffer(GL.GL_PIXEL_PACK_BUFFER);
+        } else {
+            logger.warning("couldn't map PBO");
+        }
+        gl.glBindBuffer(GL.GL_PIXEL_PACK_BUFFER, 0);
+        return isMapped;
+    }
+
+    /**
+     * Starts reading the current frame buffer contents and retrieves the
+     * frame requested by the previous call (if any). In synchronous mode, the
+     * current frame is returned immediately.
+     * 
+     * @param frameID
+     *            ID of the current frame (e.g. sequence number)
+     * @param pixels
+     *            destination array (width * height) for the previous frame
+     * @return frame ID of the frame copied into the pixel array or -1, if no
+     *         frame is available yet
+     */
+    public int read(int frameID, int[] pixels) {
+        if (pbos == null) {
+            syncBuffer.rewind();
+            gl.glReadPixels(0, 0, width, height, GL.GL_BGRA,
+                    GL.GL_UNSIGNED_INT_8_8_8_8_REV, syncBuffer);
+            copyFlipped(syncBuffer, pixels);
+            return frameID;
+        }
+        gl.glBindBuffer(GL.GL_PIXEL_PACK_BUFFER, pbos[current]);
+        gl.glReadPixels(0, 0, width, height, GL.GL_BGRA,
+                GL.GL_UNSIGNED_INT_8_8_8_8_REV, 0);
+        gl.glBindBuffer(GL.GL_PIXEL_PACK_BUFFER, 0);
+        int prevID = -1;
+        if (isPending) {
+            prevID = mapFrame(1 - current, pixels) ? pendingID : -1;
+        }
+        pendingID = frameID;
+        isPending = true;
+        current = 1 - current;
+        return prevID;
+    }
+}
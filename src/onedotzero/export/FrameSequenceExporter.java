@@ -20,18 +20,76 @@
 package onedotzero.export;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.media.opengl.GL;
 
 import processing.core.PGraphics;
 
 /**
+ * <p>
  * This class handles the exporting of individual frames in a chosen file
  * format. A subfolder is created automatically for each new session/sequence.
+ * Frames are written using the {@link ImageEncoder} for the current format.
+ * </p>
+ * 
+ * <p>
+ * In pipelined mode (see {@link #setPipelined(GL, int, int)}), frames are
+ * read back asynchronously via an {@link AsyncReadback} and encoded by a pool
+ * of background threads. The number of frames waiting for or being encoded
+ * is limited; once this limit is reached, {@link #update(PGraphics)} blocks
+ * until an encoder has finished, throttling the application to the encoding
+ * speed instead of running out of memory.
+ * </p>
  */
 public class FrameSequenceExporter {
 
+    /**
+     * Background job encoding a single frame.
+     */
+    protected class EncodeJob implements Runnable {
+
+        protected final ImageEncoder imageEncoder;
+        protected final int[] pixels;
+        protected final int width, height;
+        protected final String fileName;
+
+        protected EncodeJob(ImageEncoder imageEncoder, int[] pixels,
+                int width, int height, String fileName) {
+            this.imageEncoder = imageEncoder;
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.fileName = fileName;
+        }
+
+        public void run() {
+            try {
+                imageEncoder.encode(pixels, width, height, new File(fileName));
+            } catch (IOException e) {
+                logger.warning("couldn't save frame: " + fileName + " " + e);
+            } catch (RuntimeException e) {
+                logger.warning("couldn't save frame: " + fileName + " " + e);
+            } finally {
+                freeBuffers.offer(pixels);
+                queueSlots.release();
+            }
+        }
+    }
+
+    protected static final Logger logger =
+            Logger.getLogger(FrameSequenceExporter.class.getName());
+
     public static final String[] FORMATS =
-            new String[] { "tiff", "png", "jpg", "tga" };
+            new String[] { "tiff", "png", "jpg", "tga", "raw" };
 
     protected String basePath;
     protected String baseName;
@@ -45,16 +103,52 @@ public class FrameSequenceExporter {
     protected DecimalFormat timeCodeFormat;
     protected int fps;
 
+    protected ImageEncoder imageEncoder;
+    protected ExecutorService compressor;
+
+    protected GL gl;
+    protected AsyncReadback readback;
+    protected ExecutorService encoder;
+    protected Semaphore queueSlots;
+    protected final ConcurrentLinkedQueue<int[]> freeBuffers =
+            new ConcurrentLinkedQueue<int[]>();
+    protected String pendingFileName;
+    protected int numStalls;
+    protected int maxQueued;
+
     public FrameSequenceExporter(String basePath, String baseName, String format) {
         super();
         this.basePath = basePath;
         this.baseName = baseName;
-        this.format = format;
+        setFileFormat(format);
         setSequenceFormat(5);
         setFPS(25);
         timeCodeFormat = new DecimalFormat("00");
     }
 
+    /**
+     * Waits for a free queue slot and returns a pixel buffer for the given
+     * frame size.
+     */
+    protected int[] acquireBuffer(int size) {
+        if (!queueSlots.tryAcquire()) {
+            numStalls++;
+            queueSlots.acquireUninterruptibly();
+        }
+        int[] pixels = freeBuffers.poll();
+        if (pixels == null || pixels.length != size) {
+            pixels = new int[size];
+        }
+        return pixels;
+    }
+
+    /**
+     * @return thread pool used for compressing frames (or null)
+     */
+    public ExecutorService getCompressor() {
+        return compressor;
+    }
+
     /**
      * Returns the currently set file format extension
      * 
@@ -73,6 +167,20 @@ public class FrameSequenceExporter {
         return fps;
     }
 
+    /**
+     * @return number of frames currently waiting for or being encoded
+     */
+    public int getNumQueued() {
+        return encoder != null ? maxQueued - queueSlots.availablePermits() : 0;
+    }
+
+    /**
+     * @return number of times the render thread had to wait for the encoders
+     */
+    public int getNumStalls() {
+        return numStalls;
+    }
+
     /**
      * Returns a mm:ss:ff formatted version of the current frame ID, based on
      * the currently set frame rate.
@@ -127,6 +235,7 @@ public class FrameSequenceExporter {
      */
     public void setFileFormat(String format) {
         this.format = format;
+        imageEncoder = ImageEncoders.create(format, compressor);
     }
 
     /**
@@ -140,6 +249,56 @@ public class FrameSequenceExporter {
         this.fps = fps;
     }
 
+    /**
+     * Sets the number of threads used to compress a single frame, for formats
+     * supporting it (see {@link ImageEncoders}).
+     * 
+     * @param numThreads
+     *            number of threads (0 or 1 = compress on encoder thread)
+     */
+    public void setCompressionThreads(int numThreads) {
+        if (compressor != null) {
+            compressor.shutdown();
+        }
+        compressor = ImageEncoders.newExecutor(numThreads, "framecompressor");
+        imageEncoder = ImageEncoders.create(format, compressor);
+    }
+
+    /**
+     * Enables or disables pipelined export. Only works for OpenGL renderers.
+     * 
+     * @param gl
+     *            JOGL GL instance
+     * @param numEncoders
+     *            number of encoder threads (0 = export synchronously)
+     * @param maxQueued
+     *            max. number of frames waiting for or being encoded
+     */
+    public void setPipelined(GL gl, int numEncoders, int maxQueued) {
+        shutdownEncoders();
+        this.gl = gl;
+        if (numEncoders > 0) {
+            this.maxQueued = Math.max(maxQueued, numEncoders);
+            queueSlots = new Semaphore(this.maxQueued);
+            encoder =
+                    Executors.newFixedThreadPool(numEncoders,
+                            new ThreadFactory() {
+
+                                private int id;
+
+                                public Thread newThread(Runnable r) {
+                                    Thread t =
+                                            new Thread(r, "frameencoder-"
+                                                    + (id++));
+                                    t.setDaemon(true);
+                                    return t;
+                                }
+                            });
+        }
+        logger.info("export encoder threads: " + numEncoders + " max queued: "
+                + maxQueued);
+    }
+
     /**
      * Sets the number of digits to be used for formatting frame IDs in the
      * filename. Defaults to 5 digits, e.g. 00123.
@@ -154,6 +313,39 @@ public class FrameSequenceExporter {
         frameIDFormat = new DecimalFormat(format.toString());
     }
 
+    /**
+     * Stops the encoder threads after all queued frames have been written. A
+     * frame still in transfer is discarded, call {@link #stop()} and
+     * {@link #update(PGraphics)} once more beforehand to avoid this. Doesn't
+     * require the GL thread.
+     */
+    public void shutdown() {
+        shutdownEncoders();
+        if (compressor != null) {
+            compressor.shutdown();
+            compressor = null;
+        }
+    }
+
+    /**
+     * Waits for all queued frames and stops the encoder threads.
+     */
+    protected void shutdownEncoders() {
+        if (encoder != null) {
+            encoder.shutdown();
+            try {
+                if (!encoder.awaitTermination(30, TimeUnit.SECONDS)) {
+                    logger.warning("frame encoders didn't finish in time");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            encoder = null;
+        }
+        readback = null;
+        freeBuffers.clear();
+    }
+
     /**
      * Indicate the exporter to start saving out frames.
      */
@@ -168,22 +360,77 @@ public class FrameSequenceExporter {
         isActive = false;
     }
 
+    /**
+     * Queues the given pixels for encoding, if the frame ID is valid.
+     * Otherwise the buffer is recycled immediately.
+     */
+    protected void submit(int frameID, int[] pixels, String fileName) {
+        if (frameID != -1) {
+            encoder.execute(new EncodeJob(imageEncoder, pixels, readback
+                    .getWidth(), readback.getHeight(), fileName));
+        } else {
+            freeBuffers.offer(pixels);
+            queueSlots.release();
+        }
+    }
+
     /**
      * This method should be called by the main application at the end of each
      * render loop iteration. Depending on the activity status of the exporter,
-     * frames are saved or not.
+     * frames are saved or not. In pipelined mode, the last frame of a sequence
+     * is written during the first call after the exporter has been stopped.
      * 
      * @param g
      *            PGraphics object to retrieve pixels from
      */
     public void update(PGraphics g) {
-        if (isActive) {
+        String frameID =
+                sessionPath + baseName + "-" + frameIDFormat.format(sequenceID)
+                        + "." + format;
+        if (encoder != null) {
+            updatePipelined(g, frameID);
+        } else if (isActive) {
             g.loadPixels();
-            String frameID =
-                    sessionPath + baseName + "-"
-                            + frameIDFormat.format(sequenceID) + "." + format;
-            g.save(frameID);
+            try {
+                imageEncoder.encode(g.pixels, g.width, g.height, new File(
+                        frameID));
+            } catch (IOException e) {
+                logger.warning("couldn't save frame: " + frameID + " " + e);
+            }
+            sequenceID++;
+        }
+    }
+
+    /**
+     * Starts the readback of the current frame (if active) and queues the
+     * previous one for encoding.
+     */
+    protected void updatePipelined(PGraphics g, String frameID) {
+        boolean isResized =
+                readback != null
+                        && (readback.getWidth() != g.width || readback
+                                .getHeight() != g.height);
+        if (isResized) {
+            // frame size changed, write pending frame & start over
+            int[] pixels =
+                    acquireBuffer(readback.getWidth() * readback.getHeight());
+            submit(readback.flush(pixels), pixels, pendingFileName);
+            readback.delete();
+            readback = null;
+        }
+        if (isActive) {
+            if (readback == null) {
+                readback = new AsyncReadback(gl, g.width, g.height);
+            }
+            int[] pixels = acquireBuffer(g.width * g.height);
+            int id = readback.read(sequenceID, pixels);
+            // synchronous fallback returns the current frame immediately
+            submit(id, pixels, id == sequenceID ? frameID : pendingFileName);
+            pendingFileName = frameID;
             sequenceID++;
+        } else if (readback != null && readback.isPending()) {
+            int[] pixels = acquireBuffer(g.width * g.height);
+            submit(readback.flush(pixels), pixels, pendingFileName);
         }
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.export;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Common interface for writers of single images in a specific file format.
+ * Pixels are given in Processing's packed ARGB integer format, top-down row
+ * order. Since frames are exported without transparency, the alpha channel is
+ * ignored. Implementations must be thread safe, so a single instance can be
+ * shared by multiple export threads.
+ * 
+ * @see ImageEncoders#create(String, java.util.concurrent.ExecutorService)
+ */
+public interface ImageEncoder {
+
+    /**
+     * Writes the given pixels to a file.
+     * 
+     * @param pixels
+     *            ARGB pixels
+     * @param width
+     *            image width
+     * @param height
+     *            image height
+     * @param file
+     *            destination file (will be overwritten)
+     * @throws IOException
+     */
+    public void encode(int[] pixels, int width, int height, File file)
+            throws IOException;
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.export;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Factory for {@link ImageEncoder} instances of the supported export formats.
+ * TGA & RAW are written by streaming NIO encoders, PNG is compressed in
+ * parallel strips, all other formats are handled by Processing.
+ */
+public class ImageEncoders {
+
+    /**
+     * Default deflate level used for PNG export
+     */
+    public static final int PNG_LEVEL = 6;
+
+    /**
+     * Creates an encoder for the given file format.
+     * 
+     * @param format
+     *            file extension (e.g. "png")
+     * @param executor
+     *            thread pool for encoders supporting parallel compression
+     *            (can be null)
+     * @return encoder
+     */
+    public static ImageEncoder create(String format, ExecutorService executor) {
+        format = format.toLowerCase();
+        if (format.equals("tga")) {
+            return new TGAEncoder();
+        } else if (format.equals("raw")) {
+            return new RawEncoder();
+        } else if (format.equals("png")) {
+            int numStrips =
+                    executor != null ? Runtime.getRuntime()
+                            .availableProcessors() * 2 : 1;
+            return new PNGEncoder(executor, numStrips, PNG_LEVEL);
+        }
+        return new PImageEncoder();
+    }
+
+    /**
+     * Creates an encoder for formats which can be written in scanline order
+     * without compression, e.g. for use with {@link TileWriter}.
+     * 
+     * @param format
+     *            file extension
+     * @return encoder or null, if the format isn't supported
+     */
+    public static RawEncoder createStreaming(String format) {
+        format = format.toLowerCase();
+        if (format.equals("tga")) {
+            return new TGAEncoder();
+        } else if (format.equals("raw")) {
+            return new RawEncoder();
+        }
+        return null;
+    }
+
+    /**
+     * Creates a thread pool of daemon threads for use with
+     * {@link #create(String, ExecutorService)}.
+     * 
+     * @param numThreads
+     *            number of threads (< 2 = no pool)
+     * @param name
+     *            thread name prefix
+     * @return thread pool or null
+     */
+    public static ExecutorService newExecutor(int numThreads,
+            final String name) {
+        if (numThreads < 2) {
+            return null;
+        }
+        return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+
+            private int id;
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + (id++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
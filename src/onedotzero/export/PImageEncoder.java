@@ -0,0 +1,47 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.export;
+
+import java.io.File;
+import java.io.IOException;
+
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/**
+ * Fallback encoder using Processing's built-in image export (TIFF, TGA or
+ * ImageIO for all other formats, e.g. JPG). The format is chosen by the file
+ * extension.
+ */
+public class PImageEncoder implements ImageEncoder {
+
+    public void encode(int[] pixels, int width, int height, File file)
+            throws IOException {
+        PImage img = new PImage();
+        img.width = width;
+        img.height = height;
+        img.format = PConstants.RGB;
+        img.pixels = pixels;
+        img.save(file.getAbsolutePath());
+        if (!file.exists()) {
+            throw new IOException("couldn't save image: " + file);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * <p>
+ * PNG writer for 24 bit RGB images, compressing horizontal strips of the
+ * image in parallel (similar to pigz). Each strip is filtered (using the
+ * "Sub" filter) and deflated independently, primed with the last 32KB of the
+ * previous strip as dictionary, and terminated with a sync flush, so the
+ * compressed strips can simply be concatenated into a single zlib stream. The
+ * Adler-32 checksums of the strips are combined at the end.
+ * </p>
+ * 
+ * <p>
+ * Sync flushing requires Java 7. On older runtimes, strips are still filtered
+ * in parallel, but deflated sequentially as a single stream.
+ * </p>
+ */
+public class PNGEncoder implements ImageEncoder {
+
+    /**
+     * Filters & compresses a single strip.
+     */
+    protected class Strip implements Callable<Strip> {
+
+        protected final int[] pixels;
+        protected final int width;
+        protected final int y1, y2;
+        protected final boolean isLast;
+
+        protected byte[] filtered;
+        protected byte[] compressed;
+        protected int compressedLength;
+        protected long adler;
+
+        protected Strip(int[] pixels, int width, int y1, int y2,
+                boolean isLast) {
+            this.pixels = pixels;
+            this.width = width;
+            this.y1 = y1;
+            this.y2 = y2;
+            this.isLast = isLast;
+        }
+
+        public Strip call() throws Exception {
+            filter();
+            if (SYNC_FLUSH_METHOD != null) {
+                compress();
+            }
+            return this;
+        }
+
+        protected void compress() throws Exception {
+            Deflater deflater = new Deflater(level, true);
+            if (y1 > 0) {
+                // prime with the tail of the previous strip's filtered rows
+                deflater.setDictionary(getDictionary(pixels, width, y1));
+            }
+            deflater.setInput(filtered);
+            ByteArrayOutputStream out =
+                    new ByteArrayOutputStream(filtered.length / 4 + 64);
+            byte[] buf = new byte[0x10000];
+            if (isLast) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buf, 0, deflater.deflate(buf));
+                }
+            } else {
+                int num;
+                do {
+                    num =
+                            (Integer) SYNC_FLUSH_METHOD.invoke(deflater, buf,
+                                    0, buf.length, SYNC_FLUSH);
+                    out.write(buf, 0, num);
+                } while (num == buf.length);
+            }
+            deflater.end();
+            compressed = out.toByteArray();
+            compressedLength = compressed.length;
+        }
+
+        protected void filter() {
+            filtered = filterRows(pixels, width, y1, y2);
+            Adler32 a = new Adler32();
+            a.update(filtered);
+            adler = a.getValue();
+        }
+    }
+
+    /**
+     * Min. number of rows per strip
+     */
+    public static final int MIN_STRIP_ROWS = 32;
+
+    /**
+     * Size of the deflate window & dictionary
+     */
+    public static final int WINDOW_SIZE = 32768;
+
+    protected static final byte[] SIGNATURE =
+            new byte[] { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+    protected static final Logger logger =
+            Logger.getLogger(PNGEncoder.class.getName());
+
+    /**
+     * Deflater.deflate(byte[], int, int, int), only available since Java 7
+     */
+    protected static final Method SYNC_FLUSH_METHOD;
+    protected static final int SYNC_FLUSH = 2;
+
+    static {
+        Method m = null;
+        try {
+            m =
+                    Deflater.class.getMethod("deflate", byte[].class,
+                            int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            logger.info("sync flush not supported, using sequential deflate");
+        }
+        SYNC_FLUSH_METHOD = m;
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two consecutive blocks of data (port
+     * of zlib's adler32_combine()).
+     * 
+     * @param adler1
+     *            checksum of 1st block
+     * @param adler2
+     *            checksum of 2nd block
+     * @param len2
+     *            length of 2nd block
+     * @return checksum of both blocks
+     */
+    protected static long combineAdler(long adler1, long adler2, long len2) {
+        final long base = 65521;
+        long rem = len2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base
+                - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= (base << 1)) {
+            sum2 -= (base << 1);
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Applies the PNG "Sub" filter to the given rows. Each row is prefixed
+     * with its filter type.
+     * 
+     * @param pixels
+     * @param width
+     * @param y1
+     *            first row
+     * @param y2
+     *            last row (exclusive)
+     * @return filtered rows
+     */
+    protected static byte[] filterRows(int[] pixels, int width, int y1,
+            int y2) {
+        int stride = width * 3 + 1;
+        byte[] out = new byte[(y2 - y1) * stride];
+        for (int y = y1, i = 0; y < y2; y++) {
+            out[i++] = 1;
+            int r = 0, g = 0, b = 0;
+            for (int x = 0, idx = y * width; x < width; x++) {
+                int c = pixels[idx++];
+                int cr = c >> 16 & 0xff;
+                int cg = c >> 8 & 0xff;
+                int cb = c & 0xff;
+                out[i++] = (byte) (cr - r);
+                out[i++] = (byte) (cg - g);
+                out[i++] = (byte) (cb - b);
+                r = cr;
+                g = cg;
+                b = cb;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Returns the last {@link #WINDOW_SIZE} bytes of filtered data preceding
+     * the given row.
+     */
+    protected static byte[] getDictionary(int[] pixels, int width, int y) {
+        int stride = width * 3 + 1;
+        int numRows = Math.min(y, (WINDOW_SIZE + stride - 1) / stride);
+        byte[] rows = filterRows(pixels, width, y - numRows, y);
+        int len = Math.min(rows.length, WINDOW_SIZE);
+        byte[] dict = new byte[len];
+        System.arraycopy(rows, rows.length - len, dict, 0, len);
+        return dict;
+    }
+
+    protected final ExecutorService executor;
+    protected final int numStrips;
+    protected final int level;
+
+    /**
+     * @param executor
+     *            thread pool for strip compression (null = single threaded)
+     * @param numStrips
+     *            max. number of strips per image (usually the number of
+     *            threads)
+     * @param level
+     *            deflate compression level (1 = fastest, 9 = best)
+     */
+    public PNGEncoder(ExecutorService executor, int numStrips, int level) {
+        this.executor = executor;
+        this.numStrips = Math.max(numStrips, 1);
+        this.level = level;
+    }
+
+    public void encode(int[] pixels, int width, int height, File file)
+            throws IOException {
+        int num =
+                executor != null ? Math.max(1, Math.min(numStrips, height
+                        / MIN_STRIP_ROWS)) : 1;
+        List<Strip> strips = new ArrayList<Strip>(num);
+        for (int i = 0; i < num; i++) {
+            strips.add(new Strip(pixels, width, height * i / num, height
+                    * (i + 1) / num, i == num - 1));
+        }
+        try {
+            if (num > 1) {
+                for (Future<Strip> f : executor.invokeAll(strips)) {
+                    f.get();
+                }
+            } else {
+                strips.get(0).call();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("PNG encoding interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("PNG encoding failed", e.getCause());
+        } catch (Exception e) {
+            throw new IOException("PNG encoding failed", e);
+        }
+        if (SYNC_FLUSH_METHOD == null) {
+            compressSequential(strips);
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            write(channel, ByteBuffer.wrap(SIGNATURE));
+            ByteBuffer ihdr = ByteBuffer.allocate(13);
+            ihdr.putInt(width).putInt(height);
+            // 8 bits, RGB, deflate, adaptive filtering, no interlace
+            ihdr.put(new byte[] { 8, 2, 0, 0, 0 });
+            writeChunk(channel, "IHDR", ihdr.array(), 0, 13);
+            // zlib header: deflate, 32K window, no dictionary
+            writeChunk(channel, "IDAT", new byte[] { 0x78, 0x01 }, 0, 2);
+            long adler = 1;
+            for (Strip s : strips) {
+                writeChunk(channel, "IDAT", s.compressed, 0,
+                        s.compressedLength);
+                adler = combineAdler(adler, s.adler, s.filtered.length);
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(4);
+            trailer.putInt((int) adler);
+            writeChunk(channel, "IDAT", trailer.array(), 0, 4);
+            writeChunk(channel, "IEND", new byte[0], 0, 0);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Fallback for runtimes without sync flush support: compresses the
+     * filtered strips as a single deflate stream. The result is stored in the
+     * first strip.
+     */
+    protected void compressSequential(List<Strip> strips) {
+        Deflater deflater = new Deflater(level, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[0x10000];
+        for (Strip s : strips) {
+            deflater.setInput(s.filtered);
+            while (!deflater.needsInput()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            s.compressed = null;
+            s.compressedLength = 0;
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            out.write(buf, 0, deflater.deflate(buf));
+        }
+        deflater.end();
+        Strip first = strips.get(0);
+        first.compressed = out.toByteArray();
+        first.compressedLength = first.compressed.length;
+    }
+
+    protected void write(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes a PNG chunk incl. length & CRC.
+     */
+    protected void writeChunk(FileChannel channel, String type, byte[] data,
+            int offset, int length) throws IOException {
+        if (length == 0 && !type.equals("IEND")) {
+            return;
+        }
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        ByteBuffer head = ByteBuffer.allocate(8);
+        head.putInt(length).put(typeBytes).flip();
+        ByteBuffer tail = ByteBuffer.allocate(4);
+        tail.putInt((int) crc.getValue()).flip();
+        write(channel, head);
+        write(channel, ByteBuffer.wrap(data, offset, length));
+        write(channel, tail);
+    }
+}
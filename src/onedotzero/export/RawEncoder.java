@@ -0,0 +1,116 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming writer for uncompressed 24 bit images. Rows are converted in
+ * blocks into a direct buffer and written via a NIO {@link FileChannel}, so
+ * memory use is independent of the image size. Without header, the output is
+ * plain interleaved RGB data (top-down), as understood by most video tools as
+ * "rgb24" raw video. Subclasses can write a header and change the channel
+ * order.
+ */
+public class RawEncoder implements ImageEncoder {
+
+    /**
+     * Size of the conversion buffer in bytes
+     */
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    public void encode(int[] pixels, int width, int height, File file)
+            throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer header = getHeader(width, height);
+            if (header != null) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            }
+            writePixels(channel, pixels, width, height);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @param width
+     * @param height
+     * @return file header or null, if there's none
+     */
+    protected ByteBuffer getHeader(int width, int height) {
+        return null;
+    }
+
+    /**
+     * Converts a row into the file's pixel format.
+     * 
+     * @param pixels
+     *            source pixels
+     * @param offset
+     *            index of the row's first pixel
+     * @param width
+     *            number of pixels
+     * @param row
+     *            destination array
+     */
+    protected void packRow(int[] pixels, int offset, int width, byte[] row) {
+        for (int i = 0, end = offset + width; offset < end; offset++) {
+            int c = pixels[offset];
+            row[i++] = (byte) (c >> 16);
+            row[i++] = (byte) (c >> 8);
+            row[i++] = (byte) c;
+        }
+    }
+
+    /**
+     * Writes all rows top-down in blocks of up to {@link #BUFFER_SIZE} bytes.
+     */
+    protected void writePixels(FileChannel channel, int[] pixels, int width,
+            int height) throws IOException {
+        byte[] row = new byte[width * 3];
+        ByteBuffer buffer =
+                ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, row.length));
+        for (int y = 0; y < height; y++) {
+            if (buffer.remaining() < row.length) {
+                flush(channel, buffer);
+            }
+            packRow(pixels, y * width, width, row);
+            buffer.put(row);
+        }
+        flush(channel, buffer);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.export;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming writer for uncompressed 24 bit TGA files (image type 2). Rows are
+ * stored top-down (origin flag set), so no vertical flip is needed. Unlike
+ * Processing's RLE compressed TGA export, the file size is fixed, but encoding
+ * is mostly limited by disk speed.
+ */
+public class TGAEncoder extends RawEncoder {
+
+    @Override
+    protected ByteBuffer getHeader(int width, int height) {
+        ByteBuffer header = ByteBuffer.allocate(18);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        // no image ID & color map, uncompressed true color
+        header.put((byte) 0).put((byte) 0).put((byte) 2);
+        header.put(new byte[5]);
+        // origin, size, bits per pixel, top-left origin flag
+        header.putShort((short) 0).putShort((short) 0);
+        header.putShort((short) width).putShort((short) height);
+        header.put((byte) 24).put((byte) 0x20);
+        header.flip();
+        return header;
+    }
+
+    @Override
+    protected void packRow(int[] pixels, int offset, int width, byte[] row) {
+        for (int i = 0, end = offset + width; offset < end; offset++) {
+            int c = pixels[offset];
+            row[i++] = (byte) c;
+            row[i++] = (byte) (c >> 8);
+            row[i++] = (byte) (c >> 16);
+        }
+    }
+}
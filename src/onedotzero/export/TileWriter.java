@@ -0,0 +1,166 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * Out-of-core assembly of tiled images. The output file is created with its
+ * final size up front and each tile's rows are written straight into a memory
+ * mapped region of the file, so the heap only ever needs to hold a single tile
+ * (the current frame) regardless of the total image size. Tiles can be
+ * written in any order.
+ * </p>
+ * 
+ * <p>
+ * The pixel format & file header are provided by a {@link RawEncoder} (i.e.
+ * uncompressed TGA or raw RGB), both of which store rows top-down in scanline
+ * order. Only the region covered by the current tile is mapped, so the file
+ * itself can exceed the 2GB limit of a single mapping.
+ * </p>
+ */
+public class TileWriter {
+
+    /**
+     * Max. width/height of TGA images
+     */
+    public static final int MAX_TGA_SIZE = 0xffff;
+
+    protected final RawEncoder encoder;
+    protected final File file;
+    protected final int width, height;
+    protected final int tileWidth, tileHeight;
+
+    protected final long headerSize;
+    protected final long stride;
+
+    protected RandomAccessFile raf;
+    protected FileChannel channel;
+    protected byte[] row;
+
+    /**
+     * Creates the output file and writes the header.
+     * 
+     * @param encoder
+     *            encoder defining the file format
+     * @param file
+     *            output file
+     * @param tileWidth
+     *            tile width in pixels
+     * @param tileHeight
+     *            tile height in pixels
+     * @param numTiles
+     *            number of tiles per row & column
+     * @throws IOException
+     */
+    public TileWriter(RawEncoder encoder, File file, int tileWidth,
+            int tileHeight, int numTiles) throws IOException {
+        this.encoder = encoder;
+        this.file = file;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.width = tileWidth * numTiles;
+        this.height = tileHeight * numTiles;
+        this.stride = (long) width * 3;
+        this.row = new byte[tileWidth * 3];
+        ByteBuffer header = encoder.getHeader(width, height);
+        headerSize = header != null ? header.remaining() : 0;
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            channel = raf.getChannel();
+            raf.setLength(headerSize + stride * height);
+            if (header != null) {
+                while (header.hasRemaining()) {
+                    channel.write(header, headerSize - header.remaining());
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the file. Mapped regions are flushed by the OS once they're
+     * released.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+            raf = null;
+            channel = null;
+            row = null;
+        }
+    }
+
+    /**
+     * @return output file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return total image height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return total image width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Writes a single tile into its position in the output file.
+     * 
+     * @param pixels
+     *            tile pixels (tileWidth * tileHeight, top-down)
+     * @param tx
+     *            tile column
+     * @param ty
+     *            tile row
+     * @throws IOException
+     */
+    public void writeTile(int[] pixels, int tx, int ty) throws IOException {
+        long start =
+                headerSize + (long) ty * tileHeight * stride + (long) tx
+                        * row.length;
+        long size = (tileHeight - 1) * stride + row.length;
+        MappedByteBuffer mapped =
+                channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        for (int y = 0; y < tileHeight; y++) {
+            encoder.packRow(pixels, y * tileWidth, tileWidth, row);
+            mapped.position((int) (y * stride));
+            mapped.put(row);
+        }
+    }
+}
@@ -20,9 +20,16 @@
 package onedotzero.export;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
+
+import javax.media.opengl.GL;
 
 import processing.core.PGraphics3D;
 import processing.core.PImage;
+import processing.core.PMatrix3D;
+import processing.opengl.PGraphicsOpenGL;
 import toxi.geom.Vec2D;
 
 /**
@@ -31,19 +38,28 @@ import toxi.geom.Vec2D;
  * different view angles (FOV) and clipping planes. Based on the number of tiles
  * used each frame will be rendered in slices several times and the main
  * application must ensure that no parameters are changed during this process as
- * else visible seams will appear in the exported image. The resulting image
+ * else visible seams will appear in the exported image. When used with the
+ * OpenGL renderer, each tile's frustum is loaded into GL directly, so tiles
+ * can be captured in the same frame they're rendered in and several tiles can
+ * be rendered per frame (see {@link #getTilesPerFrame()}). The resulting image
  * size is numTiles the size of the current window size. The individual
- * slices/tiles are stitched together in a large offscreen buffer. The maximum
- * image size depends on the available RAM and it's the user's responsibility to
- * ensure enough memory is available.
+ * slices/tiles are written straight into a memory mapped output file for
+ * uncompressed formats (TGA, RAW), so the image size is only limited by disk
+ * space. All other formats are stitched together in a large offscreen buffer
+ * and their maximum image size depends on the available RAM.
  * 
  * @author Karsten Schmidt (2008)
  * @author Marius Watz (2007)
  */
 public class Tiler {
 
+    protected static final Logger logger =
+            Logger.getLogger(Tiler.class.getName());
+
     protected PGraphics3D gfx;
+    protected GL gl;
     protected PImage buffer;
+    protected TileWriter writer;
     protected Vec2D[] tileOffsets;
 
     protected double normTileSize;
@@ -51,9 +67,11 @@ public class Tiler {
     protected int numTiles;
 
     protected int tileID;
-    protected float subTileID;
+    protected int tilesPerFrame = 1;
+    protected PMatrix3D prevProjection;
 
     protected boolean isTiling;
+    protected boolean isFrustumApplied;
     protected String fileName;
     protected String format;
     protected double cameraFOV;
@@ -68,15 +86,21 @@ public class Tiler {
     public double right;
     protected Vec2D tileSize;
 
+    protected ExecutorService compressor;
+
     public Tiler(PGraphics3D g, int n) {
         gfx = g;
         numTiles = n;
+        if (g instanceof PGraphicsOpenGL) {
+            gl = ((PGraphicsOpenGL) g).gl;
+        }
     }
 
     protected void chooseTile(int id) {
         Vec2D o = tileOffsets[id];
         gfx.frustum(o.x, o.x + tileSize.x, o.y, o.y + tileSize.y,
                 (float) cameraNear, (float) cameraFar);
+        loadProjection();
     }
 
     /**
@@ -114,6 +138,21 @@ public class Tiler {
         }
     }
 
+    protected File getFile(int width, int height) {
+        return new File(fileName + "_" + width + "x" + height + "." + format);
+    }
+
+    /**
+     * Returns the max. number of tiles the main application should render
+     * (each wrapped in calls to {@link #pre()} and {@link #post()}) during a
+     * single frame. Always 1, if not using OpenGL.
+     * 
+     * @return number of tiles per frame
+     */
+    public int getTilesPerFrame() {
+        return gl != null ? tilesPerFrame : 1;
+    }
+
     /**
      * Returns the state of the export.
      * 
@@ -123,25 +162,53 @@ public class Tiler {
         return isTiling;
     }
 
+    /**
+     * Copies Processing's current projection matrix into GL. Processing only
+     * does this in beginDraw(), so without it a new frustum would only take
+     * effect in the next frame.
+     */
+    protected void loadProjection() {
+        if (gl != null) {
+            PMatrix3D p = gfx.projection;
+            float[] m =
+                    new float[] { p.m00, p.m10, p.m20, p.m30, p.m01, p.m11,
+                            p.m21, p.m31, p.m02, p.m12, p.m22, p.m32, p.m03,
+                            p.m13, p.m23, p.m33 };
+            gl.glMatrixMode(GL.GL_PROJECTION);
+            gl.glLoadMatrixf(m, 0);
+            gl.glMatrixMode(GL.GL_MODELVIEW);
+        }
+    }
+
     /**
      * Post-processes the current frame. This method needs to be called at the
-     * end of each rendering loop.
+     * end of each rendering loop. With OpenGL, the current tile is captured
+     * immediately, else only in the following frame (once the tile's frustum
+     * has been applied).
      */
     public void post() {
         if (isTiling) {
-            subTileID++;
-            if (subTileID == 2) {
-                int x = tileID % numTiles;
-                int y = tileID / numTiles;
-                gfx.loadPixels();
+            if (gl == null && !isFrustumApplied) {
+                isFrustumApplied = true;
+                return;
+            }
+            int x = tileID % numTiles;
+            int y = tileID / numTiles;
+            gfx.loadPixels();
+            boolean isLast = tileID == tileOffsets.length - 1;
+            if (writer != null) {
+                writeTile(x, y, isLast);
+            } else {
                 buffer.set(x * gfx.width, y * gfx.height, gfx);
-                if (tileID == tileOffsets.length - 1) {
-                    buffer.save(fileName + "_" + buffer.width + "x"
-                            + buffer.height + "." + format);
+                if (isLast) {
+                    saveBuffer();
                     buffer = null;
                 }
-                subTileID = 0;
-                isTiling = (++tileID < tileOffsets.length);
+            }
+            isFrustumApplied = false;
+            isTiling = (++tileID < tileOffsets.length) && isTiling;
+            if (!isTiling) {
+                restoreProjection();
             }
         }
     }
@@ -149,14 +216,28 @@ public class Tiler {
     /**
      * If tiling is currently active, this method initializes the custom
      * perspective transformations. Needs to be called at the very beginning of
-     * each render loop.
+     * each render loop (or tile).
      */
     public void pre() {
         if (isTiling) {
+            if (prevProjection == null) {
+                prevProjection = gfx.projection.get();
+            }
             chooseTile(tileID);
         }
     }
 
+    /**
+     * Restores the projection matrix active before the first tile.
+     */
+    protected void restoreProjection() {
+        if (prevProjection != null) {
+            gfx.projection.set(prevProjection);
+            loadProjection();
+            prevProjection = null;
+        }
+    }
+
     /**
      * Starts tiling process. User needs to ensure that
      * {@link #initTiles(float, float, float)} has been called at least once
@@ -171,12 +252,100 @@ public class Tiler {
      */
     public void save(String path, String baseName, String format) {
         isTiling = false;
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignore) {
+            }
+            writer = null;
+        }
         (new File(path)).mkdirs();
         this.fileName = path + "/" + baseName;
         this.format = format;
-        buffer = new PImage(gfx.width * numTiles, gfx.height * numTiles);
+        int w = gfx.width * numTiles;
+        int h = gfx.height * numTiles;
+        RawEncoder encoder = ImageEncoders.createStreaming(format);
+        int maxSize = TileWriter.MAX_TGA_SIZE;
+        if (encoder instanceof TGAEncoder && (w > maxSize || h > maxSize)) {
+            logger.warning("image too large for TGA, using raw format");
+            encoder = new RawEncoder();
+            this.format = "raw";
+        }
+        if (encoder != null) {
+            File file = getFile(w, h);
+            try {
+                writer = new TileWriter(encoder, file, gfx.width, gfx.height,
+                        numTiles);
+            } catch (IOException e) {
+                logger.warning("couldn't create tiled image: " + file + " "
+                        + e);
+                return;
+            }
+        } else {
+            buffer = new PImage(w, h);
+        }
         tileID = 0;
-        subTileID = 0;
+        isFrustumApplied = false;
         isTiling = true;
     }
+
+    /**
+     * Encodes the assembled image using the {@link ImageEncoder} for the
+     * chosen format.
+     */
+    protected void saveBuffer() {
+        File file = getFile(buffer.width, buffer.height);
+        try {
+            ImageEncoders.create(format, compressor).encode(buffer.pixels,
+                    buffer.width, buffer.height, file);
+            logger.info("saved tiled image: " + file);
+        } catch (IOException e) {
+            logger.warning("couldn't save tiled image: " + file + " " + e);
+        }
+    }
+
+    /**
+     * Sets the thread pool used to compress the final image (if supported by
+     * the export format).
+     * 
+     * @param compressor
+     *            thread pool or null
+     */
+    public void setCompressor(ExecutorService compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Sets the max. number of tiles rendered per frame (OpenGL only).
+     * 
+     * @param num
+     *            number of tiles
+     * @see #getTilesPerFrame()
+     */
+    public void setTilesPerFrame(int num) {
+        tilesPerFrame = Math.max(num, 1);
+    }
+
+    /**
+     * Streams the current tile into the output file and closes it after the
+     * last tile. Aborts the export on error.
+     */
+    protected void writeTile(int x, int y, boolean isLast) {
+        try {
+            writer.writeTile(gfx.pixels, x, y);
+            if (isLast) {
+                writer.close();
+                logger.info("saved tiled image: " + writer.getFile());
+                writer = null;
+            }
+        } catch (IOException e) {
+            logger.warning("couldn't write tile " + tileID + ": " + e);
+            try {
+                writer.close();
+            } catch (IOException ignore) {
+            }
+            writer = null;
+            isTiling = false;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,119 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import onedotzero.text.MessageFormatter;
+import onedotzero.type.Alphabet;
+import toxi.geom.Vec3D;
+import toxi.util.datatypes.TypedProperties;
+
+/**
+ * Arranges the lines of messages in space (centred around the origin), shared
+ * by the interactive app and the {@link onedotzero.OfflineRenderer}.
+ */
+public class MessageLayout {
+
+    /**
+     * Creates the lines of the default message defined in app.properties. This
+     * message has more properties than normal user submitted messages in order
+     * to gain more freedom for layouts when running the app in identity
+     * generator mode/asset creation.
+     * 
+     * @param config
+     *            app config
+     * @param alphabet
+     * @return message lines
+     */
+    public static List<MessageLine> getDefaultLines(TypedProperties config,
+            Alphabet alphabet) {
+        ArrayList<MessageLine> lines = new ArrayList<MessageLine>();
+        String logoText =
+                config.getProperty("defaults.message.line0", "onedotzero");
+        float subtitleScale =
+                config.getFloat("defaults.message.subtitle.scale", 0.5f);
+        float subtitleLeading = config.getFloat("message.leading", 160);
+        int numSubtitles = config.getInt("defaults.message.lines.count", 1);
+        boolean hasSubtitles = numSubtitles > 1;
+        float totalHeight;
+        if (hasSubtitles) {
+            totalHeight =
+                    subtitleLeading + numSubtitles * subtitleLeading
+                            * subtitleScale;
+        } else {
+            totalHeight = alphabet.baseHeight;
+        }
+        Vec3D offset =
+                new Vec3D(-alphabet.getWidthForString(logoText) / 2, 0,
+                        -totalHeight / 2);
+        lines.add(new MessageLine(logoText, offset.copy(), 1));
+        if (hasSubtitles) {
+            offset.addSelf(config.getInt("defaults.message.subtitle.offset.x",
+                    0), 0, config.getInt("defaults.message.subtitle.offset.z",
+                    160));
+            for (int i = 1; i < numSubtitles; i++) {
+                String line =
+                        config.getProperty("defaults.message.line" + i, "");
+                lines.add(new MessageLine(line, offset.copy(), subtitleScale));
+                offset.z += subtitleLeading * subtitleScale;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Word wraps the given message and splits it into chunks of max. the given
+     * number of lines, each to be displayed as separate message.
+     * 
+     * @param message
+     * @param formatter
+     *            word wrapper
+     * @param alphabet
+     * @param maxLines
+     *            max. number of lines per chunk
+     * @param leading
+     *            line spacing
+     * @return list of chunks
+     */
+    public static List<List<MessageLine>> split(String message,
+            MessageFormatter formatter, Alphabet alphabet, int maxLines,
+            float leading) {
+        List<List<MessageLine>> parts = new ArrayList<List<MessageLine>>();
+        List<String> lines = formatter.format(message);
+        int numLines = Math.min(maxLines, lines.size());
+        float totalHeight = numLines * leading;
+        while (numLines > 0) {
+            ArrayList<MessageLine> msgPart =
+                    new ArrayList<MessageLine>(maxLines);
+            Vec3D offset = new Vec3D(0, 0, -totalHeight / 2);
+            for (int i = 0; i < numLines; i++) {
+                String line = lines.remove(0);
+                offset.x = -alphabet.getWidthForString(line) / 2;
+                msgPart.add(new MessageLine(line, offset.copy(), 1));
+                offset.z += leading;
+            }
+            numLines = lines.size();
+            parts.add(msgPart);
+        }
+        return parts;
+    }
+}
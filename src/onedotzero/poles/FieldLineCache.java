@@ -0,0 +1,289 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.poles;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import toxi.geom.AABB;
+import toxi.geom.Vec3D;
+
+/**
+ * <p>
+ * LRU cache of traced field lines. Field lines only depend on their start
+ * pole, start direction and the set of poles eligible at the time of tracing
+ * (i.e. poles below their max. hit count). Entries are therefore keyed by the
+ * start pole, the start direction quantized to a configurable resolution and
+ * the set of eligible poles of the {@link PoleOctree} used.
+ * </p>
+ * 
+ * <p>
+ * Missing field lines are traced using the exact start direction, so a cold
+ * cache produces the same results as tracing without a cache. A cache hit
+ * however returns the line traced for the first direction which fell into the
+ * same quantization cell, i.e. the cache trades accuracy for speed: the
+ * geometry of ribbons differs slightly (depending on the direction resolution)
+ * from an uncached run. It's therefore disabled by default (see
+ * defaults.poles.fieldcache.size). The cache is owned by the
+ * {@link PoleManager} and cleared along with all pole sets. All methods are
+ * thread safe, the actual tracing of missing entries is done outside the lock.
+ * </p>
+ */
+public class FieldLineCache {
+
+    /**
+     * Cache key: start pole, quantized direction & eligible pole set.
+     */
+    protected static final class Key {
+
+        protected final ParticlePole3D start;
+        protected final int qx, qy, qz;
+        protected final long[] eligible;
+        protected final int hash;
+
+        protected Key(ParticlePole3D start, int qx, int qy, int qz,
+                long[] eligible) {
+            this.start = start;
+            this.qx = qx;
+            this.qy = qy;
+            this.qz = qz;
+            this.eligible = eligible;
+            int h = System.identityHashCode(start);
+            h = h * 31 + qx;
+            h = h * 31 + qy;
+            h = h * 31 + qz;
+            this.hash = h * 31 + Arrays.hashCode(eligible);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return start == k.start && qx == k.qx && qy == k.qy && qz == k.qz
+                    && Arrays.equals(eligible, k.eligible);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Cached trace result.
+     */
+    protected static final class FieldLine {
+
+        protected final ParticlePole3D target;
+        protected final float[] coords;
+        protected final int numVertices;
+        protected final float dx, dy, dz;
+
+        protected FieldLine(ParticlePole3D target, FieldLinePath path,
+                Vec3D dir) {
+            this.target = target;
+            this.coords = path.toArray();
+            this.numVertices = path.getNumVertices();
+            this.dx = dir.x;
+            this.dy = dir.y;
+            this.dz = dir.z;
+        }
+    }
+
+    protected final LinkedHashMap<Key, FieldLine> entries;
+    protected final int capacity;
+    protected final int dirResolution;
+
+    protected PoleOctree index;
+    protected long hits;
+    protected long misses;
+
+    /**
+     * Creates a new cache.
+     * 
+     * @param capacity
+     *            max. number of field lines to keep (0 = disabled)
+     * @param dirResolution
+     *            number of quantization steps per unit for each component of
+     *            the normalized start direction
+     */
+    public FieldLineCache(final int capacity, int dirResolution) {
+        this.capacity = capacity;
+        this.dirResolution = Math.max(dirResolution, 1);
+        this.entries = new LinkedHashMap<Key, FieldLine>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, FieldLine> e) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Removes all cached field lines. Hit/miss counters are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        index = null;
+    }
+
+    /**
+     * @return max. number of entries
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return ratio of hits to the total number of lookups
+     */
+    public synchronized float getHitRate() {
+        long total = hits + misses;
+        return total > 0 ? (float) hits / total : 0;
+    }
+
+    /**
+     * @return number of cache hits since creation or last
+     *         {@link #resetStats()}
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of cache misses since creation or last
+     *         {@link #resetStats()}
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return current number of cached field lines
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Resets hit & miss counters.
+     */
+    public synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "field lines: " + entries.size() + "/" + capacity + " hits: "
+                + hits + " misses: " + misses + " rate: " + getHitRate();
+    }
+
+    /**
+     * Looks up the field line for the given configuration or traces and caches
+     * it, if not present. Like {@link FieldLineIntegrator#trace}, the result
+     * path is stored in the integrator's {@link FieldLinePath} and the
+     * direction vector is updated with the last field direction.
+     * 
+     * @param integrator
+     *            integrator to use for tracing & to store results
+     * @param start
+     *            start pole
+     * @param index
+     *            spatial index of all poles in the EMF
+     * @param dir
+     *            initial field line direction
+     * @param step
+     *            step length (defines field line resolution)
+     * @param bounds
+     *            world space bounds
+     * @param maxHitCount
+     *            max. hit count limit for poles to be considered
+     * @return target pole or null
+     */
+    public ParticlePole3D trace(FieldLineIntegrator integrator,
+            ParticlePole3D start, PoleOctree index, Vec3D dir, float step,
+            AABB bounds, int maxHitCount) {
+        if (capacity <= 0) {
+            return integrator.trace(start, index, dir, step, bounds,
+                    maxHitCount);
+        }
+        float mag = dir.magnitude();
+        if (mag > 0) {
+            mag = dirResolution / mag;
+        }
+        int qx = Math.round(dir.x * mag);
+        int qy = Math.round(dir.y * mag);
+        int qz = Math.round(dir.z * mag);
+        Key key =
+                new Key(start, qx, qy, qz, getEligible(index.getPoles(), start,
+                        maxHitCount));
+        FieldLine line;
+        synchronized (this) {
+            if (index != this.index) {
+                entries.clear();
+                this.index = index;
+            }
+            line = entries.get(key);
+            if (line != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+        if (line != null) {
+            integrator.getPath().set(line.coords, line.numVertices);
+            dir.set(line.dx, line.dy, line.dz);
+            return line.target;
+        }
+        ParticlePole3D target =
+                integrator.trace(start, index, dir, step, bounds, maxHitCount);
+        line = new FieldLine(target, integrator.getPath(), dir);
+        synchronized (this) {
+            if (index == this.index) {
+                entries.put(key, line);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Creates a bit set of all poles eligible for a field line from the given
+     * start pole.
+     */
+    private long[] getEligible(List<ParticlePole3D> poles,
+            ParticlePole3D start, int maxHitCount) {
+        int num = poles.size();
+        long[] bits = new long[(num + 63) >> 6];
+        for (int i = 0; i < num; i++) {
+            ParticlePole3D p = poles.get(i);
+            if (p.getHitCount() < maxHitCount && p != start) {
+                bits[i >> 6] |= 1L << (i & 63);
+            }
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.poles;
+
+import java.util.List;
+
+import toxi.geom.AABB;
+import toxi.geom.Vec3D;
+
+/**
+ * <p>
+ * Allocation free field line integrator. Implements the same tracing algorithm
+ * as {@link ParticlePole3D#computeFieldLine(List, Vec3D, float, AABB, int)},
+ * but works on primitive scratch variables and writes the traced path into a
+ * reusable {@link FieldLinePath} buffer instead of creating new {@link Vec3D}
+ * instances for each step and pole.
+ * </p>
+ * 
+ * <p>
+ * Instances are not thread safe, use {@link #getInstance()} to obtain the
+ * integrator bound to the current thread.
+ * </p>
+ */
+public class FieldLineIntegrator {
+
+    private static final ThreadLocal<FieldLineIntegrator> INSTANCES =
+            new ThreadLocal<FieldLineIntegrator>() {
+
+                @Override
+                protected FieldLineIntegrator initialValue() {
+                    return new FieldLineIntegrator();
+                }
+            };
+
+    /**
+     * Returns the integrator instance for the current thread.
+     * 
+     * @return integrator
+     */
+    public static FieldLineIntegrator getInstance() {
+        return INSTANCES.get();
+    }
+
+    protected final FieldLinePath path = new FieldLinePath();
+    protected final float[] field = new float[3];
+
+    protected PoleOctree index;
+    protected PoleOctree.FieldState state;
+
+    /**
+     * @return path of the last traced field line
+     */
+    public FieldLinePath getPath() {
+        return path;
+    }
+
+    /**
+     * Core integration loop shared by both trace methods. Exactly one of poles
+     * or index is used.
+     */
+    private ParticlePole3D integrate(ParticlePole3D start,
+            List<ParticlePole3D> poles, PoleOctree index, Vec3D dir,
+            float step, AABB bounds, int maxHitCount) {
+        final float minX = bounds.minX(), maxX = bounds.maxX();
+        final float minY = bounds.minY(), maxY = bounds.maxY();
+        final float minZ = bounds.minZ(), maxZ = bounds.maxZ();
+        final float sx = start.x, sy = start.y, sz = start.z;
+        final float charge = start.charge;
+        final float[] field = this.field;
+        float x = sx + dir.x * ParticlePole3D.RADIUS;
+        float y = sy + dir.y * ParticlePole3D.RADIUS;
+        float z = sz + dir.z * ParticlePole3D.RADIUS;
+        int iter = 0;
+        boolean isTracing = true;
+        path.clear();
+        path.add(sx, sy, sz);
+        step *= Math.signum(charge);
+        ParticlePole3D target = null;
+        while (isTracing && ++iter < ParticlePole3D.MAX_ITERATIONS) {
+            float dx = x - sx;
+            float dy = y - sy;
+            float dz = z - sz;
+            float s = charge / (dx * dx + dy * dy + dz * dz);
+            field[0] = dx * s;
+            field[1] = dy * s;
+            field[2] = dz * s;
+            if (index != null) {
+                int captureID = index.evaluate(state, x, y, z, field);
+                if (captureID != -1) {
+                    target = index.getPole(captureID);
+                }
+            } else {
+                for (int i = 0, num = poles.size(); i < num; i++) {
+                    ParticlePole3D p = poles.get(i);
+                    if (p.getHitCount() < maxHitCount && p != start) {
+                        dx = x - p.x;
+                        dy = y - p.y;
+                        dz = z - p.z;
+                        float mag = dx * dx + dy * dy + dz * dz;
+                        if (mag < ParticlePole3D.EVENT_HORIZON) {
+                            target = p;
+                            break;
+                        }
+                        s = p.charge / mag;
+                        field[0] += dx * s;
+                        field[1] += dy * s;
+                        field[2] += dz * s;
+                    }
+                }
+            }
+            if (target == null) {
+                path.add(x, y, z);
+                // same as Vec3D.normalizeTo(step)
+                float mag =
+                        (float) Math.sqrt(field[0] * field[0] + field[1]
+                                * field[1] + field[2] * field[2]);
+                if (mag > 0) {
+                    mag = 1f / mag;
+                    field[0] *= mag;
+                    field[1] *= mag;
+                    field[2] *= mag;
+                }
+                field[0] *= step;
+                field[1] *= step;
+                field[2] *= step;
+                x += field[0];
+                y += field[1];
+                z += field[2];
+                isTracing =
+                        !(x < minX || x > maxX || y < minY || y > maxY
+                                || z < minZ || z > maxZ);
+            } else {
+                isTracing = false;
+                path.add(target.x, target.y, target.z);
+            }
+        }
+        dir.set(field[0], field[1], field[2]);
+        return target;
+    }
+
+    /**
+     * Traces a field line from the given start pole through the poles of the
+     * given list (brute force). The resulting path can be retrieved via
+     * {@link #getPath()}. Like the original implementation, the direction
+     * vector is updated with the last field direction computed.
+     * 
+     * @param start
+     *            start pole
+     * @param poles
+     *            list of poles in the EMF
+     * @param dir
+     *            initial field line direction
+     * @param step
+     *            step length (defines field line resolution)
+     * @param bounds
+     *            world space bounds
+     * @param maxHitCount
+     *            max. hit count limit for poles to be considered
+     * @return target pole or null
+     */
+    public ParticlePole3D trace(ParticlePole3D start,
+            List<ParticlePole3D> poles, Vec3D dir, float step, AABB bounds,
+            int maxHitCount) {
+        return integrate(start, poles, null, dir, step, bounds, maxHitCount);
+    }
+
+    /**
+     * Traces a field line from the given start pole using the given spatial
+     * pole index. The resulting path can be retrieved via {@link #getPath()}.
+     * Like the original implementation, the direction vector is updated with
+     * the last field direction computed.
+     * 
+     * @param start
+     *            start pole
+     * @param index
+     *            spatial index of all poles in the EMF
+     * @param dir
+     *            initial field line direction
+     * @param step
+     *            step length (defines field line resolution)
+     * @param bounds
+     *            world space bounds
+     * @param maxHitCount
+     *            max. hit count limit for poles to be considered
+     * @return target pole or null
+     */
+    public ParticlePole3D trace(ParticlePole3D start, PoleOctree index,
+            Vec3D dir, float step, AABB bounds, int maxHitCount) {
+        if (index != this.index) {
+            this.index = index;
+            state = index.createState();
+        }
+        index.aggregate(state, maxHitCount, start);
+        return integrate(start, null, index, dir, step, bounds, maxHitCount);
+    }
+}
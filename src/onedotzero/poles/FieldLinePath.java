@@ -0,0 +1,146 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.poles;
+
+import java.util.Arrays;
+import java.util.List;
+
+import toxi.geom.Vec3D;
+
+/**
+ * Reusable, primitive vertex buffer for a single field line as traced by the
+ * {@link FieldLineIntegrator}. Vertices are stored as interleaved XYZ float
+ * triplets. The buffer only grows, so once sized it can be cleared and refilled
+ * without any further allocations.
+ */
+public class FieldLinePath {
+
+    protected float[] coords;
+    protected int numVertices;
+
+    /**
+     * Creates a new path with a capacity large enough for the max. number of
+     * vertices produced by a single field line.
+     */
+    public FieldLinePath() {
+        this(ParticlePole3D.MAX_ITERATIONS + 1);
+    }
+
+    /**
+     * Creates a new path with the given initial vertex capacity.
+     * 
+     * @param capacity
+     */
+    public FieldLinePath(int capacity) {
+        coords = new float[Math.max(capacity, 1) * 3];
+    }
+
+    /**
+     * Appends a new vertex to the path.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void add(float x, float y, float z) {
+        int idx = numVertices * 3;
+        if (idx == coords.length) {
+            coords = Arrays.copyOf(coords, coords.length * 2);
+        }
+        coords[idx] = x;
+        coords[idx + 1] = y;
+        coords[idx + 2] = z;
+        numVertices++;
+    }
+
+    /**
+     * Converts all path vertices into {@link Vec3D}s and adds them (in path
+     * order) to the given list.
+     * 
+     * @param list
+     *            target list
+     */
+    public void addVerticesTo(List<Vec3D> list) {
+        for (int i = 0; i < numVertices; i++) {
+            list.add(getVertex(i));
+        }
+    }
+
+    /**
+     * Removes all vertices (keeps allocated buffer).
+     */
+    public void clear() {
+        numVertices = 0;
+    }
+
+    /**
+     * Replaces the contents of this path with the given coordinates.
+     * 
+     * @param src
+     *            source coordinates (XYZ triplets)
+     * @param num
+     *            number of vertices to copy
+     */
+    public void set(float[] src, int num) {
+        if (coords.length < num * 3) {
+            coords = new float[num * 3];
+        }
+        System.arraycopy(src, 0, coords, 0, num * 3);
+        numVertices = num;
+    }
+
+    /**
+     * Returns a copy of all valid path coordinates.
+     * 
+     * @return coordinate array
+     */
+    public float[] toArray() {
+        return Arrays.copyOf(coords, numVertices * 3);
+    }
+
+    /**
+     * Returns the underlying coordinate buffer. Only the first
+     * {@link #getNumVertices()} * 3 values are valid.
+     * 
+     * @return coordinate array
+     */
+    public float[] getCoords() {
+        return coords;
+    }
+
+    /**
+     * @return number of vertices in the path
+     */
+    public int getNumVertices() {
+        return numVertices;
+    }
+
+    /**
+     * Returns the vertex at the given index as new {@link Vec3D}.
+     * 
+     * @param i
+     *            vertex index
+     * @return vertex
+     */
+    public Vec3D getVertex(int i) {
+        i *= 3;
+        return new Vec3D(coords[i], coords[i + 1], coords[i + 2]);
+    }
+}
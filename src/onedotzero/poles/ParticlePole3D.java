@@ -21,7 +21,9 @@ package onedotzero.poles;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
+import onedotzero.SimClock;
 import toxi.geom.AABB;
 import toxi.geom.Vec2D;
 import toxi.geom.Vec3D;
@@ -38,15 +40,24 @@ public class ParticlePole3D extends Vec3D {
     public static final float RADIUS = 10;
     public static final float EVENT_HORIZON = (RADIUS * 0.9f) * (RADIUS * 0.9f);
 
+    private static final AtomicIntegerFieldUpdater<ParticlePole3D> HIT_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(ParticlePole3D.class,
+                    "hitCount");
+
     public final List<Vec3D> vertices = new ArrayList<Vec3D>();
 
     public final Vec2D pos2D;
 
     public final float charge;
-    public int hitCount;
-    public long lastHit;
+    private volatile int hitCount;
+    private volatile long lastHit;
+
+    protected PoleUsageIndex usageIndex;
+    protected int usageSlot;
 
-    private float sign;
+    protected int id = -1;
+    protected PoleManager.PoleClass poleClass = PoleManager.PoleClass.UNKNOWN;
+    protected int groupIndex = -1;
 
     /**
      * Constructs a new pole at the given position & charge
@@ -58,7 +69,6 @@ public class ParticlePole3D extends Vec3D {
         super(pos);
         this.pos2D = to2DXZ().normalize();
         this.charge = charge;
-        this.sign = Math.signum(charge);
     }
 
     /**
@@ -72,6 +82,9 @@ public class ParticlePole3D extends Vec3D {
      * method returns the target pole found and stores all intermediate vertices
      * of the field line in the public {@link #vertices} list.
      * 
+     * This method is only a thin adapter for {@link FieldLineIntegrator}, which
+     * should be used directly in performance critical code.
+     * 
      * @param poles
      *            list of poles in the EMF
      * @param dir
@@ -86,36 +99,41 @@ public class ParticlePole3D extends Vec3D {
      */
     public ParticlePole3D computeFieldLine(final List<ParticlePole3D> poles,
             final Vec3D dir, float step, AABB bounds, final int maxHitCount) {
-        Vec3D pos = add(dir.scale(RADIUS));
-        int iter = 0;
-        boolean isTracing = true;
+        FieldLineIntegrator integrator = FieldLineIntegrator.getInstance();
+        ParticlePole3D target =
+                integrator.trace(this, poles, dir, step, bounds, maxHitCount);
         vertices.clear();
-        vertices.add(copy());
-        step *= sign;
-        ParticlePole3D target = null;
-        while (isTracing && ++iter < MAX_ITERATIONS) {
-            Vec3D dd = pos.sub(this);
-            dir.set(dd.scaleSelf(charge / dd.magSquared()));
-            for (ParticlePole3D p : poles) {
-                if (p.hitCount < maxHitCount && p != this) {
-                    Vec3D d = pos.sub(p);
-                    float mag = d.magSquared();
-                    if (mag < EVENT_HORIZON) {
-                        isTracing = false;
-                        target = p;
-                        break;
-                    }
-                    dir.addSelf(d.scaleSelf(p.charge / mag));
-                }
-            }
-            if (isTracing) {
-                vertices.add(pos.copy());
-                pos.addSelf(dir.normalizeTo(step));
-                isTracing = pos.isInAABB(bounds);
-            } else if (target != null && target != this) {
-                vertices.add(target.copy());
-            }
-        }
+        integrator.getPath().addVerticesTo(vertices);
+        return target;
+    }
+
+    /**
+     * Same as
+     * {@link #computeFieldLine(List, Vec3D, float, AABB, int)}, but uses the
+     * given {@link PoleOctree} to only test nearby poles for captures and,
+     * depending on the index' accuracy setting, approximates the influence of
+     * distant pole clusters. With an accuracy of 0 the traced path is identical
+     * to the one produced by the brute force version.
+     * 
+     * @param index
+     *            spatial index of all poles in the EMF
+     * @param dir
+     *            initial field line direction
+     * @param step
+     *            step length (defines field line resolution)
+     * @param bounds
+     *            world space bounds
+     * @param maxHitCount
+     *            max. hit count limit for poles to be considered
+     * @return target pole or null
+     */
+    public ParticlePole3D computeFieldLine(final PoleOctree index,
+            final Vec3D dir, float step, AABB bounds, final int maxHitCount) {
+        FieldLineIntegrator integrator = FieldLineIntegrator.getInstance();
+        ParticlePole3D target =
+                integrator.trace(this, index, dir, step, bounds, maxHitCount);
+        vertices.clear();
+        integrator.getPath().addVerticesTo(vertices);
         return target;
     }
 
@@ -140,10 +158,131 @@ public class ParticlePole3D extends Vec3D {
     }
 
     /**
-     * Increases this pole's hit count and updates time stamp of last hit.
+     * Returns the index of this pole within its group, i.e. the external pole
+     * list or the inner/outer pole list of its letter.
+     * 
+     * @return group index or -1, if not registered with a {@link PoleManager}
+     */
+    public int getGroupIndex() {
+        return groupIndex;
+    }
+
+    /**
+     * Returns the number of ribbons currently using this pole.
+     * 
+     * @return hit count
+     */
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the dense ID assigned by the {@link PoleManager}. IDs start at 0
+     * for each new pole constellation.
+     * 
+     * @return pole ID or -1, if not registered
+     */
+    public int getID() {
+        return id;
+    }
+
+    /**
+     * Returns the time stamp (in nanoseconds) of the last ribbon reserving this
+     * pole.
+     * 
+     * @return time stamp or 0, if not yet used
+     */
+    public long getLastHit() {
+        return lastHit;
+    }
+
+    /**
+     * @return pole class as assigned by the {@link PoleManager}
+     */
+    public PoleManager.PoleClass getPoleClass() {
+        return poleClass;
+    }
+
+    /**
+     * Decreases this pole's hit count (if greater than zero).
+     */
+    public void release() {
+        int count;
+        do {
+            count = hitCount;
+            if (count == 0) {
+                return;
+            }
+        } while (!HIT_COUNT.compareAndSet(this, count, count - 1));
+        updateUsageIndex();
+    }
+
+    /**
+     * Decreases this pole's hit count by the given amount (but not below
+     * zero) and updates the usage index only once. Used by
+     * {@link PoleReleaseBatch}.
+     * 
+     * @param num
+     *            number of hits to release
+     */
+    public void release(int num) {
+        int count;
+        do {
+            count = hitCount;
+            if (count == 0 || num <= 0) {
+                return;
+            }
+        } while (!HIT_COUNT.compareAndSet(this, count, Math.max(count - num,
+                0)));
+        updateUsageIndex();
+    }
+
+    /**
+     * Attempts to increase this pole's hit count, but only if the current
+     * count is below the given limit. The check and update are done atomically,
+     * so concurrent callers can never push the hit count beyond the limit. If
+     * successful, the time stamp of the last hit is updated too.
+     * 
+     * @param maxHitCount
+     *            hit count limit
+     * @return true, if successful
+     */
+    public boolean reserve(int maxHitCount) {
+        int count;
+        do {
+            count = hitCount;
+            if (count >= maxHitCount) {
+                return false;
+            }
+        } while (!HIT_COUNT.compareAndSet(this, count, count + 1));
+        lastHit = SimClock.nanoTime();
+        updateUsageIndex();
+        return true;
+    }
+
+    /**
+     * Resets hit count and time stamp of last hit. Should only be used if the
+     * pole isn't used by any ribbon builds in progress.
+     */
+    public void resetHitCount() {
+        hitCount = 0;
+        lastHit = 0;
+        updateUsageIndex();
+    }
+
+    /**
+     * Unconditionally increases this pole's hit count and updates time stamp
+     * of last hit.
      */
     public void updateHitCount() {
-        hitCount++;
-        lastHit = System.nanoTime();
+        HIT_COUNT.incrementAndGet(this);
+        lastHit = SimClock.nanoTime();
+        updateUsageIndex();
+    }
+
+    private void updateUsageIndex() {
+        if (usageIndex != null) {
+            usageIndex.update(usageSlot);
+        }
     }
 }
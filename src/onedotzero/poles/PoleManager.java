@@ -20,8 +20,8 @@
 package onedotzero.poles;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.logging.Logger;
 
 import onedotzero.poles.strategies.PolePositionStrategy;
 import onedotzero.type.Alphabet;
@@ -46,46 +46,8 @@ public class PoleManager {
 
     public static final float MAX_CHARGE = 20;
 
-    /**
-     * Returns a new filtered list of poles with a hitcount less than the given
-     * limit.
-     * 
-     * @param poles
-     *            pole list to filter
-     * @param maxHitCount
-     * @return filtered list
-     */
-    public static List<ParticlePole3D> getFiltered(List<ParticlePole3D> poles,
-            int maxHitCount) {
-        ArrayList<ParticlePole3D> filtered =
-                new ArrayList<ParticlePole3D>(poles.size() / 2);
-        for (ParticlePole3D p : poles) {
-            if (p.hitCount < maxHitCount) {
-                filtered.add(p);
-            }
-        }
-        return filtered;
-    }
-
-    /**
-     * Returns the least used pole, i.e. the one which currently has the least
-     * number of ribbons assigned to it.
-     * 
-     * @param poles
-     *            list of poles
-     * @return pole
-     */
-    public static ParticlePole3D getLeastUsedPole(List<ParticlePole3D> poles) {
-        ParticlePole3D pole = null;
-        int usage = Integer.MAX_VALUE;
-        for (ParticlePole3D p : poles) {
-            if (p.hitCount < usage) {
-                pole = p;
-                usage = p.hitCount;
-            }
-        }
-        return pole;
-    }
+    protected static final Logger logger =
+            Logger.getLogger(PoleManager.class.getName());
 
     /**
      * Returns the pole nearest to the given point.
@@ -110,26 +72,6 @@ public class PoleManager {
         return pole;
     }
 
-    /**
-     * Returns the oldest pole, based on the timestamp of the last ribbon
-     * flowing through this pole.
-     * 
-     * @param poles
-     *            list of poles
-     * @return pole
-     */
-    public static ParticlePole3D getOldestPole(List<ParticlePole3D> poles) {
-        ParticlePole3D oldest = null;
-        long oldestTime = System.nanoTime();
-        for (ParticlePole3D p : poles) {
-            if (p.lastHit < oldestTime) {
-                oldest = p;
-                oldestTime = p.lastHit;
-            }
-        }
-        return oldest;
-    }
-
     /**
      * Class 1: External poles
      */
@@ -162,12 +104,27 @@ public class PoleManager {
      */
     public final AABB bounds;
 
-    protected final HashMap<ParticlePole3D, LetterPoleGroup> messagePoles =
-            new HashMap<ParticlePole3D, LetterPoleGroup>();
+    /**
+     * All registered poles, indexed by their ID
+     */
+    protected final List<ParticlePole3D> allPoles =
+            new ArrayList<ParticlePole3D>();
+
+    /**
+     * Letter group for each pole ID (null for external poles)
+     */
+    protected final List<LetterPoleGroup> poleLetters =
+            new ArrayList<LetterPoleGroup>();
+
+    protected final List<LetterPoleGroup> letters =
+            new ArrayList<LetterPoleGroup>();
     protected final Alphabet alphabet;
 
     protected final Vec3D centreExclusion;
+    protected PoleOctree c1index;
+    protected FieldLineCache fieldLineCache = new FieldLineCache(0, 1);
     private PolePositionStrategy positionStrategy;
+    private float fieldAccuracy;
     private int maxLetterHitCount;
     private int maxExternalPoleHitcount;
 
@@ -186,12 +143,17 @@ public class PoleManager {
     public void addExternalPoles(List<Vec3D> poles) {
         if (poles != null) {
             for (Vec3D p : poles) {
-                c1poles.add(new ParticlePole3D(p, -MAX_CHARGE * p.magnitude()
-                        / 200));
+                addExternalPole(new ParticlePole3D(p, -MAX_CHARGE
+                        * p.magnitude() / 200));
             }
         }
     }
 
+    private void addExternalPole(ParticlePole3D p) {
+        registerPole(p, PoleClass.C1, c1poles.size(), null);
+        c1poles.add(p);
+    }
+
     /**
      * Parses the given message and creates corresponding poles at requested
      * position and scale. If the message contains characters for which there's
@@ -235,21 +197,14 @@ public class PoleManager {
      * @return pole class type
      */
     public PoleClass classifyPole(ParticlePole3D currPole) {
-        PoleClass type = PoleClass.UNKNOWN;
-        if (currPole != null) {
-            if (c2poles.indexOf(currPole) != -1) {
-                type = PoleClass.C2;
-            } else if (c3poles.indexOf(currPole) != -1) {
-                type = PoleClass.C3;
-            } else if (c1poles.indexOf(currPole) != -1) {
-                type = PoleClass.C1;
-            }
+        if (isRegistered(currPole)) {
+            return currPole.getPoleClass();
         }
-        return type;
+        return PoleClass.UNKNOWN;
     }
 
     /**
-     * Clears all pole sets.
+     * Clears all pole sets and cached field lines.
      */
     public void clear() {
         c1poles.clear();
@@ -257,7 +212,14 @@ public class PoleManager {
         c13poles.clear();
         c2poles.clear();
         c3poles.clear();
-        messagePoles.clear();
+        allPoles.clear();
+        poleLetters.clear();
+        letters.clear();
+        c1index = null;
+        if (fieldLineCache.getSize() > 0) {
+            logger.info(fieldLineCache.toString());
+        }
+        fieldLineCache.clear();
     }
 
     /**
@@ -265,12 +227,10 @@ public class PoleManager {
      */
     public void clearHitCounts() {
         for (ParticlePole3D p : c12poles) {
-            p.hitCount = 0;
-            p.lastHit = 0;
+            p.resetHitCount();
         }
         for (ParticlePole3D p : c3poles) {
-            p.hitCount = 0;
-            p.lastHit = 0;
+            p.resetHitCount();
         }
     }
 
@@ -283,7 +243,7 @@ public class PoleManager {
     public LetterPoleGroup getLeastUsedLetter() {
         LetterPoleGroup lpg = null;
         float minUsage = Float.MAX_VALUE;
-        for (LetterPoleGroup g : messagePoles.values()) {
+        for (LetterPoleGroup g : letters) {
             float usage = g.computeTotalUsage(maxLetterHitCount);
             if (usage < minUsage) {
                 lpg = g;
@@ -303,7 +263,40 @@ public class PoleManager {
      * @return null, if pole is not part of any letter.
      */
     public LetterPoleGroup getLetterForPole(ParticlePole3D pole) {
-        return messagePoles.get(pole);
+        return isRegistered(pole) ? poleLetters.get(pole.getID()) : null;
+    }
+
+    /**
+     * @return number of poles registered for the current constellation
+     */
+    public int getNumPoles() {
+        return allPoles.size();
+    }
+
+    /**
+     * Returns the spatial index of all Class 1 poles, as created by the last
+     * call to {@link #processGroups()}.
+     * 
+     * @return index or null, if not yet processed
+     */
+    public PoleOctree getExternalPoleIndex() {
+        return c1index;
+    }
+
+    /**
+     * Returns the cache used for field lines towards external poles.
+     * 
+     * @return field line cache
+     */
+    public FieldLineCache getFieldLineCache() {
+        return fieldLineCache;
+    }
+
+    /**
+     * @return the Barnes-Hut accuracy used for field line computations
+     */
+    public float getFieldAccuracy() {
+        return fieldAccuracy;
     }
 
     /**
@@ -335,7 +328,7 @@ public class PoleManager {
             pos.scaleSelf(bounds.getExtent());
             ParticlePole3D p =
                     new ParticlePole3D(pos, -MAX_CHARGE * pos.magnitude() / 200);
-            c1poles.add(p);
+            addExternalPole(p);
         }
     }
 
@@ -356,18 +349,34 @@ public class PoleManager {
             ParticlePole3D p =
                     new ParticlePole3D(v.to3DXZ().scaleSelf(scale).addSelf(
                             offset), MAX_CHARGE);
+            registerPole(p, PoleClass.C2, lpg.outer.size(), lpg);
             c2poles.add(p);
             lpg.outer.add(p);
-            messagePoles.put(p, lpg);
         }
         for (Vec2D v : letter.inner.points) {
             ParticlePole3D p =
                     new ParticlePole3D(v.to3DXZ().scaleSelf(scale).addSelf(
                             offset), MAX_CHARGE);
+            registerPole(p, PoleClass.C3, lpg.inner.size(), lpg);
             c3poles.add(p);
             lpg.inner.add(p);
-            messagePoles.put(p, lpg);
         }
+        lpg.init(maxLetterHitCount);
+        letters.add(lpg);
+    }
+
+    /**
+     * Checks if the given pole is part of the current constellation.
+     * 
+     * @param p
+     * @return true, if registered
+     */
+    public boolean isRegistered(ParticlePole3D p) {
+        if (p != null) {
+            int id = p.getID();
+            return id >= 0 && id < allPoles.size() && allPoles.get(id) == p;
+        }
+        return false;
     }
 
     /**
@@ -381,6 +390,19 @@ public class PoleManager {
         c12poles.addAll(c2poles);
         c13poles.addAll(c1poles);
         c13poles.addAll(c3poles);
+        c1index = new PoleOctree(c1poles, fieldAccuracy);
+    }
+
+    /**
+     * Assigns the next dense ID, class and group index to the given pole.
+     */
+    private void registerPole(ParticlePole3D p, PoleClass type,
+            int groupIndex, LetterPoleGroup lpg) {
+        p.id = allPoles.size();
+        p.poleClass = type;
+        p.groupIndex = groupIndex;
+        allPoles.add(p);
+        poleLetters.add(lpg);
     }
 
     /**
@@ -414,6 +436,33 @@ public class PoleManager {
         centreExclusion.z = z;
     }
 
+    /**
+     * Sets the accuracy of the field approximation used for distant external
+     * poles (Barnes-Hut opening angle). A value of 0 (default) always computes
+     * the exact field. Values around 1.0 trade some precision for speed and
+     * only pay off with hundreds of custom poles (see FieldLineBenchmark in
+     * the tools source folder). The new setting only
+     * applies after the next call to {@link #processGroups()}.
+     * 
+     * @param accuracy
+     */
+    public void setFieldAccuracy(float accuracy) {
+        fieldAccuracy = accuracy;
+    }
+
+    /**
+     * Replaces the field line cache with a new one of the given size. A
+     * capacity of 0 disables caching.
+     * 
+     * @param capacity
+     *            max. number of cached field lines
+     * @param dirResolution
+     *            quantization steps per unit of start direction components
+     */
+    public void setFieldLineCache(int capacity, int dirResolution) {
+        fieldLineCache = new FieldLineCache(capacity, dirResolution);
+    }
+
     public void setMaxExternalPoleHitcount(int hc) {
         maxExternalPoleHitcount = hc;
     }
@@ -437,7 +486,7 @@ public class PoleManager {
      * {@link LetterPoleGroup}.
      */
     public void showLetterUsage() {
-        for (LetterPoleGroup g : messagePoles.values()) {
+        for (LetterPoleGroup g : letters) {
             g.computeTotalUsage(maxLetterHitCount);
             System.out.println(g);
         }
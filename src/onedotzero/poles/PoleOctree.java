@@ -0,0 +1,472 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.poles;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Static spatial index (octree) over a fixed list of {@link ParticlePole3D}s.
+ * The tree is built once per pole constellation (see
+ * {@link PoleManager#processGroups()}) and is used during the computation of
+ * field lines in {@link ParticlePole3D} to only test nearby poles for
+ * captures and to optionally approximate the field contribution of distant
+ * pole clusters (Barnes-Hut).
+ * </p>
+ * 
+ * <p>
+ * The tree itself is immutable and stored in flat arrays. Because the set of
+ * poles eligible for a field line changes with their hit counts, per trace
+ * aggregates (net charge, centre of charge) are kept in a separate
+ * {@link FieldState} which is recomputed once at the beginning of each trace.
+ * </p>
+ */
+public class PoleOctree {
+
+    /**
+     * Per trace node aggregates of all poles eligible for a single field line.
+     * Instances are not thread safe and should be reused by the same caller.
+     */
+    public static class FieldState {
+
+        protected final boolean[] isEligible;
+        protected final int[] count;
+        protected final float[] netCharge;
+        protected final float[] weight;
+        protected final float[] cx, cy, cz;
+        protected final int[] stack;
+
+        protected FieldState(int numNodes, int numPoles) {
+            isEligible = new boolean[numPoles];
+            count = new int[numNodes];
+            netCharge = new float[numNodes];
+            weight = new float[numNodes];
+            cx = new float[numNodes];
+            cy = new float[numNodes];
+            cz = new float[numNodes];
+            stack = new int[MAX_DEPTH * 8 + 1];
+        }
+    }
+
+    public static final int MAX_LEAF_SIZE = 8;
+    public static final int MAX_DEPTH = 10;
+
+    protected final List<ParticlePole3D> poles;
+    protected final float[] px, py, pz, pcharge;
+    protected final int[] sortedIDs;
+
+    protected int numNodes;
+    protected float[] nodeX, nodeY, nodeZ, nodeHalf;
+    protected int[] nodeStart, nodeCount;
+    protected int[] nodeChildren;
+    protected boolean[] nodeIsLeaf;
+
+    protected final float accuracy;
+    protected final float captureRadius;
+
+    /**
+     * Builds a new index for the given list of poles. The list is not copied,
+     * but must not be changed for the life time of the index. The accuracy
+     * parameter is the Barnes-Hut opening criterion: a cluster of poles is
+     * approximated by its centre of charge if the ratio of its cell size to its
+     * distance is less than the given value. An accuracy of 0 disables any
+     * approximation and produces results matching a brute force search.
+     * 
+     * @param poles
+     *            list of poles to index
+     * @param accuracy
+     *            Barnes-Hut opening angle (0 = exact)
+     */
+    public PoleOctree(List<ParticlePole3D> poles, float accuracy) {
+        this.poles = poles;
+        this.accuracy = accuracy;
+        this.captureRadius = (float) Math.sqrt(ParticlePole3D.EVENT_HORIZON);
+        int num = poles.size();
+        px = new float[num];
+        py = new float[num];
+        pz = new float[num];
+        pcharge = new float[num];
+        sortedIDs = new int[num];
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ =
+                Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ =
+                -Float.MAX_VALUE;
+        for (int i = 0; i < num; i++) {
+            ParticlePole3D p = poles.get(i);
+            px[i] = p.x;
+            py[i] = p.y;
+            pz[i] = p.z;
+            pcharge[i] = p.charge;
+            sortedIDs[i] = i;
+            minX = Math.min(minX, p.x);
+            minY = Math.min(minY, p.y);
+            minZ = Math.min(minZ, p.z);
+            maxX = Math.max(maxX, p.x);
+            maxY = Math.max(maxY, p.y);
+            maxZ = Math.max(maxZ, p.z);
+        }
+        int capacity = Math.max(num / 2, 8);
+        nodeX = new float[capacity];
+        nodeY = new float[capacity];
+        nodeZ = new float[capacity];
+        nodeHalf = new float[capacity];
+        nodeStart = new int[capacity];
+        nodeCount = new int[capacity];
+        nodeChildren = new int[capacity * 8];
+        nodeIsLeaf = new boolean[capacity];
+        if (num > 0) {
+            float half =
+                    Math.max(Math.max(maxX - minX, maxY - minY), maxZ - minZ)
+                            * 0.5f + 1;
+            buildNode(0, num, (minX + maxX) * 0.5f, (minY + maxY) * 0.5f,
+                    (minZ + maxZ) * 0.5f, half, 0, new int[num]);
+        }
+    }
+
+    /**
+     * Recursively partitions the pole ID range [start, start + count) into
+     * octants and creates the child nodes. Nodes are allocated in pre-order,
+     * so child IDs are always greater than their parent's.
+     */
+    private int buildNode(int start, int count, float x, float y, float z,
+            float half, int depth, int[] tmp) {
+        int id = allocNode(x, y, z, half, start, count);
+        if (count > MAX_LEAF_SIZE && depth < MAX_DEPTH) {
+            int[] octCount = new int[8];
+            for (int i = start, end = start + count; i < end; i++) {
+                octCount[getOctant(sortedIDs[i], x, y, z)]++;
+            }
+            int[] octStart = new int[8];
+            for (int i = 1; i < 8; i++) {
+                octStart[i] = octStart[i - 1] + octCount[i - 1];
+            }
+            int[] fill = octStart.clone();
+            for (int i = start, end = start + count; i < end; i++) {
+                int pid = sortedIDs[i];
+                tmp[fill[getOctant(pid, x, y, z)]++] = pid;
+            }
+            System.arraycopy(tmp, 0, sortedIDs, start, count);
+            float h2 = half * 0.5f;
+            for (int i = 0; i < 8; i++) {
+                if (octCount[i] > 0) {
+                    int child =
+                            buildNode(start + octStart[i], octCount[i],
+                                    (i & 1) != 0 ? x + h2 : x - h2,
+                                    (i & 2) != 0 ? y + h2 : y - h2,
+                                    (i & 4) != 0 ? z + h2 : z - h2, h2,
+                                    depth + 1, tmp);
+                    nodeChildren[id * 8 + i] = child;
+                    nodeIsLeaf[id] = false;
+                }
+            }
+        }
+        return id;
+    }
+
+    private int allocNode(float x, float y, float z, float half, int start,
+            int count) {
+        if (numNodes == nodeX.length) {
+            int capacity = numNodes * 2;
+            nodeX = Arrays.copyOf(nodeX, capacity);
+            nodeY = Arrays.copyOf(nodeY, capacity);
+            nodeZ = Arrays.copyOf(nodeZ, capacity);
+            nodeHalf = Arrays.copyOf(nodeHalf, capacity);
+            nodeStart = Arrays.copyOf(nodeStart, capacity);
+            nodeCount = Arrays.copyOf(nodeCount, capacity);
+            nodeChildren = Arrays.copyOf(nodeChildren, capacity * 8);
+            nodeIsLeaf = Arrays.copyOf(nodeIsLeaf, capacity);
+        }
+        int id = numNodes++;
+        nodeX[id] = x;
+        nodeY[id] = y;
+        nodeZ[id] = z;
+        nodeHalf[id] = half;
+        nodeStart[id] = start;
+        nodeCount[id] = count;
+        nodeIsLeaf[id] = true;
+        Arrays.fill(nodeChildren, id * 8, id * 8 + 8, -1);
+        return id;
+    }
+
+    /**
+     * Computes the node aggregates for all poles with a hit count less than
+     * the given limit. The excluded pole (usually the field line's start pole)
+     * is ignored too.
+     * 
+     * @param state
+     *            state to update
+     * @param maxHitCount
+     *            max. hit count limit for poles to be considered
+     * @param exclude
+     *            pole to ignore (or null)
+     */
+    public void aggregate(FieldState state, int maxHitCount,
+            ParticlePole3D exclude) {
+        for (int i = 0, num = px.length; i < num; i++) {
+            ParticlePole3D p = poles.get(i);
+            state.isEligible[i] = p.getHitCount() < maxHitCount && p != exclude;
+        }
+        // node counts are needed for capture tests in exact mode too
+        // children always have larger IDs than their parents
+        for (int n = numNodes - 1; n >= 0; n--) {
+            int count = 0;
+            float q = 0, w = 0, x = 0, y = 0, z = 0;
+            if (nodeIsLeaf[n]) {
+                for (int i = nodeStart[n], end = i + nodeCount[n]; i < end;
+                        i++) {
+                    int pid = sortedIDs[i];
+                    if (state.isEligible[pid]) {
+                        float c = pcharge[pid];
+                        float a = Math.abs(c);
+                        count++;
+                        q += c;
+                        w += a;
+                        x += px[pid] * a;
+                        y += py[pid] * a;
+                        z += pz[pid] * a;
+                    }
+                }
+            } else {
+                for (int i = n * 8, end = i + 8; i < end; i++) {
+                    int c = nodeChildren[i];
+                    if (c != -1 && state.count[c] > 0) {
+                        float a = state.weight[c];
+                        count += state.count[c];
+                        q += state.netCharge[c];
+                        w += a;
+                        x += state.cx[c] * a;
+                        y += state.cy[c] * a;
+                        z += state.cz[c] * a;
+                    }
+                }
+            }
+            state.count[n] = count;
+            state.netCharge[n] = q;
+            state.weight[n] = w;
+            if (w > 0) {
+                state.cx[n] = x / w;
+                state.cy[n] = y / w;
+                state.cz[n] = z / w;
+            } else {
+                state.cx[n] = nodeX[n];
+                state.cy[n] = nodeY[n];
+                state.cz[n] = nodeZ[n];
+            }
+        }
+    }
+
+    /**
+     * Evaluates the field of all eligible poles at the given point and adds it
+     * to the vector stored in the out array. If the point is within the event
+     * horizon of an eligible pole, the evaluation stops and the index of that
+     * pole is returned. If several poles qualify, the one with the lowest index
+     * in the original list is chosen (same as a linear search would). In exact
+     * mode (accuracy 0) the field is summed in list order up to the capturing
+     * pole, so the result matches a brute force search bit for bit.
+     * 
+     * @param state
+     *            aggregated state
+     * @param x
+     * @param y
+     * @param z
+     * @param out
+     *            field vector to add to (3 elements)
+     * @return index of capturing pole in original list or -1
+     */
+    public int evaluate(FieldState state, float x, float y, float z,
+            float[] out) {
+        int captureID = findCapture(state, x, y, z);
+        if (accuracy <= 0) {
+            // exact mode: sum in list order up to the capturing pole (same
+            // as brute force)
+            int num = captureID != -1 ? captureID : px.length;
+            for (int i = 0; i < num; i++) {
+                if (state.isEligible[i]) {
+                    addContribution(x - px[i], y - py[i], z - pz[i],
+                            pcharge[i], out);
+                }
+            }
+        } else if (captureID == -1) {
+            accumulateField(state, x, y, z, out);
+        }
+        return captureID;
+    }
+
+    /**
+     * Adds the field contributions of all eligible poles at the given point to
+     * the vector stored in the out array. Clusters of distant poles are
+     * approximated based on the accuracy setting of this tree.
+     * 
+     * @param state
+     *            aggregated state
+     * @param x
+     * @param y
+     * @param z
+     * @param out
+     *            field vector to add to (3 elements)
+     */
+    public void accumulateField(FieldState state, float x, float y, float z,
+            float[] out) {
+        float theta2 = accuracy * accuracy;
+        int[] stack = state.stack;
+        int sp = 0;
+        if (numNodes > 0) {
+            stack[sp++] = 0;
+        }
+        while (sp > 0) {
+            int n = stack[--sp];
+            if (state.count[n] == 0) {
+                continue;
+            }
+            float dx = x - state.cx[n];
+            float dy = y - state.cy[n];
+            float dz = z - state.cz[n];
+            float mag = dx * dx + dy * dy + dz * dz;
+            float size = nodeHalf[n] * 2;
+            if (size * size < theta2 * mag) {
+                addContribution(dx, dy, dz, state.netCharge[n], out);
+            } else if (nodeIsLeaf[n]) {
+                for (int i = nodeStart[n], end = i + nodeCount[n]; i < end;
+                        i++) {
+                    int pid = sortedIDs[i];
+                    if (state.isEligible[pid]) {
+                        addContribution(x - px[pid], y - py[pid], z - pz[pid],
+                                pcharge[pid], out);
+                    }
+                }
+            } else {
+                for (int i = n * 8, end = i + 8; i < end; i++) {
+                    if (nodeChildren[i] != -1) {
+                        stack[sp++] = nodeChildren[i];
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addContribution(float dx, float dy, float dz,
+            float charge, float[] out) {
+        float s = charge / (dx * dx + dy * dy + dz * dz);
+        out[0] += dx * s;
+        out[1] += dy * s;
+        out[2] += dz * s;
+    }
+
+    /**
+     * Finds the eligible pole capturing the given point, i.e. the point is
+     * within the pole's {@link ParticlePole3D#EVENT_HORIZON}. Only nodes
+     * intersecting the capture radius are visited. If several poles qualify,
+     * the one with the lowest index in the original list is chosen (same as a
+     * linear search would).
+     * 
+     * @param state
+     *            aggregated state
+     * @param x
+     * @param y
+     * @param z
+     * @return pole index in original list or -1
+     */
+    public int findCapture(FieldState state, float x, float y, float z) {
+        int result = Integer.MAX_VALUE;
+        if (numNodes > 0) {
+            float r = captureRadius;
+            int[] stack = state.stack;
+            int sp = 0;
+            stack[sp++] = 0;
+            while (sp > 0) {
+                int n = stack[--sp];
+                float h = nodeHalf[n] + r;
+                if (state.count[n] == 0 || Math.abs(x - nodeX[n]) > h
+                        || Math.abs(y - nodeY[n]) > h
+                        || Math.abs(z - nodeZ[n]) > h) {
+                    continue;
+                }
+                if (nodeIsLeaf[n]) {
+                    int end = nodeStart[n] + nodeCount[n];
+                    for (int i = nodeStart[n]; i < end; i++) {
+                        int pid = sortedIDs[i];
+                        if (pid < result && state.isEligible[pid]) {
+                            float dx = x - px[pid];
+                            float dy = y - py[pid];
+                            float dz = z - pz[pid];
+                            float mag = dx * dx + dy * dy + dz * dz;
+                            if (mag < ParticlePole3D.EVENT_HORIZON) {
+                                result = pid;
+                            }
+                        }
+                    }
+                } else {
+                    for (int i = n * 8, end = i + 8; i < end; i++) {
+                        if (nodeChildren[i] != -1) {
+                            stack[sp++] = nodeChildren[i];
+                        }
+                    }
+                }
+            }
+        }
+        return result != Integer.MAX_VALUE ? result : -1;
+    }
+
+    /**
+     * Creates a new, empty state container matching the size of this tree.
+     * 
+     * @return field state
+     */
+    public FieldState createState() {
+        return new FieldState(numNodes, px.length);
+    }
+
+    /**
+     * @return the Barnes-Hut accuracy used
+     */
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    /**
+     * @return number of tree nodes
+     */
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+    private int getOctant(int pid, float x, float y, float z) {
+        return (px[pid] >= x ? 1 : 0) | (py[pid] >= y ? 2 : 0)
+                | (pz[pid] >= z ? 4 : 0);
+    }
+
+    /**
+     * Returns the pole for the given index in the original list.
+     * 
+     * @param id
+     * @return pole
+     */
+    public ParticlePole3D getPole(int id) {
+        return poles.get(id);
+    }
+
+    /**
+     * @return list of indexed poles
+     */
+    public List<ParticlePole3D> getPoles() {
+        return poles;
+    }
+}
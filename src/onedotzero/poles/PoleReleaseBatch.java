@@ -0,0 +1,109 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.poles;
+
+/**
+ * <p>
+ * Collects pole releases of expired ribbons and applies them in one go via
+ * {@link #flush()}. Releases of the same pole are merged, so each pole's hit
+ * count and usage index is only updated once per batch instead of once per
+ * ribbon, which matters when hundreds of ribbons expire at the same time (e.g.
+ * after a message change).
+ * </p>
+ * 
+ * <p>
+ * Poles are tracked by their ID. Should a batch contain poles of different
+ * constellations with the same ID, the earlier pole is released immediately.
+ * Poles without an ID are always released immediately. This class is not
+ * thread safe.
+ * </p>
+ */
+public class PoleReleaseBatch {
+
+    protected ParticlePole3D[] poles = new ParticlePole3D[256];
+    protected int[] counts = new int[256];
+    protected int[] touchedIDs = new int[256];
+    protected int numTouched;
+
+    /**
+     * Adds a single release of the given pole to the batch.
+     * 
+     * @param p
+     *            pole
+     */
+    public void add(ParticlePole3D p) {
+        int id = p.getID();
+        if (id < 0) {
+            p.release();
+            return;
+        }
+        if (id >= poles.length) {
+            grow(id + 1);
+        }
+        ParticlePole3D q = poles[id];
+        if (q != p) {
+            if (q == null) {
+                touchedIDs[numTouched++] = id;
+            } else {
+                q.release(counts[id]);
+                counts[id] = 0;
+            }
+            poles[id] = p;
+        }
+        counts[id]++;
+    }
+
+    /**
+     * Applies all collected releases and clears the batch.
+     * 
+     * @return number of poles updated
+     */
+    public int flush() {
+        int num = numTouched;
+        for (int i = 0; i < num; i++) {
+            int id = touchedIDs[i];
+            poles[id].release(counts[id]);
+            poles[id] = null;
+            counts[id] = 0;
+        }
+        numTouched = 0;
+        return num;
+    }
+
+    /**
+     * @return number of distinct poles currently in the batch
+     */
+    public int getNumPending() {
+        return numTouched;
+    }
+
+    private void grow(int minSize) {
+        int size = Math.max(poles.length * 2, minSize);
+        ParticlePole3D[] newPoles = new ParticlePole3D[size];
+        System.arraycopy(poles, 0, newPoles, 0, poles.length);
+        poles = newPoles;
+        int[] newCounts = new int[size];
+        System.arraycopy(counts, 0, newCounts, 0, counts.length);
+        counts = newCounts;
+        int[] newIDs = new int[size];
+        System.arraycopy(touchedIDs, 0, newIDs, 0, numTouched);
+        touchedIDs = newIDs;
+    }
+}
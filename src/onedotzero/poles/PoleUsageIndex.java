@@ -0,0 +1,246 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.poles;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Incrementally updated usage statistics for a fixed group of poles (e.g. the
+ * outline poles of a single letter). The index maintains two indexed binary
+ * min-heaps over the group: one ordered by hit count, the other by the time
+ * stamp of the last hit (same order as {@link RecentHitPoleComparator}, but
+ * with poles at or over the hit count limit moved to the end). This allows the
+ * least used and oldest available pole to be looked up in constant time and
+ * updated in O(log n) whenever a pole's usage changes, without any
+ * allocations.
+ * </p>
+ * 
+ * <p>
+ * Poles notify their index automatically after each hit count change. The
+ * heaps work on snapshots of the pole values taken during these updates, so
+ * they stay consistent even if poles are modified concurrently. A pole can
+ * only be part of a single index.
+ * </p>
+ */
+public class PoleUsageIndex {
+
+    /**
+     * Indexed binary min-heap of pole slots.
+     */
+    protected abstract class Heap {
+
+        protected final int[] heap;
+        protected final int[] pos;
+
+        protected Heap(int num) {
+            heap = new int[num];
+            pos = new int[num];
+            for (int i = 0; i < num; i++) {
+                heap[i] = i;
+                pos[i] = i;
+            }
+        }
+
+        protected void heapify() {
+            for (int i = (heap.length >> 1) - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        protected abstract boolean isLess(int a, int b);
+
+        protected int peek() {
+            return heap[0];
+        }
+
+        private void set(int i, int slot) {
+            heap[i] = slot;
+            pos[slot] = i;
+        }
+
+        private void siftDown(int i) {
+            int slot = heap[i];
+            int num = heap.length;
+            int child;
+            while ((child = (i << 1) + 1) < num) {
+                if (child + 1 < num && isLess(heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if (!isLess(heap[child], slot)) {
+                    break;
+                }
+                set(i, heap[child]);
+                i = child;
+            }
+            set(i, slot);
+        }
+
+        private void siftUp(int i) {
+            int slot = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (!isLess(slot, heap[parent])) {
+                    break;
+                }
+                set(i, heap[parent]);
+                i = parent;
+            }
+            set(i, slot);
+        }
+
+        protected void update(int slot) {
+            int i = pos[slot];
+            siftUp(i);
+            if (heap[i] == slot) {
+                siftDown(i);
+            }
+        }
+    }
+
+    protected final ParticlePole3D[] poles;
+    protected final int[] hitCounts;
+    protected final long[] lastHits;
+    protected final Heap byUsage;
+    protected final Heap byAge;
+
+    protected int maxHitCount;
+    protected int totalHitCount;
+
+    /**
+     * Creates a new index for the given poles and registers itself with each
+     * of them.
+     * 
+     * @param poleList
+     *            poles to index
+     * @param maxHitCount
+     *            hit count limit, poles at or over this limit are not
+     *            considered as candidates
+     */
+    public PoleUsageIndex(List<ParticlePole3D> poleList, int maxHitCount) {
+        int num = poleList.size();
+        this.poles = poleList.toArray(new ParticlePole3D[num]);
+        this.hitCounts = new int[num];
+        this.lastHits = new long[num];
+        this.maxHitCount = maxHitCount;
+        byUsage = new Heap(num) {
+
+            @Override
+            protected boolean isLess(int a, int b) {
+                int ha = hitCounts[a];
+                int hb = hitCounts[b];
+                return ha < hb || (ha == hb && a < b);
+            }
+        };
+        byAge = new Heap(num) {
+
+            @Override
+            protected boolean isLess(int a, int b) {
+                long ta = getAgeKey(a);
+                long tb = getAgeKey(b);
+                return ta < tb || (ta == tb && a < b);
+            }
+        };
+        synchronized (this) {
+            for (int i = 0; i < num; i++) {
+                ParticlePole3D p = poles[i];
+                p.usageIndex = this;
+                p.usageSlot = i;
+                hitCounts[i] = p.getHitCount();
+                lastHits[i] = p.getLastHit();
+                totalHitCount += hitCounts[i];
+            }
+            byUsage.heapify();
+            byAge.heapify();
+        }
+    }
+
+    private long getAgeKey(int slot) {
+        return hitCounts[slot] < maxHitCount ? lastHits[slot] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Selects the best candidate pole for a new ribbon among all poles below
+     * the given hit count limit: the least recently used pole, unless the
+     * least used pole has a lower hit count.
+     * 
+     * @param maxHitCount
+     *            hit count limit
+     * @return pole or null, if all poles are at/over the limit
+     */
+    public synchronized ParticlePole3D getCandidate(int maxHitCount) {
+        if (poles.length == 0) {
+            return null;
+        }
+        if (maxHitCount != this.maxHitCount) {
+            this.maxHitCount = maxHitCount;
+            byAge.heapify();
+        }
+        int leastUsed = byUsage.peek();
+        if (hitCounts[leastUsed] >= maxHitCount) {
+            return null;
+        }
+        int oldest = byAge.peek();
+        if (hitCounts[leastUsed] < hitCounts[oldest]) {
+            return poles[leastUsed];
+        }
+        return poles[oldest];
+    }
+
+    /**
+     * Returns the least used pole, regardless of hit count limit.
+     * 
+     * @return pole or null, if the index is empty
+     */
+    public synchronized ParticlePole3D getLeastUsedPole() {
+        return poles.length > 0 ? poles[byUsage.peek()] : null;
+    }
+
+    /**
+     * @return sum of hit counts of all poles in the group
+     */
+    public synchronized int getTotalHitCount() {
+        return totalHitCount;
+    }
+
+    /**
+     * @return number of poles in the group
+     */
+    public int size() {
+        return poles.length;
+    }
+
+    /**
+     * Updates the snapshot of the given pole's usage and restores heap order.
+     * Called automatically by {@link ParticlePole3D} after each change.
+     * 
+     * @param slot
+     *            index of the pole in this group
+     */
+    protected synchronized void update(int slot) {
+        ParticlePole3D p = poles[slot];
+        int count = p.getHitCount();
+        totalHitCount += count - hitCounts[slot];
+        hitCounts[slot] = count;
+        lastHits[slot] = p.getLastHit();
+        byUsage.update(slot);
+        byAge.update(slot);
+    }
+}
@@ -23,7 +23,7 @@ import java.io.Serializable;
 import java.util.Comparator;
 
 /**
- * Compares poles based on their {@link ParticlePole3D#lastHit} time stamp.
+ * Compares poles based on their {@link ParticlePole3D#getLastHit()} time stamp.
  */
 public class RecentHitPoleComparator implements Comparator<ParticlePole3D>,
         Serializable {
@@ -37,9 +37,11 @@ public class RecentHitPoleComparator implements Comparator<ParticlePole3D>,
      */
     @Override
     public int compare(ParticlePole3D a, ParticlePole3D b) {
-        if (a.lastHit < b.lastHit) {
+        long ta = a.getLastHit();
+        long tb = b.getLastHit();
+        if (ta < tb) {
             return -1;
-        } else if (a.lastHit > b.lastHit) {
+        } else if (ta > tb) {
             return 1;
         } else {
             return 0;
@@ -19,6 +19,9 @@
 
 package onedotzero.poles.strategies;
 
+import java.util.Random;
+
+import onedotzero.SimClock;
 import onedotzero.poles.ParticlePole3D;
 import toxi.geom.Vec3D;
 import toxi.math.MathUtils;
@@ -32,10 +35,11 @@ public class GridXInterleavePolePositioning implements PolePositionStrategy {
     @Override
     public Vec3D createPosition(int id, int total, Vec3D exclusion) {
         float x = -1 + 2.0f * id / total;
-        float y = MathUtils.random(exclusion.y, 1f);
-        float z = MathUtils.random(exclusion.z, 1f);
-        z = MathUtils.random(1f) < 0.5 ? z : -z;
-        y = MathUtils.random(1f) < 0.5 ? y : -y;
+        Random rnd = SimClock.getRandom();
+        float y = MathUtils.random(rnd, exclusion.y, 1f);
+        float z = MathUtils.random(rnd, exclusion.z, 1f);
+        z = MathUtils.random(rnd, 1f) < 0.5 ? z : -z;
+        y = MathUtils.random(rnd, 1f) < 0.5 ? y : -y;
         return new Vec3D(x, y, z);
     }
 
@@ -19,6 +19,9 @@
 
 package onedotzero.poles.strategies;
 
+import java.util.Random;
+
+import onedotzero.SimClock;
 import onedotzero.poles.ParticlePole3D;
 import toxi.geom.Vec3D;
 import toxi.math.MathUtils;
@@ -37,10 +40,11 @@ public class RandomXPolePositioning implements PolePositionStrategy {
      */
     @Override
     public Vec3D createPosition(int id, int total, Vec3D exclusion) {
-        float x = MathUtils.random(-1f, 1f) * 0.66f;
-        float y = MathUtils.random(exclusion.y, 1f);
-        float z = MathUtils.random(exclusion.z, 1f);
-        y = MathUtils.random(1f) < 0.5 ? y : -y;
+        Random rnd = SimClock.getRandom();
+        float x = MathUtils.random(rnd, -1f, 1f) * 0.66f;
+        float y = MathUtils.random(rnd, exclusion.y, 1f);
+        float z = MathUtils.random(rnd, exclusion.z, 1f);
+        y = MathUtils.random(rnd, 1f) < 0.5 ? y : -y;
         z = (id % 2 == 0) ? z : -z;
         return new Vec3D(x, y, z);
     }
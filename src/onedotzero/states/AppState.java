@@ -41,8 +41,8 @@ public abstract class AppState {
 
     /**
      * Called by {@link ODZApp} at the beginning of each render loop iteration.
-     * This provides an oppotunity to manipulate camera settings. Not all states
-     * need to react to this.
+     * This provides an oppotunity to manipulate camera settings or the GUI.
+     * Not all states need to react to this.
      * 
      * @param app
      *            main app
@@ -52,8 +52,10 @@ public abstract class AppState {
     }
 
     /**
-     * Called by {@link ODZApp} just before updating ribbons in each iteration
-     * of the render loop. Not all states need to react to this.
+     * Called by {@link ODZApp} just before updating ribbons in each step of
+     * the simulation (usually on the simulation thread, see
+     * {@link onedotzero.SimulationThread}). Not all states need to react to
+     * this.
      * 
      * @param app
      *            main app
@@ -39,10 +39,10 @@ public class IdentState extends AppState {
     /*
      * (non-Javadoc)
      * 
-     * @see onedotzero.states.AppState#update(onedotzero.ODZApp)
+     * @see onedotzero.states.AppState#pre(onedotzero.ODZApp)
      */
     @Override
-    public void update(ODZApp app) {
+    public void pre(ODZApp app) {
         app.getGUI().setAutoDraw(!app.getTiler().isTiling());
     }
 }
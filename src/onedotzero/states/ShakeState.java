@@ -34,8 +34,7 @@ public class ShakeState extends AppState {
         CameraState camera = app.getCamera();
         camera.targetPos.clear();
         camera.enableModulation(false);
-        app.initRibbonShake(app.getOldRibbons());
-        app.initRibbonShake(app.getRibbons());
+        app.initRibbonShake();
     }
 
 }
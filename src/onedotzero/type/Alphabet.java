@@ -50,7 +50,16 @@ public class Alphabet {
 
     public HashMap<String, Letter> nameLookup = new HashMap<String, Letter>();
 
+    /**
+     * Letters with single character names, indexed by character to avoid
+     * string allocation & hashing when looking up characters of a message.
+     */
+    protected Letter[] charLookup = new Letter[0];
+
     public Letter getForName(char name) {
+        if (name < charLookup.length) {
+            return charLookup[name];
+        }
         return nameLookup.get("" + name);
     }
 
@@ -73,8 +82,20 @@ public class Alphabet {
     }
 
     public void init() {
+        int maxChar = -1;
         for (Letter l : letters) {
             nameLookup.put(l.id, l);
+            if (l.id.length() == 1) {
+                maxChar = Math.max(maxChar, l.id.charAt(0));
+            }
+            l.outer.compileFlowGraph();
+            l.inner.compileFlowGraph();
+        }
+        charLookup = new Letter[maxChar + 1];
+        for (Letter l : letters) {
+            if (l.id.length() == 1) {
+                charLookup[l.id.charAt(0)] = l;
+            }
         }
     }
 }
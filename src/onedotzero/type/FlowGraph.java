@@ -0,0 +1,86 @@
+/*
+ * This file is part of onedotzero 2009 identity generator (ODZGen).
+ * 
+ * Copyright 2009 Karsten Schmidt (PostSpectacular Ltd.)
+ * 
+ * ODZGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * ODZGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with ODZGen. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package onedotzero.type;
+
+import java.util.List;
+
+/**
+ * Compact, immutable adjacency structure of the {@link FlowHints} of a single
+ * {@link Path}, stored in compressed sparse row (CSR) format: the flow options
+ * of node <code>i</code> are stored in {@link #targets} at the index range
+ * <code>[offsets[i], offsets[i+1])</code>. Instances are created once for each
+ * path when the {@link Alphabet} is initialized.
+ */
+public class FlowGraph {
+
+    /**
+     * Start index of each node's options in {@link #targets} (length: number
+     * of nodes + 1)
+     */
+    public final int[] offsets;
+
+    /**
+     * Flow option node IDs of all nodes
+     */
+    public final int[] targets;
+
+    /**
+     * Compiles the given flow hints into a new graph.
+     * 
+     * @param hints
+     *            flow hints (can be null)
+     * @param numNodes
+     *            number of nodes (points) in the path
+     */
+    public FlowGraph(FlowHints hints, int numNodes) {
+        List<int[]> routes = hints != null ? hints.routes : null;
+        offsets = new int[numNodes + 1];
+        int total = 0;
+        for (int i = 0; i < numNodes; i++) {
+            offsets[i] = total;
+            if (routes != null && i < routes.size()) {
+                total += routes.get(i).length;
+            }
+        }
+        offsets[numNodes] = total;
+        targets = new int[total];
+        for (int i = 0; i < numNodes; i++) {
+            int num = offsets[i + 1] - offsets[i];
+            if (num > 0) {
+                System.arraycopy(routes.get(i), 0, targets, offsets[i], num);
+            }
+        }
+    }
+
+    /**
+     * @param node
+     * @return number of flow options for the given node
+     */
+    public int getDegree(int node) {
+        return offsets[node + 1] - offsets[node];
+    }
+
+    /**
+     * @return number of nodes in the graph
+     */
+    public int getNumNodes() {
+        return offsets.length - 1;
+    }
+}
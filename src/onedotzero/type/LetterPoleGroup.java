@@ -20,11 +20,16 @@
 package onedotzero.type;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import onedotzero.Ribbon;
 import onedotzero.poles.ParticlePole3D;
+import onedotzero.poles.PoleManager.PoleClass;
+import onedotzero.poles.PoleUsageIndex;
+import toxi.geom.Vec2D;
 import toxi.geom.Vec3D;
+import toxi.math.MathUtils;
 
 /**
  * This class constitutes a full description of a {@link Letter} parsed into
@@ -47,6 +52,12 @@ public class LetterPoleGroup {
     public List<ParticlePole3D> outer = new ArrayList<ParticlePole3D>();
     public List<ParticlePole3D> inner = new ArrayList<ParticlePole3D>();
 
+    public PoleUsageIndex outerIndex;
+    public PoleUsageIndex innerIndex;
+
+    protected int[][] outerLoops;
+    protected int[][] innerLoops;
+
     public LetterPoleGroup(Letter l, Vec3D off) {
         letter = l;
         offset = off.copy();
@@ -54,11 +65,9 @@ public class LetterPoleGroup {
 
     private float computeInlineUsage(int maxHitCount) {
         if (inner.size() > 0) {
-            int totalHitCount = 0;
-            for (ParticlePole3D p : inner) {
-                totalHitCount += p.hitCount;
-            }
-            innerUsage = (float) totalHitCount / (inner.size() * maxHitCount);
+            innerUsage =
+                    (float) innerIndex.getTotalHitCount()
+                            / (inner.size() * maxHitCount);
         } else {
             innerUsage = 0;
         }
@@ -66,11 +75,9 @@ public class LetterPoleGroup {
     }
 
     private float computeOutlineUsage(int maxHitCount) {
-        int totalHitCount = 0;
-        for (ParticlePole3D p : outer) {
-            totalHitCount += p.hitCount;
-        }
-        outerUsage = (float) totalHitCount / (outer.size() * maxHitCount);
+        outerUsage =
+                (float) outerIndex.getTotalHitCount()
+                        / (outer.size() * maxHitCount);
         return outerUsage;
     }
 
@@ -83,32 +90,133 @@ public class LetterPoleGroup {
         return totalUsage;
     }
 
+    /**
+     * Precomputes the letter walk for each start node of the given path. Each
+     * walk greedily follows the unvisited flow option with the smallest angle
+     * between the poles' normalized XZ positions, until it returns to the start
+     * node or gets stuck. Since this depends on the position of the letter in
+     * space, walks are computed for each group rather than per {@link Letter}.
+     */
+    private static int[][] computeLoops(List<ParticlePole3D> poles,
+            FlowGraph graph) {
+        int num = poles.size();
+        int[][] loops = new int[num][];
+        int[] seq = new int[num + 1];
+        boolean[] isUsed = new boolean[num];
+        for (int start = 0; start < num; start++) {
+            Arrays.fill(isUsed, false);
+            isUsed[start] = true;
+            seq[0] = start;
+            int len = 1;
+            int curr = start;
+            int next = start;
+            boolean isLoopComplete = false;
+            for (int i = 0; !isLoopComplete; i++) {
+                float minTheta = MathUtils.TWO_PI;
+                Vec2D curr2D = poles.get(curr).pos2D;
+                int end = graph.offsets[curr + 1];
+                for (int j = graph.offsets[curr]; j < end; j++) {
+                    int p = graph.targets[j];
+                    if (!isUsed[p]) {
+                        float theta =
+                                MathUtils.abs(curr2D.angleBetween(poles
+                                        .get(p).pos2D));
+                        if (theta < minTheta) {
+                            minTheta = theta;
+                            next = p;
+                        }
+                    } else if (i > 1 && p == start) {
+                        isLoopComplete = true;
+                        next = p;
+                        break;
+                    }
+                }
+                if (!isUsed[next] || isLoopComplete) {
+                    seq[len++] = next;
+                    curr = next;
+                    isUsed[curr] = true;
+                } else {
+                    break;
+                }
+            }
+            loops[start] = Arrays.copyOf(seq, len);
+        }
+        return loops;
+    }
+
     public ParticlePole3D[] getFlowOptionsForPole(ParticlePole3D p) {
         ParticlePole3D[] options = null;
-        int idx = outer.indexOf(p);
-        if (idx != -1) {
-            int[] optionIDs = letter.outer.flowHints.routes.get(idx);
-            options = new ParticlePole3D[optionIDs.length];
-            for (int i = 0; i < optionIDs.length; i++) {
-                options[i] = outer.get(optionIDs[i]);
-            }
-        } else {
-            idx = inner.indexOf(p);
-            if (idx != -1) {
-                int[] optionIDs = letter.inner.flowHints.routes.get(idx);
-                options = new ParticlePole3D[optionIDs.length];
-                for (int i = 0; i < optionIDs.length; i++) {
-                    options[i] = inner.get(optionIDs[i]);
-                }
+        List<ParticlePole3D> poles = getGroupForPole(p);
+        if (poles != null) {
+            FlowGraph graph =
+                    (poles == outer ? letter.outer : letter.inner).flowGraph;
+            int idx = p.getGroupIndex();
+            int offset = graph.offsets[idx];
+            options = new ParticlePole3D[graph.getDegree(idx)];
+            for (int i = 0; i < options.length; i++) {
+                options[i] = poles.get(graph.targets[offset + i]);
             }
         }
         return options;
     }
 
+    /**
+     * Returns the list of poles (inner or outer) the given pole belongs to.
+     * 
+     * @param p
+     * @return pole list or null, if the pole isn't part of this group
+     */
+    public List<ParticlePole3D> getGroupForPole(ParticlePole3D p) {
+        int idx = p.getGroupIndex();
+        if (p.getPoleClass() == PoleClass.C2 && idx < outer.size()
+                && outer.get(idx) == p) {
+            return outer;
+        } else if (p.getPoleClass() == PoleClass.C3 && idx < inner.size()
+                && inner.get(idx) == p) {
+            return inner;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the precomputed letter walk starting at the given pole as
+     * sequence of indices into the pole's group (see
+     * {@link #getGroupForPole(ParticlePole3D)}). The first element is the
+     * start pole itself. If the walk forms a closed loop, the last element is
+     * the start pole again.
+     * 
+     * @param p
+     *            start pole
+     * @return index sequence or null, if the pole isn't part of this group
+     */
+    public int[] getLoopForPole(ParticlePole3D p) {
+        List<ParticlePole3D> poles = getGroupForPole(p);
+        if (poles != null) {
+            int idx = p.getGroupIndex();
+            return poles == outer ? outerLoops[idx] : innerLoops[idx];
+        }
+        return null;
+    }
+
     public boolean hasInline() {
         return inner.size() > 0;
     }
 
+    /**
+     * Creates the usage indices for the inner & outer poles and precomputes
+     * the letter walks for all start poles. Must be called once all poles have
+     * been added to the group.
+     * 
+     * @param maxHitCount
+     *            hit count limit for start pole candidates
+     */
+    public void init(int maxHitCount) {
+        outerIndex = new PoleUsageIndex(outer, maxHitCount);
+        innerIndex = new PoleUsageIndex(inner, maxHitCount);
+        outerLoops = computeLoops(outer, letter.outer.flowGraph);
+        innerLoops = computeLoops(inner, letter.inner.flowGraph);
+    }
+
     @Override
     public String toString() {
         return letter.id + " inner: " + innerUsage + " outer: " + outerUsage
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlTransient;
 import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
 
 import onedotzero.Ribbon;
@@ -47,6 +48,21 @@ public class Path {
     @XmlElement(name = "flow")
     public FlowHints flowHints;
 
+    /**
+     * Compiled version of {@link #flowHints}, created by
+     * {@link #compileFlowGraph()}.
+     */
+    @XmlTransient
+    public FlowGraph flowGraph;
+
+    /**
+     * Compiles the flow hints into a {@link FlowGraph}. Called automatically
+     * by {@link Alphabet#init()}.
+     */
+    public void compileFlowGraph() {
+        flowGraph = new FlowGraph(flowHints, points.size());
+    }
+
     @Override
     public String toString() {
         StringBuilder s = new StringBuilder();